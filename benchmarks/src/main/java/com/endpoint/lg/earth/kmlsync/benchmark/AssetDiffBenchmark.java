@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.benchmark;
+
+import com.endpoint.lg.earth.kmlsync.AssetDiff;
+import com.endpoint.lg.earth.kmlsync.WindowAssetStore;
+import com.endpoint.lg.earth.kmlsync.WindowState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The create/delete diff between a client's cookie and its Window, and the
+ * diff between two versions of a Window's assets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AssetDiffBenchmark {
+  @Param({ "10", "100", "1000" })
+  int assetsPerWindow;
+
+  /**
+   * How much of the Window's assets the client has loaded, and how much of
+   * the next version's assets were in the previous one.
+   */
+  @Param({ "0", "50", "100" })
+  int overlapPercent;
+
+  private WindowState state;
+  private List<String> clientAssetSlugs;
+  private List<Map<String, Object>> from;
+  private List<Map<String, Object>> to;
+
+  @Setup
+  public void setUp() {
+    WindowAssetStore store = BenchmarkFixtures.store(1, assetsPerWindow);
+    state = store.get(BenchmarkFixtures.windowSlug(0));
+    clientAssetSlugs = BenchmarkFixtures.clientAssetSlugs(state, 0, overlapPercent);
+
+    int offset = assetsPerWindow * (100 - overlapPercent) / 100;
+    from = BenchmarkFixtures.scene(1, assetsPerWindow, 0).get(BenchmarkFixtures.windowSlug(0));
+    to = BenchmarkFixtures.scene(1, assetsPerWindow, offset).get(BenchmarkFixtures.windowSlug(0));
+  }
+
+  @Benchmark
+  public AssetDiff clientToState() {
+    return AssetDiff.between(clientAssetSlugs, state);
+  }
+
+  @Benchmark
+  public AssetDiff assetsToAssets() {
+    return AssetDiff.between(from, to);
+  }
+}
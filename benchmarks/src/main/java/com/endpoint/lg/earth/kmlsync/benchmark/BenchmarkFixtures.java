@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.benchmark;
+
+import com.endpoint.lg.earth.kmlsync.WindowAssetStore;
+import com.endpoint.lg.earth.kmlsync.WindowState;
+
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the windows, assets, and stubbed HTTP requests and responses the
+ * benchmarks run against, so they need no Interactive Spaces container.
+ */
+final class BenchmarkFixtures {
+  private BenchmarkFixtures() {
+  }
+
+  static String windowSlug(int window) {
+    return "window-" + window;
+  }
+
+  /**
+   * An asset like the director sends: its title, slug, and storage are all its
+   * URL.
+   */
+  static Map<String, Object> asset(int window, int asset) {
+    String url = "http://lg-head/media/window-" + window + "/asset-" + asset + ".kml";
+    Map<String, Object> m = Maps.newHashMap();
+    m.put("title", url);
+    m.put("slug", url);
+    m.put("storage", url);
+    return m;
+  }
+
+  /**
+   * Every window's assets, starting at the given asset number. Scenes built
+   * with different offsets share all but that many assets per window.
+   */
+  static Map<String, List<Map<String, Object>>> scene(int windows, int assetsPerWindow, int offset) {
+    Map<String, List<Map<String, Object>>> scene = Maps.newHashMap();
+    for (int w = 0; w < windows; w++) {
+      List<Map<String, Object>> assets = Lists.newArrayListWithCapacity(assetsPerWindow);
+      for (int a = 0; a < assetsPerWindow; a++) {
+        assets.add(asset(w, a + offset));
+      }
+      scene.put(windowSlug(w), assets);
+    }
+    return scene;
+  }
+
+  static WindowAssetStore store(int windows, int assetsPerWindow) {
+    WindowAssetStore store = new WindowAssetStore();
+    store.replaceScene(scene(windows, assetsPerWindow, 0));
+    return store;
+  }
+
+  /**
+   * The slugs a client reports having loaded: the given percentage of its
+   * Window's assets, followed by as many stale slugs as it's missing, so the
+   * cookie is the same size whatever the percentage.
+   */
+  static List<String> clientAssetSlugs(WindowState state, int window, int loadedPercent) {
+    List<String> serverSlugs = state.getAssetSlugs();
+    int loaded = serverSlugs.size() * loadedPercent / 100;
+    List<String> slugs = Lists.newArrayList(serverSlugs.subList(0, loaded));
+    for (int a = loaded; a < serverSlugs.size(); a++) {
+      slugs.add(asset(window, -1 - a).get("slug").toString());
+    }
+    return slugs;
+  }
+
+  /**
+   * The query string Google Earth sends for a Window with the given cookie.
+   */
+  static String updateQuery(String windowSlug, List<String> clientAssetSlugs) {
+    StringBuilder query = new StringBuilder("window_slug=").append(encode(windowSlug));
+    for (String slug : clientAssetSlugs) {
+      query.append("&asset_slug=").append(encode(slug));
+    }
+    return query.toString();
+  }
+
+  static URI updateUri(String rawQuery) {
+    return URI.create("http://localhost:8765/kml/update.kml?" + rawQuery);
+  }
+
+  /**
+   * A GET request for the given URI, without headers.
+   */
+  static HttpRequest request(final URI uri) {
+    return stub(HttpRequest.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getUri")) {
+          return uri;
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * A response whose body goes to the given stream, and whose status and
+   * headers are dropped.
+   */
+  static HttpResponse response(final OutputStream body) {
+    return stub(HttpResponse.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getOutputStream")) {
+          return body;
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * Counts the bytes written to it, and discards them.
+   */
+  static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+
+  private static <T> T stub(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return Boolean.FALSE;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.benchmark;
+
+import com.endpoint.lg.earth.kmlsync.QueryParams;
+import com.endpoint.lg.earth.kmlsync.UpdateQuery;
+import com.endpoint.lg.earth.kmlsync.WindowAssetStore;
+import com.endpoint.lg.earth.kmlsync.WindowState;
+
+import com.google.common.collect.ArrayListMultimap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the query string of an update request, whose size is set by how
+ * many asset slugs the client's cookie carries: with the general purpose
+ * parser, and with the update request parser resolving slugs against the
+ * Window's state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryParamsBenchmark {
+  @Param({ "0", "10", "100", "1000" })
+  int cookieAssets;
+
+  private WindowState state;
+  private String rawQuery;
+
+  @Setup
+  public void setUp() {
+    WindowAssetStore store = BenchmarkFixtures.store(1, cookieAssets);
+    String windowSlug = BenchmarkFixtures.windowSlug(0);
+    state = store.get(windowSlug);
+    rawQuery = BenchmarkFixtures.updateUri(BenchmarkFixtures.updateQuery(windowSlug,
+        state.getAssetSlugs())).getRawQuery();
+  }
+
+  @Benchmark
+  public ArrayListMultimap<String, String> parse() {
+    return QueryParams.parse(rawQuery);
+  }
+
+  @Benchmark
+  public int parseUpdateQuery() {
+    UpdateQuery query = UpdateQuery.parse(rawQuery);
+    try {
+      return query.resolveAssetSlugs(state).size();
+    } finally {
+      query.release();
+    }
+  }
+}
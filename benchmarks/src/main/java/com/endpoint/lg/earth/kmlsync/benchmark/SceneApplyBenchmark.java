@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.benchmark;
+
+import com.endpoint.lg.earth.kmlsync.DirectorSceneParser;
+import com.endpoint.lg.earth.kmlsync.UpdateResponseCache;
+import com.endpoint.lg.earth.kmlsync.WindowAssetStore;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying director scenes, as the scene ingester does for each scene message:
+ * parsing the message, and replacing every Window's assets with the result.
+ *
+ * Invocations alternate between two scenes that differ in the given share of
+ * each Window's assets, so every invocation changes the store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SceneApplyBenchmark {
+  @Param({ "1", "7", "32" })
+  int windows;
+
+  @Param({ "10", "100", "1000" })
+  int assetsPerWindow;
+
+  @Param({ "10", "100" })
+  int changedPercent;
+
+  private WindowAssetStore store;
+  private DirectorSceneParser parser;
+  private List<Map<String, List<Map<String, Object>>>> scenes = Lists.newArrayList();
+  private List<Map<String, Object>> messages = Lists.newArrayList();
+  private int next;
+
+  @Setup
+  public void setUp() {
+    store = BenchmarkFixtures.store(windows, assetsPerWindow);
+    store.addListener(new UpdateResponseCache(1024));
+    parser = new DirectorSceneParser(new NoOpLog());
+
+    int offset = Math.max(1, assetsPerWindow * changedPercent / 100);
+    scenes.add(BenchmarkFixtures.scene(windows, assetsPerWindow, 0));
+    scenes.add(BenchmarkFixtures.scene(windows, assetsPerWindow, offset));
+    for (Map<String, List<Map<String, Object>>> scene : scenes) {
+      messages.add(directorMessage(scene));
+    }
+  }
+
+  /**
+   * Replacing the store's state with an already parsed scene.
+   */
+  @Benchmark
+  public long replaceScene() {
+    store.replaceScene(scenes.get(nextScene()));
+    return store.getVersion(BenchmarkFixtures.windowSlug(0));
+  }
+
+  /**
+   * Parsing a scene message and applying it.
+   */
+  @Benchmark
+  public long parseAndReplaceScene() throws IOException {
+    store.replaceScene(parser.parse(messages.get(nextScene())));
+    return store.getVersion(BenchmarkFixtures.windowSlug(0));
+  }
+
+  private int nextScene() {
+    next ^= 1;
+    return next;
+  }
+
+  /**
+   * A director scene message placing each Window's asset URLs on an "earth"
+   * window.
+   */
+  private static Map<String, Object> directorMessage(Map<String, List<Map<String, Object>>> scene) {
+    List<Object> directorWindows = Lists.newArrayList();
+    for (Map.Entry<String, List<Map<String, Object>>> entry : scene.entrySet()) {
+      List<Object> assets = Lists.newArrayList();
+      for (Map<String, Object> asset : entry.getValue()) {
+        assets.add(asset.get("storage"));
+      }
+      Map<String, Object> window = Maps.newHashMap();
+      window.put("activity", "earth");
+      window.put("presentation_viewport", entry.getKey());
+      window.put("assets", assets);
+      window.put("width", 1920);
+      window.put("height", 1080);
+      window.put("x_coord", 0);
+      window.put("y_coord", 0);
+      directorWindows.add(window);
+    }
+    Map<String, Object> message = Maps.newHashMap();
+    message.put("name", "benchmark");
+    message.put("slug", "benchmark");
+    message.put("duration", 0);
+    message.put("windows", directorWindows);
+    return message;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.benchmark;
+
+import com.endpoint.lg.earth.kmlsync.AssetDiff;
+import com.endpoint.lg.earth.kmlsync.KmlSyncMetrics;
+import com.endpoint.lg.earth.kmlsync.KmlUpdateRenderer;
+import com.endpoint.lg.earth.kmlsync.KmlUpdateRequestHandler;
+import com.endpoint.lg.earth.kmlsync.SyncLog;
+import com.endpoint.lg.earth.kmlsync.UpdateResponseCache;
+import com.endpoint.lg.earth.kmlsync.WindowAssetStore;
+import com.endpoint.lg.earth.kmlsync.WindowState;
+
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+
+import com.google.common.collect.Lists;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Google Earth's poll of the KML Update resource, through the same handler the
+ * activity registers, and the rendering behind it on its own.
+ *
+ * Each invocation polls for the next Window in turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UpdateRequestBenchmark {
+  @Param({ "1", "7", "32" })
+  int windows;
+
+  @Param({ "10", "100", "1000" })
+  int assetsPerWindow;
+
+  /**
+   * How much of its Window's assets the client has loaded; the rest of its
+   * cookie names assets the Window no longer has.
+   */
+  @Param({ "0", "50", "100" })
+  int clientLoadedPercent;
+
+  private KmlUpdateRenderer renderer;
+  private KmlUpdateRequestHandler handler;
+  private WindowState[] states;
+  private List<List<String>> clientAssetSlugs;
+  private HttpRequest[] requests;
+  private HttpResponse response;
+  private BenchmarkFixtures.CountingOutputStream body;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    WindowAssetStore store = BenchmarkFixtures.store(windows, assetsPerWindow);
+    renderer = new KmlUpdateRenderer("http://localhost:8765/kml/master.kml");
+    UpdateResponseCache cache = new UpdateResponseCache(1024);
+    store.addListener(cache);
+    handler = new KmlUpdateRequestHandler(store, renderer, cache, new KmlSyncMetrics(), new SyncLog(new NoOpLog()),
+        new KmlUpdateRequestHandler.Options());
+
+    states = new WindowState[windows];
+    clientAssetSlugs = Lists.newArrayListWithCapacity(windows);
+    requests = new HttpRequest[windows];
+    for (int w = 0; w < windows; w++) {
+      String windowSlug = BenchmarkFixtures.windowSlug(w);
+      states[w] = store.get(windowSlug);
+      clientAssetSlugs.add(BenchmarkFixtures.clientAssetSlugs(states[w], w, clientLoadedPercent));
+      requests[w] = BenchmarkFixtures.request(BenchmarkFixtures.updateUri(
+          BenchmarkFixtures.updateQuery(windowSlug, clientAssetSlugs.get(w))));
+    }
+
+    body = new BenchmarkFixtures.CountingOutputStream();
+    response = BenchmarkFixtures.response(body);
+  }
+
+  /**
+   * The whole request: query parsing, cache lookup, and writing the body.
+   * After the first poll of each Window, responses come from the cache.
+   */
+  @Benchmark
+  public long handle() {
+    handler.handle(requests[nextWindow()], response);
+    return body.getCount();
+  }
+
+  /**
+   * Rendering a response from scratch, as on a cache miss.
+   */
+  @Benchmark
+  public long render() throws IOException {
+    int w = nextWindow();
+    renderer.render(states[w], AssetDiff.between(clientAssetSlugs.get(w), states[w]),
+        KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD, body);
+    return body.getCount();
+  }
+
+  private int nextWindow() {
+    int w = next;
+    next = (w + 1) % windows;
+    return w;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.benchmark;
+
+import com.endpoint.lg.earth.kmlsync.SyncLog;
+import com.endpoint.lg.earth.kmlsync.UpdateResponseCache;
+import com.endpoint.lg.earth.kmlsync.WindowAssetStore;
+import com.endpoint.lg.earth.kmlsync.WindowCommands;
+
+import interactivespaces.util.data.json.JsonNavigator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying a window assets message's "commands" array, as for JSON commands
+ * from ROS, the websocket, and the batch resource.
+ *
+ * Invocations alternate between a batch adding assets to each Window and a
+ * batch deleting them again, so the store stays the same size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WindowCommandsBenchmark {
+  @Param({ "1", "7", "32" })
+  int windows;
+
+  @Param({ "10", "100", "1000" })
+  int assetsPerWindow;
+
+  /**
+   * Commands per batch, spread over the Windows.
+   */
+  @Param({ "1", "10", "100" })
+  int commands;
+
+  private WindowCommands windowCommands;
+  private Map<String, Object> addMessage;
+  private Map<String, Object> deleteMessage;
+  private boolean add;
+
+  @Setup
+  public void setUp() {
+    WindowAssetStore store = BenchmarkFixtures.store(windows, assetsPerWindow);
+    store.addListener(new UpdateResponseCache(1024));
+    windowCommands = new WindowCommands(store, new SyncLog(new NoOpLog()));
+
+    List<Object> adds = Lists.newArrayList();
+    List<Object> deletes = Lists.newArrayList();
+    for (int i = 0; i < commands; i++) {
+      int w = i % windows;
+      Map<String, Object> asset = BenchmarkFixtures.asset(w, assetsPerWindow + i);
+      adds.add(command("add", w, "asset", asset));
+      deletes.add(command("delete", w, "asset_slug", asset.get("slug")));
+    }
+    addMessage = Maps.newHashMap();
+    addMessage.put("commands", adds);
+    deleteMessage = Maps.newHashMap();
+    deleteMessage.put("commands", deletes);
+  }
+
+  @Benchmark
+  public WindowCommands.Results applyCommands() {
+    add = !add;
+    JsonNavigator message = new JsonNavigator(add ? addMessage : deleteMessage);
+    message.down("commands");
+    return windowCommands.applyCommands(message);
+  }
+
+  private static Map<String, Object> command(String command, int window, String key, Object value) {
+    Map<String, Object> m = Maps.newHashMap();
+    m.put("command", command);
+    m.put("window_slug", BenchmarkFixtures.windowSlug(window));
+    m.put(key, value);
+    return m;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.loadgen;
+
+import java.util.Arrays;
+
+/**
+ * Durations recorded by one thread, kept in full so percentiles are exact.
+ * Merge each thread's samples once the run is over.
+ */
+public class LatencySamples {
+  private long[] nanos = new long[1024];
+  private int count;
+
+  public void record(long duration) {
+    if (count == nanos.length) {
+      nanos = Arrays.copyOf(nanos, count * 2);
+    }
+    nanos[count++] = duration;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Adds another thread's samples to these.
+   */
+  public void addAll(LatencySamples other) {
+    for (int i = 0; i < other.count; i++) {
+      record(other.nanos[i]);
+    }
+  }
+
+  /**
+   * Returns the duration, in microseconds, that the given fraction of samples
+   * are at or under, or 0 if there are none. Sorts the samples.
+   *
+   * @param fraction
+   *          between 0 and 1, e.g. 0.99
+   */
+  public long getPercentileMicros(double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    Arrays.sort(nanos, 0, count);
+    int index = (int) Math.ceil(count * fraction) - 1;
+    return nanos[Math.min(Math.max(index, 0), count - 1)] / 1000;
+  }
+
+  /**
+   * Summarizes the samples as one line, in milliseconds.
+   */
+  public String summary() {
+    return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms", count,
+        getPercentileMicros(0.50) / 1000.0, getPercentileMicros(0.90) / 1000.0,
+        getPercentileMicros(0.99) / 1000.0, getPercentileMicros(0.999) / 1000.0,
+        getPercentileMicros(1.0) / 1000.0);
+  }
+}
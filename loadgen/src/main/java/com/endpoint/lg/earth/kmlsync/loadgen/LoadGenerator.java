@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.loadgen;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a fleet of {@link VirtualEarthClient}s against a kmlsync activity,
+ * changes the scene on a schedule with a {@link SceneDriver}, and reports
+ * throughput, poll latency, and how long each scene took to reach every
+ * client.
+ *
+ * Options are given as --name=value; see {@link #usage()}.
+ */
+public class LoadGenerator {
+  private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+  static {
+    DEFAULTS.put("url", "http://localhost:9000");
+    DEFAULTS.put("updatePath", "/network_link_update.kml");
+    DEFAULTS.put("batchPath", "/batch.json");
+    DEFAULTS.put("clients", "7");
+    DEFAULTS.put("windows", "0");
+    DEFAULTS.put("assets", "20");
+    DEFAULTS.put("refresh", "1000");
+    DEFAULTS.put("sceneInterval", "10000");
+    DEFAULTS.put("duration", "60");
+    DEFAULTS.put("timeout", "60000");
+    DEFAULTS.put("compression", "false");
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals == -1 || !DEFAULTS.containsKey(arg.substring(2, equals))) {
+        System.err.println("Unknown option " + arg);
+        System.err.println(usage());
+        System.exit(1);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+
+    String url = options.get("url");
+    int clientCount = Integer.parseInt(options.get("clients"));
+    int windowCount = Integer.parseInt(options.get("windows"));
+    if (windowCount <= 0) {
+      windowCount = clientCount;
+    }
+    int timeoutMillis = Integer.parseInt(options.get("timeout"));
+    long sceneIntervalMillis = Long.parseLong(options.get("sceneInterval"));
+    long durationMillis = Long.parseLong(options.get("duration")) * 1000;
+
+    List<String> windowSlugs = new ArrayList<String>();
+    for (int i = 0; i < windowCount; i++) {
+      windowSlugs.add("loadgen-" + i);
+    }
+    SceneDriver driver = new SceneDriver(new URL(url + options.get("batchPath")), windowSlugs,
+        Integer.parseInt(options.get("assets")), timeoutMillis);
+
+    // Clients share Windows round robin when there are more clients than Windows
+    List<VirtualEarthClient> clients = new ArrayList<VirtualEarthClient>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < clientCount; i++) {
+      VirtualEarthClient client = new VirtualEarthClient(windowSlugs.get(i % windowCount),
+          url + options.get("updatePath"), driver, Long.parseLong(options.get("refresh")), timeoutMillis,
+          Boolean.parseBoolean(options.get("compression")));
+      Thread thread = new Thread(client, "loadgen-client-" + i);
+      thread.setDaemon(true);
+      clients.add(client);
+      threads.add(thread);
+    }
+
+    System.out.println("Running " + clientCount + " clients on " + windowCount + " windows against " + url
+        + " for " + durationMillis / 1000 + " s");
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    // Each scene gets a full interval to converge; the run ends with whatever
+    // time is left after the last one.
+    long end = start + durationMillis * 1000000;
+    long nextScene = start;
+    do {
+      report(driver.getCurrent(), clientCount);
+      driver.next();
+      nextScene += sceneIntervalMillis * 1000000;
+      sleepUntil(nextScene);
+    } while (nextScene + sceneIntervalMillis * 1000000 <= end);
+    sleepUntil(end);
+    report(driver.getCurrent(), clientCount);
+
+    for (VirtualEarthClient client : clients) {
+      client.stop();
+    }
+    for (Thread thread : threads) {
+      thread.interrupt();
+      thread.join(timeoutMillis);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    LatencySamples latency = new LatencySamples();
+    long requests = 0;
+    long errors = 0;
+    long bytes = 0;
+    long creates = 0;
+    long deletes = 0;
+    for (VirtualEarthClient client : clients) {
+      latency.addAll(client.getLatency());
+      requests += client.getRequests();
+      errors += client.getErrors();
+      bytes += client.getBytes();
+      creates += client.getCreates();
+      deletes += client.getDeletes();
+    }
+
+    LatencySamples convergence = new LatencySamples();
+    int scenes = 0;
+    int unconverged = 0;
+    for (SceneDriver.Scene scene : driver.getScenes()) {
+      scenes++;
+      convergence.addAll(scene.getConvergence());
+      unconverged += clientCount - scene.getConverged();
+    }
+
+    System.out.println();
+    System.out.println(String.format("requests   %d in %.1f s, %.1f/s, %d errors", requests, seconds,
+        requests / seconds, errors));
+    System.out.println(String.format("bytes      %d, %.1f KB/s", bytes, bytes / seconds / 1024));
+    System.out.println("changes    " + creates + " creates, " + deletes + " deletes");
+    System.out.println("latency    " + latency.summary());
+    System.out.println("scenes     " + scenes + ", " + unconverged + " client scene changes never converged");
+    System.out.println("converge   " + convergence.summary());
+  }
+
+  private static void sleepUntil(long nanoTime) throws InterruptedException {
+    long sleepMillis = (nanoTime - System.nanoTime()) / 1000000;
+    if (sleepMillis > 0) {
+      Thread.sleep(sleepMillis);
+    }
+  }
+
+  /**
+   * Prints how far the given scene got before the next one replaces it.
+   */
+  private static void report(SceneDriver.Scene scene, int clientCount) {
+    if (scene != null) {
+      LatencySamples convergence = scene.getConvergence();
+      System.out.println(String.format("scene %d: %d/%d clients converged, slowest %.1f ms", scene.getNumber(),
+          scene.getConverged(), clientCount, convergence.getPercentileMicros(1.0) / 1000.0));
+    }
+  }
+
+  private static String usage() {
+    return "Options, with their defaults:\n"
+        + "  --url=" + DEFAULTS.get("url") + "  the activity's web server\n"
+        + "  --updatePath=" + DEFAULTS.get("updatePath") + "\n"
+        + "  --batchPath=" + DEFAULTS.get("batchPath") + "\n"
+        + "  --clients=" + DEFAULTS.get("clients") + "  simulated Earth clients\n"
+        + "  --windows=" + DEFAULTS.get("windows") + "  window slugs they share; 0 gives each client its own\n"
+        + "  --assets=" + DEFAULTS.get("assets") + "  assets per window in each scene\n"
+        + "  --refresh=" + DEFAULTS.get("refresh") + "  each client's refresh interval, in ms\n"
+        + "  --sceneInterval=" + DEFAULTS.get("sceneInterval") + "  ms between scene changes\n"
+        + "  --duration=" + DEFAULTS.get("duration") + "  seconds to run\n"
+        + "  --timeout=" + DEFAULTS.get("timeout") + "  connect and read timeout, in ms; longer than any long poll\n"
+        + "  --compression=" + DEFAULTS.get("compression") + "  ask for gzip or deflate responses";
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Changes every Window's assets at once, as a director scene would, by
+ * posting one batch of commands to the activity's batch resource. Each scene
+ * keeps half of the previous scene's assets on each Window and replaces the
+ * rest, so clients see both creates and deletes.
+ */
+public class SceneDriver {
+  /**
+   * One scene: what each Window should end up with, and how long each client
+   * took to get there.
+   */
+  public static final class Scene {
+    private final int number;
+    private final Map<String, Set<String>> expected;
+    private final long startNanos;
+    private final AtomicInteger converged = new AtomicInteger();
+    private final LatencySamples convergence = new LatencySamples();
+
+    private Scene(int number, Map<String, Set<String>> expected) {
+      this.number = number;
+      this.expected = expected;
+      this.startNanos = System.nanoTime();
+    }
+
+    public int getNumber() {
+      return number;
+    }
+
+    /**
+     * Asset slugs the Window should have once the scene is applied.
+     */
+    public Set<String> getExpected(String windowSlug) {
+      Set<String> slugs = expected.get(windowSlug);
+      return slugs == null ? Collections.<String>emptySet() : slugs;
+    }
+
+    /**
+     * Records that a client has every asset this scene gives its Window.
+     */
+    public void converged() {
+      long nanos = System.nanoTime() - startNanos;
+      converged.incrementAndGet();
+      synchronized (convergence) {
+        convergence.record(nanos);
+      }
+    }
+
+    public int getConverged() {
+      return converged.get();
+    }
+
+    public LatencySamples getConvergence() {
+      synchronized (convergence) {
+        LatencySamples copy = new LatencySamples();
+        copy.addAll(convergence);
+        return copy;
+      }
+    }
+  }
+
+  private final URL batchUrl;
+  private final List<String> windowSlugs;
+  private final int assetsPerWindow;
+  private final int timeoutMillis;
+
+  private volatile Scene current;
+  private final List<Scene> scenes = Collections.synchronizedList(new ArrayList<Scene>());
+
+  public SceneDriver(URL batchUrl, List<String> windowSlugs, int assetsPerWindow, int timeoutMillis) {
+    this.batchUrl = batchUrl;
+    this.windowSlugs = windowSlugs;
+    this.assetsPerWindow = assetsPerWindow;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * The scene most recently sent, or null before the first.
+   */
+  public Scene getCurrent() {
+    return current;
+  }
+
+  /**
+   * Every scene sent so far, oldest first.
+   */
+  public List<Scene> getScenes() {
+    synchronized (scenes) {
+      return new ArrayList<Scene>(scenes);
+    }
+  }
+
+  /**
+   * Builds the next scene and posts it. Clients are told about the scene
+   * before it's posted, so none can get there first unnoticed.
+   */
+  public Scene next() throws IOException {
+    int number = scenes.size() + 1;
+    Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+    StringBuilder body = new StringBuilder("{\"commands\": [");
+    boolean first = true;
+    for (String windowSlug : windowSlugs) {
+      Set<String> slugs = new LinkedHashSet<String>();
+      first = command(body, first, "clear", windowSlug, null);
+      for (int i = 0; i < assetsPerWindow; i++) {
+        String slug = windowSlug + "-asset-" + (number * assetsPerWindow / 2 + i);
+        slugs.add(slug);
+        first = command(body, first, "add", windowSlug, slug);
+      }
+      expected.put(windowSlug, Collections.unmodifiableSet(slugs));
+    }
+    body.append("]}");
+
+    Scene scene = new Scene(number, expected);
+    scenes.add(scene);
+    current = scene;
+    post(body.toString());
+    return scene;
+  }
+
+  private static boolean command(StringBuilder body, boolean first, String command, String windowSlug,
+      String assetSlug) {
+    if (!first) {
+      body.append(", ");
+    }
+    body.append("{\"command\": ").append(quote(command)).append(", \"window_slug\": ").append(quote(windowSlug));
+    if (assetSlug != null) {
+      body.append(", \"asset\": {\"slug\": ").append(quote(assetSlug))
+          .append(", \"title\": ").append(quote(assetSlug))
+          .append(", \"storage\": ").append(quote("http://localhost/loadgen/" + assetSlug + ".kml"))
+          .append("}");
+    }
+    body.append("}");
+    return false;
+  }
+
+  private void post(String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) batchUrl.openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "application/json");
+    connection.setDoOutput(true);
+    OutputStream out = connection.getOutputStream();
+    try {
+      out.write(body.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    int code = connection.getResponseCode();
+    InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    if (in != null) {
+      try {
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+          response.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    if (code != 200) {
+      throw new IOException("Batch POST to " + batchUrl + " failed: " + code + " " + response.toString("UTF-8"));
+    }
+  }
+
+  /**
+   * Quotes a String for JSON.
+   */
+  static String quote(String s) {
+    StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
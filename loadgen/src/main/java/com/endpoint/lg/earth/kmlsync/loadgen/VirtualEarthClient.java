@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * One simulated Google Earth Window: polls the update resource the way its
+ * NetworkLink would, with its window_slug and the cookie from the last
+ * response appended to the query, and applies each response's Creates and
+ * Deletes to the set of NetworkLinks it has loaded.
+ *
+ * Like Earth, it polls every refresh interval, but no more often than the
+ * response's minRefreshPeriod allows.
+ */
+public class VirtualEarthClient implements Runnable {
+  private static final Pattern COOKIE = Pattern.compile("<cookie><!\\[CDATA\\[(.*?)\\]\\]></cookie>");
+  private static final Pattern MIN_REFRESH_PERIOD = Pattern.compile("<minRefreshPeriod>([0-9.]+)</minRefreshPeriod>");
+  private static final Pattern SECTION = Pattern.compile("<(Create|Delete)>(.*?)</\\1>", Pattern.DOTALL);
+  private static final Pattern CREATED_LINK = Pattern.compile("<NetworkLink id=\"([^\"]*)\"");
+  private static final Pattern DELETED_LINK = Pattern.compile("<NetworkLink targetId=\"([^\"]*)\"");
+  private static final Pattern DELETED_FOLDER = Pattern.compile("<Folder targetId=\"([^\"]*)\"");
+
+  private final String windowSlug;
+  private final String updateUrl;
+  private final SceneDriver driver;
+  private final long refreshIntervalMillis;
+  private final int timeoutMillis;
+  private final boolean compression;
+
+  private final Set<String> loaded = new HashSet<String>();
+  private String cookie = "";
+  private int lastConverged;
+
+  private final LatencySamples latency = new LatencySamples();
+  private long requests;
+  private long errors;
+  private long bytes;
+  private long creates;
+  private long deletes;
+
+  private volatile boolean running = true;
+
+  /**
+   * @param updateUrl
+   *          the update resource, without a query
+   * @param refreshIntervalMillis
+   *          how often the NetworkLink refreshes
+   * @param compression
+   *          whether to ask for gzip or deflate responses
+   */
+  public VirtualEarthClient(String windowSlug, String updateUrl, SceneDriver driver, long refreshIntervalMillis,
+      int timeoutMillis, boolean compression) {
+    this.windowSlug = windowSlug;
+    this.updateUrl = updateUrl;
+    this.driver = driver;
+    this.refreshIntervalMillis = refreshIntervalMillis;
+    this.timeoutMillis = timeoutMillis;
+    this.compression = compression;
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      long minRefreshMillis = 0;
+      long start = System.nanoTime();
+      try {
+        String response = poll();
+        latency.record(System.nanoTime() - start);
+        minRefreshMillis = apply(response);
+        checkConverged();
+      } catch (IOException e) {
+        errors++;
+      }
+      requests++;
+
+      long elapsedMillis = (System.nanoTime() - start) / 1000000;
+      long waitMillis = Math.max(refreshIntervalMillis, minRefreshMillis) - elapsedMillis;
+      if (waitMillis > 0) {
+        try {
+          Thread.sleep(waitMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  private String poll() throws IOException {
+    StringBuilder url = new StringBuilder(updateUrl).append("?window_slug=")
+        .append(URLEncoder.encode(windowSlug, "UTF-8"));
+    if (cookie.length() > 0) {
+      url.append('&').append(cookie);
+    }
+    HttpURLConnection connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    connection.setUseCaches(false);
+    if (compression) {
+      connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    }
+    int code = connection.getResponseCode();
+    if (code != 200) {
+      drain(connection.getErrorStream());
+      throw new IOException("Update request failed: " + code);
+    }
+
+    InputStream in = connection.getInputStream();
+    String encoding = connection.getContentEncoding();
+    if ("gzip".equals(encoding)) {
+      in = new GZIPInputStream(in);
+    } else if ("deflate".equals(encoding)) {
+      in = new InflaterInputStream(in);
+    }
+    return new String(drain(in), "UTF-8");
+  }
+
+  /**
+   * Reads the stream to its end and closes it, so the connection can be
+   * kept alive.
+   */
+  private byte[] drain(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    if (in != null) {
+      try {
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+          body.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    bytes += body.size();
+    return body.toByteArray();
+  }
+
+  /**
+   * Applies an update response, in document order, and keeps its cookie.
+   * Returns the minRefreshPeriod it asked for, in milliseconds.
+   */
+  long apply(String response) {
+    Matcher cookieMatch = COOKIE.matcher(response);
+    if (cookieMatch.find()) {
+      cookie = cookieMatch.group(1);
+    }
+
+    Matcher sections = SECTION.matcher(response);
+    while (sections.find()) {
+      String body = sections.group(2);
+      if (sections.group(1).equals("Create")) {
+        Matcher links = CREATED_LINK.matcher(body);
+        while (links.find()) {
+          loaded.add(unescape(links.group(1)));
+          creates++;
+        }
+      } else {
+        Matcher links = DELETED_LINK.matcher(body);
+        while (links.find()) {
+          loaded.remove(unescape(links.group(1)));
+          deletes++;
+        }
+        // Every NetworkLink lives in the one asset Folder, when there is one
+        if (DELETED_FOLDER.matcher(body).find()) {
+          deletes += loaded.size();
+          loaded.clear();
+        }
+      }
+    }
+
+    Matcher period = MIN_REFRESH_PERIOD.matcher(response);
+    return period.find() ? (long) (Double.parseDouble(period.group(1)) * 1000) : 0;
+  }
+
+  private void checkConverged() {
+    SceneDriver.Scene scene = driver.getCurrent();
+    if (scene != null && scene.getNumber() != lastConverged && loaded.equals(scene.getExpected(windowSlug))) {
+      lastConverged = scene.getNumber();
+      scene.converged();
+    }
+  }
+
+  private static String unescape(String s) {
+    if (s.indexOf('&') == -1) {
+      return s;
+    }
+    return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+        .replace("&amp;", "&");
+  }
+
+  public String getWindowSlug() {
+    return windowSlug;
+  }
+
+  /**
+   * The following are only safe to read once the client's thread has ended.
+   */
+  public LatencySamples getLatency() {
+    return latency;
+  }
+
+  public long getRequests() {
+    return requests;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getCreates() {
+    return creates;
+  }
+
+  public long getDeletes() {
+    return deletes;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One asset a Window should show: an immutable Map with "slug", "title", and
+ * "storage" keys, holding only those three Strings.
+ *
+ * Assets are interned, so the same asset on many Windows, or in many scenes,
+ * is one object. Each carries its content hash and its fields already escaped
+ * for KML, so rendering and diffing never look anything up by key.
+ */
+public final class Asset extends AbstractMap<String, Object> {
+  public static final String SLUG = "slug";
+  public static final String TITLE = "title";
+  public static final String STORAGE = "storage";
+
+  /**
+   * Every asset in use, held weakly so assets no Window has any more can go.
+   */
+  private static final Interner<Asset> ASSETS = Interners.newWeakInterner();
+
+  /**
+   * Slugs, titles, and storage URLs in use, which often repeat across assets.
+   */
+  private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+  private final String slug;
+  private final String title;
+  private final String storage;
+  private final String contentHash;
+  private final String escapedSlug;
+  private final String escapedTitle;
+  private final String escapedStorage;
+  private final int hash;
+
+  private Asset(String slug, String title, String storage) {
+    this.slug = slug;
+    this.title = title;
+    this.storage = storage;
+    this.contentHash = WindowState.contentHash(this);
+    this.escapedSlug = slug == null ? "" : KmlWriter.escapeAttribute(slug);
+    this.escapedTitle = title == null ? "" : KmlWriter.escapeText(title);
+    this.escapedStorage = storage == null ? "" : KmlWriter.escapeText(storage);
+    // As Map.hashCode() requires, so Assets and other Maps can be compared
+    this.hash = entryHash(SLUG, slug) + entryHash(TITLE, title) + entryHash(STORAGE, storage);
+  }
+
+  /**
+   * Returns the shared asset with this slug, title, and storage URL.
+   */
+  public static Asset of(String slug, String title, String storage) {
+    return ASSETS.intern(new Asset(intern(slug), intern(title), intern(storage)));
+  }
+
+  /**
+   * Returns the shared asset with the given Map's "slug", "title", and
+   * "storage" values, or the Map itself if it's already an Asset. Other keys
+   * are dropped.
+   */
+  public static Asset of(Map<String, Object> asset) {
+    if (asset instanceof Asset) {
+      return (Asset) asset;
+    }
+    return of(string(asset.get(SLUG)), string(asset.get(TITLE)), string(asset.get(STORAGE)));
+  }
+
+  public String getSlug() {
+    return slug;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getStorage() {
+    return storage;
+  }
+
+  /**
+   * {@link WindowState#contentHash(Map)} of this asset.
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * The slug, escaped for a KML attribute value.
+   */
+  public String getEscapedSlug() {
+    return escapedSlug;
+  }
+
+  /**
+   * The title, escaped for KML text content.
+   */
+  public String getEscapedTitle() {
+    return escapedTitle;
+  }
+
+  /**
+   * The storage URL, escaped for KML text content.
+   */
+  public String getEscapedStorage() {
+    return escapedStorage;
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (SLUG.equals(key)) {
+      return slug;
+    } else if (TITLE.equals(key)) {
+      return title;
+    } else if (STORAGE.equals(key)) {
+      return storage;
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return (slug != null ? 1 : 0) + (title != null ? 1 : 0) + (storage != null ? 1 : 0);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    ImmutableSet.Builder<Map.Entry<String, Object>> entries = ImmutableSet.builder();
+    if (slug != null) {
+      entries.add(new SimpleImmutableEntry<String, Object>(SLUG, slug));
+    }
+    if (title != null) {
+      entries.add(new SimpleImmutableEntry<String, Object>(TITLE, title));
+    }
+    if (storage != null) {
+      entries.add(new SimpleImmutableEntry<String, Object>(STORAGE, storage));
+    }
+    return entries.build();
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (o instanceof Asset) {
+      Asset other = (Asset) o;
+      return hash == other.hash && Objects.equal(slug, other.slug) && Objects.equal(title, other.title)
+          && Objects.equal(storage, other.storage);
+    }
+    return super.equals(o);
+  }
+
+  private static int entryHash(String key, String value) {
+    return value == null ? 0 : key.hashCode() ^ value.hashCode();
+  }
+
+  private static String string(Object value) {
+    return value == null ? null : value.toString();
+  }
+
+  private static String intern(String s) {
+    return s == null ? null : STRINGS.intern(s);
+  }
+}
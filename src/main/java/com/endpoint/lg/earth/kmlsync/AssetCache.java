@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.logging.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A caching proxy for asset files, so a wall of Google Earth Windows showing
+ * the same asset fetches it from its origin once rather than once per Window.
+ *
+ * Assets are fetched as soon as a Window is given them, and kept on disk up to
+ * a total size, evicting the least recently used. Windows are pointed at the
+ * proxy by rewriting each asset's storage URL into a path under the proxy's
+ * base URL that keeps the origin's path, so links relative to the asset still
+ * resolve to the proxy. Only origins some asset came from are proxied; other
+ * requests get null, for the caller to redirect.
+ */
+public class AssetCache implements WindowAssetStore.Listener {
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 30000;
+  private static final long FETCH_WAIT_MILLIS = 30000;
+
+  /**
+   * A cached asset file.
+   */
+  public static final class Entry {
+    private final File file;
+    private final long length;
+    private final String contentType;
+    private final long fetchedMillis;
+
+    private Entry(File file, long length, String contentType, long fetchedMillis) {
+      this.file = file;
+      this.length = length;
+      this.contentType = contentType;
+      this.fetchedMillis = fetchedMillis;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * The Content-Type the origin sent, or null.
+     */
+    public String getContentType() {
+      return contentType;
+    }
+  }
+
+  private final File directory;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  private final String proxyBaseUrl;
+  private final Log log;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(2,
+      new ThreadFactoryBuilder().setNameFormat("kmlsync-asset-prefetch-%d").setDaemon(true).build());
+
+  /**
+   * Cached entries, least recently used first. Guarded by this.
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private long totalBytes;
+
+  private final ConcurrentMap<String, Future<Entry>> fetching = new ConcurrentHashMap<String, Future<Entry>>();
+  private final Set<String> origins = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final AtomicLong fileSequence = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong fetchFailures = new AtomicLong();
+
+  /**
+   * @param directory
+   *          where to keep cached files; anything already there is deleted
+   * @param maxBytes
+   *          most bytes of files to keep
+   * @param maxAgeMillis
+   *          how long a file is served before being fetched again
+   * @param proxyBaseUrl
+   *          the URL Windows reach the proxy handler at, without a trailing
+   *          slash
+   */
+  public AssetCache(File directory, long maxBytes, long maxAgeMillis, String proxyBaseUrl, Log log) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.proxyBaseUrl = proxyBaseUrl;
+    this.log = log;
+
+    directory.mkdirs();
+    File[] stale = directory.listFiles();
+    if (stale != null) {
+      for (File file : stale) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the proxy URL for an asset's storage URL, or the storage URL
+   * itself if it can't be proxied.
+   */
+  public String rewrite(String storage) {
+    URI uri = httpUri(storage);
+    if (uri == null) {
+      return storage;
+    }
+    StringBuilder proxied = new StringBuilder(proxyBaseUrl);
+    proxied.append('/').append(uri.getScheme().toLowerCase()).append('/').append(uri.getRawAuthority());
+    proxied.append(uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath());
+    if (uri.getRawQuery() != null) {
+      proxied.append('?').append(uri.getRawQuery());
+    }
+    return proxied.toString();
+  }
+
+  /**
+   * Turns the part of a proxy URL after the base back into the origin URL, or
+   * returns null if it isn't one.
+   *
+   * @param rawPath
+   *          e.g. "/http/example.com/layers/a.kml"
+   */
+  public static String originUrl(String rawPath, String rawQuery) {
+    if (rawPath == null || !rawPath.startsWith("/")) {
+      return null;
+    }
+    int schemeEnd = rawPath.indexOf('/', 1);
+    if (schemeEnd == -1) {
+      return null;
+    }
+    String scheme = rawPath.substring(1, schemeEnd);
+    if (!scheme.equals("http") && !scheme.equals("https")) {
+      return null;
+    }
+    String url = scheme + "://" + rawPath.substring(schemeEnd + 1);
+    return rawQuery == null ? url : url + "?" + rawQuery;
+  }
+
+  /**
+   * Returns the cached file for a URL, fetching it first if need be. Returns
+   * null if the URL's origin isn't proxied, or it couldn't be fetched.
+   */
+  public Entry get(String url) {
+    Entry entry = lookup(url);
+    if (entry != null) {
+      hits.incrementAndGet();
+      return entry;
+    }
+    URI uri = httpUri(url);
+    if (uri == null || !origins.contains(origin(uri))) {
+      return null;
+    }
+
+    misses.incrementAndGet();
+    try {
+      return fetch(url).get(FETCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.warn("Couldn't fetch asset " + url + ": " + e.getCause());
+    } catch (TimeoutException e) {
+      log.warn("Timed out fetching asset " + url);
+    } catch (RejectedExecutionException e) {
+      log.warn("Asset cache is shut down; not fetching " + url);
+    }
+    return null;
+  }
+
+  /**
+   * Starts fetching the storage URL of every asset a Window was given that
+   * isn't cached yet.
+   */
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    for (WindowState state : changed.values()) {
+      for (Map<String, Object> asset : state.getAssets()) {
+        Object storage = asset.get("storage");
+        URI uri = storage == null ? null : httpUri(storage.toString());
+        if (uri != null) {
+          origins.add(origin(uri));
+          prefetch(storage.toString());
+        }
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getFetches() {
+    return fetches.get();
+  }
+
+  public long getFetchFailures() {
+    return fetchFailures.get();
+  }
+
+  public synchronized long getBytes() {
+    return totalBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Stops fetching, and deletes the cached files.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      for (Entry entry : entries.values()) {
+        entry.file.delete();
+      }
+      entries.clear();
+      totalBytes = 0;
+    }
+  }
+
+  private void prefetch(String url) {
+    synchronized (this) {
+      Entry entry = entries.get(url);
+      if (entry != null && !isExpired(entry)) {
+        return;
+      }
+    }
+    try {
+      fetch(url);
+    } catch (RejectedExecutionException e) {
+      // Shutting down
+    }
+  }
+
+  /**
+   * Returns the fetch of a URL already under way, or starts one.
+   */
+  private Future<Entry> fetch(final String url) {
+    FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+      @Override
+      public Entry call() throws IOException {
+        return download(url);
+      }
+    }) {
+      @Override
+      protected void done() {
+        fetching.remove(url, this);
+      }
+    };
+    Future<Entry> existing = fetching.putIfAbsent(url, task);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      fetching.remove(url, task);
+      throw e;
+    }
+    return task;
+  }
+
+  private Entry download(String url) throws IOException {
+    fetches.incrementAndGet();
+    File file = new File(directory, "asset-" + fileSequence.incrementAndGet());
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      int code = connection.getResponseCode();
+      if (code != HttpURLConnection.HTTP_OK) {
+        throw new IOException("HTTP " + code);
+      }
+
+      long length = 0;
+      InputStream in = connection.getInputStream();
+      OutputStream out = new FileOutputStream(file);
+      try {
+        byte[] buf = new byte[8192];
+        int c;
+        while ((c = in.read(buf)) > 0) {
+          length += c;
+          if (length > maxBytes) {
+            throw new IOException("larger than the whole cache");
+          }
+          out.write(buf, 0, c);
+        }
+      } finally {
+        out.close();
+        in.close();
+      }
+
+      Entry entry = new Entry(file, length, connection.getContentType(), System.currentTimeMillis());
+      put(url, entry);
+      return entry;
+    } catch (IOException e) {
+      fetchFailures.incrementAndGet();
+      file.delete();
+      throw e;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private synchronized Entry lookup(String url) {
+    Entry entry = entries.get(url);
+    if (entry != null && isExpired(entry)) {
+      return null;
+    }
+    return entry;
+  }
+
+  private synchronized void put(String url, Entry entry) {
+    Entry previous = entries.put(url, entry);
+    if (previous != null) {
+      totalBytes -= previous.length;
+      previous.file.delete();
+    }
+    totalBytes += entry.length;
+
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      Entry evicted = eldest.next().getValue();
+      if (evicted == entry) {
+        continue;
+      }
+      eldest.remove();
+      totalBytes -= evicted.length;
+      evicted.file.delete();
+    }
+  }
+
+  private boolean isExpired(Entry entry) {
+    return maxAgeMillis > 0 && System.currentTimeMillis() - entry.fetchedMillis > maxAgeMillis;
+  }
+
+  private static URI httpUri(String url) {
+    try {
+      URI uri = new URI(url);
+      String scheme = uri.getScheme();
+      if (("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) && uri.getRawAuthority() != null) {
+        return uri;
+      }
+    } catch (URISyntaxException e) {
+      // Not a URL we can proxy
+    }
+    return null;
+  }
+
+  private static String origin(URI uri) {
+    return uri.getScheme().toLowerCase() + "://" + uri.getRawAuthority().toLowerCase();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The NetworkLinks to create, delete, and change to bring a Window from one
+ * set of assets to another. Computed in linear time with hashed slug lookups.
+ *
+ * Each slug appears at most once in each list, since a slug is the ID of the
+ * NetworkLink in Google Earth. Creates and changes are in the order of the
+ * target assets, and deletes in the order of the source slugs.
+ */
+public final class AssetDiff {
+  private final List<Map<String, Object>> creates;
+  private final List<String> deletes;
+  private final List<Map<String, Object>> changes;
+
+  private AssetDiff(List<Map<String, Object>> creates, List<String> deletes, List<Map<String, Object>> changes) {
+    this.creates = Collections.unmodifiableList(creates);
+    this.deletes = Collections.unmodifiableList(deletes);
+    this.changes = Collections.unmodifiableList(changes);
+  }
+
+  /**
+   * Compares the slugs a client reports having loaded with the state of its
+   * Window. Without content hashes from the client, no changes are found.
+   */
+  public static AssetDiff between(List<String> clientAssetSlugs, WindowState state) {
+    return between(clientAssetSlugs, Collections.<String>emptyList(), state);
+  }
+
+  /**
+   * Compares the slugs a client reports having loaded, and the content hash
+   * of each, with the state of its Window. Assets the client has whose hash
+   * differs from the Window's are reported as changes.
+   *
+   * @param clientAssetHashes
+   *          one {@link WindowState#contentHash(Map)} per client slug, or an
+   *          empty list if the client didn't report them
+   */
+  public static AssetDiff between(List<String> clientAssetSlugs, List<String> clientAssetHashes,
+      WindowState state) {
+    List<Map<String, Object>> serverAssets = state.getAssets();
+    List<String> serverAssetSlugs = state.getAssetSlugs();
+    boolean hashed = !clientAssetHashes.isEmpty() && clientAssetHashes.size() == clientAssetSlugs.size();
+
+    // The hash of the first copy of each slug is the one the client shows
+    Map<String, String> clientHashes = null;
+    Set<String> clientSlugSet;
+    if (hashed) {
+      clientHashes = Maps.newHashMapWithExpectedSize(clientAssetSlugs.size());
+      for (int i = 0; i < clientAssetSlugs.size(); i++) {
+        if (!clientHashes.containsKey(clientAssetSlugs.get(i))) {
+          clientHashes.put(clientAssetSlugs.get(i), clientAssetHashes.get(i));
+        }
+      }
+      clientSlugSet = clientHashes.keySet();
+    } else {
+      clientSlugSet = Sets.newHashSetWithExpectedSize(clientAssetSlugs.size());
+      clientSlugSet.addAll(clientAssetSlugs);
+    }
+
+    List<String> deletes = new ArrayList<String>();
+    Set<String> deleted = null;
+    for (String slug : clientAssetSlugs) {
+      if (!state.containsAssetSlug(slug)) {
+        if (deleted == null) {
+          deleted = Sets.newHashSet();
+        }
+        if (deleted.add(slug)) {
+          deletes.add(slug);
+        }
+      }
+    }
+
+    List<Map<String, Object>> creates = new ArrayList<Map<String, Object>>();
+    List<Map<String, Object>> changes = new ArrayList<Map<String, Object>>();
+    Set<String> seen = null;
+    List<String> serverAssetHashes = state.getAssetHashes();
+    for (int i = 0; i < serverAssets.size(); i++) {
+      String slug = serverAssetSlugs.get(i);
+      boolean loaded = clientSlugSet.contains(slug);
+      if (!loaded || hashed) {
+        if (seen == null) {
+          seen = Sets.newHashSet();
+        }
+        if (!seen.add(slug)) {
+          continue;
+        }
+        if (!loaded) {
+          creates.add(serverAssets.get(i));
+        } else if (!serverAssetHashes.get(i).equals(clientHashes.get(slug))) {
+          changes.add(serverAssets.get(i));
+        }
+      }
+    }
+
+    return new AssetDiff(creates, deletes, changes);
+  }
+
+  /**
+   * Compares two lists of assets, such as two versions of a Window's state.
+   * Assets whose slug is in both lists but whose title or storage differ are
+   * reported as changes.
+   */
+  public static AssetDiff between(List<Map<String, Object>> from, List<Map<String, Object>> to) {
+    Map<String, Map<String, Object>> fromBySlug = Maps.newHashMapWithExpectedSize(from.size());
+    // The first asset with each slug is the one a client would have loaded
+    for (Map<String, Object> asset : from) {
+      String slug = slug(asset);
+      if (!fromBySlug.containsKey(slug)) {
+        fromBySlug.put(slug, asset);
+      }
+    }
+
+    Set<String> toSlugs = Sets.newHashSetWithExpectedSize(to.size());
+    List<Map<String, Object>> creates = new ArrayList<Map<String, Object>>();
+    List<Map<String, Object>> changes = new ArrayList<Map<String, Object>>();
+    for (Map<String, Object> asset : to) {
+      String slug = slug(asset);
+      if (!toSlugs.add(slug)) {
+        continue;
+      }
+      Map<String, Object> previous = fromBySlug.get(slug);
+      if (previous == null) {
+        creates.add(asset);
+      } else if (!Asset.of(previous).equals(Asset.of(asset))) {
+        changes.add(asset);
+      }
+    }
+
+    List<String> deletes = new ArrayList<String>();
+    Set<String> deleted = Sets.newHashSet();
+    for (Map<String, Object> asset : from) {
+      String slug = slug(asset);
+      if (!toSlugs.contains(slug) && deleted.add(slug)) {
+        deletes.add(slug);
+      }
+    }
+
+    return new AssetDiff(creates, deletes, changes);
+  }
+
+  /**
+   * Assets to add, as new NetworkLinks.
+   */
+  public List<Map<String, Object>> getCreates() {
+    return creates;
+  }
+
+  /**
+   * Slugs of NetworkLinks to remove.
+   */
+  public List<String> getDeletes() {
+    return deletes;
+  }
+
+  /**
+   * Assets whose existing NetworkLink needs a new title or storage URL.
+   */
+  public List<Map<String, Object>> getChanges() {
+    return changes;
+  }
+
+  public boolean isEmpty() {
+    return creates.isEmpty() && deletes.isEmpty() && changes.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "create " + creates + " delete " + deletes + " change " + changes;
+  }
+
+  private static String slug(Map<String, Object> asset) {
+    return Asset.of(asset).getSlug();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import interactivespaces.service.web.server.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The HTTP content codings responses can be compressed with, and negotiating
+ * one from a request's Accept-Encoding header.
+ */
+public enum ContentCoding {
+  GZIP("gzip") {
+    @Override
+    OutputStream wrap(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out);
+    }
+  },
+  /**
+   * The zlib format, as HTTP's "deflate" means.
+   */
+  DEFLATE("deflate") {
+    @Override
+    OutputStream wrap(OutputStream out) throws IOException {
+      return new DeflaterOutputStream(out);
+    }
+  };
+
+  private final String name;
+
+  private ContentCoding(String name) {
+    this.name = name;
+  }
+
+  /**
+   * The coding's name, as used in Content-Encoding.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Compresses a whole body.
+   */
+  public byte[] encode(byte[] body) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 2 + 32);
+      OutputStream out = wrap(bytes);
+      out.write(body);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Can't happen, writing to memory
+      throw new IllegalStateException(e);
+    }
+  }
+
+  abstract OutputStream wrap(OutputStream out) throws IOException;
+
+  /**
+   * Picks the coding to send a request's response with: gzip if the client
+   * accepts it, otherwise deflate if it accepts that, otherwise null.
+   */
+  public static ContentCoding negotiate(HttpRequest request) {
+    Set<String> acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return null;
+    }
+    if (accepts(acceptEncoding, GZIP.name)) {
+      return GZIP;
+    }
+    if (accepts(acceptEncoding, DEFLATE.name)) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether a request's Accept-Encoding header allows the given
+   * content coding without a zero quality: by name if it's listed, otherwise
+   * by "*".
+   */
+  public static boolean accepts(HttpRequest request, String coding) {
+    Set<String> acceptEncoding = request.getHeader("Accept-Encoding");
+    return acceptEncoding != null && accepts(acceptEncoding, coding);
+  }
+
+  private static boolean accepts(Set<String> acceptEncoding, String coding) {
+    boolean anyAccepted = false;
+    for (String header : acceptEncoding) {
+      for (String candidate : header.split(",")) {
+        String[] parts = candidate.split(";");
+        String name = parts[0].trim();
+        if (name.equalsIgnoreCase(coding)) {
+          return !hasZeroQuality(parts);
+        }
+        if (name.equals("*")) {
+          anyAccepted = !hasZeroQuality(parts);
+        }
+      }
+    }
+    return anyAccepted;
+  }
+
+  private static boolean hasZeroQuality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim();
+      if (param.startsWith("q=") && isZero(param.substring(2))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isZero(String quality) {
+    try {
+      return Double.parseDouble(quality.trim()) == 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+}
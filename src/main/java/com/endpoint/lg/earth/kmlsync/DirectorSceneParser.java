@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.endpoint.lg.support.message.Scene;
+import com.endpoint.lg.support.message.Window;
+
+import interactivespaces.util.data.json.JsonMapper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.logging.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the assets each Window should have from a director scene message.
+ * Only windows for the "earth" activity are considered, and each of their
+ * asset URLs becomes an asset whose title, slug, and storage are all the URL.
+ */
+public class DirectorSceneParser implements SceneIngester.SceneParser {
+  private final Log log;
+
+  public DirectorSceneParser(Log log) {
+    this.log = log;
+  }
+
+  @Override
+  public Map<String, List<Map<String, Object>>> parse(Map<String, Object> message) throws IOException {
+    Scene s = Scene.fromJson(new JsonMapper().toString(message));
+
+    Map<String, List<Map<String, Object>>> scene = Maps.newHashMap();
+    for (Window w : s.windows) {
+      if (w.activity.equals("earth")) {
+        if (log.isDebugEnabled()) {
+          log.debug("Adding assets for window slug " + w.presentation_viewport);
+        }
+        List<Map<String, Object>> assets = scene.get(w.presentation_viewport);
+        if (assets == null) {
+          assets = Lists.newArrayList();
+          scene.put(w.presentation_viewport, assets);
+        }
+        for (String a : w.assets) {
+          assets.add(Asset.of(a, a, a));
+        }
+      }
+    }
+    return scene;
+  }
+}
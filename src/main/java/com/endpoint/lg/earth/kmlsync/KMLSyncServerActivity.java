@@ -20,13 +20,13 @@ package com.endpoint.lg.earth.kmlsync;
 import com.endpoint.lg.support.message.MessageTypes;
 import com.endpoint.lg.support.message.MessageWrapper;
 import com.endpoint.lg.support.message.earthQuery.MessageTypesQuery;
-import com.endpoint.lg.support.message.Scene;
-import com.endpoint.lg.support.message.Window;
 
 import interactivespaces.activity.impl.web.BaseRoutableRosWebServerActivity;
 import interactivespaces.activity.component.web.WebServerActivityComponent;
 import interactivespaces.service.web.HttpResponseCode;
+import interactivespaces.service.web.server.HttpDynamicPostRequestHandler;
 import interactivespaces.service.web.server.HttpDynamicRequestHandler;
+import interactivespaces.service.web.server.HttpPostBody;
 import interactivespaces.service.web.server.HttpRequest;
 import interactivespaces.service.web.server.HttpResponse;
 import interactivespaces.service.web.server.WebServer;
@@ -34,29 +34,27 @@ import interactivespaces.util.data.json.JsonBuilder;
 import interactivespaces.util.data.json.JsonNavigator;
 import interactivespaces.util.data.json.JsonMapper;
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap; // for GET query parsing
-import com.google.common.collect.Lists;
 // http://docs.guava-libraries.googlecode.com/git/javadoc/com/google/common/collect/Maps.html
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.StringBuilder;
 // http://docs.oracle.com/javase/6/docs/api/index.html?java/net/URI.html
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
+import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An Activity to serve KML to Google Earth, and updates from routes.
@@ -65,14 +63,20 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
   private static String WSOCKET_CHANNEL_ID = "__wsocket_connection_id";
 
   /**
-   * A Map whose keys are Window slugs, and whose values are Asset Maps. This
-   * contains the state of which URL's should display on Windows.
+   * Field of a command message's data naming the activity that sent it, so it
+   * can skip its own commands when they come back on the command route.
    */
-  Map<String, List<Map<String, Object>>> windowAssetMap = Maps.newHashMap();
-    /*
-     * Assets are Maps. Each contains three keys: "slug", "title", and
-     * "storage"
-     */
+  private static final String COMMAND_ORIGIN = "kmlsync_origin";
+
+  /**
+   * Least time between checks of index.html for changes.
+   */
+  private static final long INDEX_CHECK_INTERVAL_MILLIS = 1000;
+
+  /**
+   * The state of which URL's should display on Windows, keyed by Window slug.
+   */
+  final WindowAssetStore windowAssetStore = new WindowAssetStore();
 
   /**
    * Configuration parameters containing the route to the KML Update resource.
@@ -87,6 +91,130 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
       "lg.earth.kmlsyncserver.indexPath";
   public static final String CONFIGURATION_PROPERTY_KML_QUERY_PATH =
       "lg.earth.kmlsyncserver.queryPath";
+  public static final String CONFIGURATION_PROPERTY_KML_BATCH_PATH =
+      "lg.earth.kmlsyncserver.batchPath";
+  public static final String KML_BATCH_PATH_DEFAULT = "/batch.json";
+  public static final String CONFIGURATION_PROPERTY_KML_METRICS_PATH =
+      "lg.earth.kmlsyncserver.metricsPath";
+  public static final String KML_METRICS_PATH_DEFAULT = "/metrics.json";
+  /**
+   * Configuration parameter containing the most rendered update responses to
+   * keep cached, over all Windows.
+   */
+  public static final String CONFIGURATION_PROPERTY_RESPONSE_CACHE_SIZE =
+      "lg.earth.kmlsyncserver.responseCacheSize";
+  public static final int RESPONSE_CACHE_SIZE_DEFAULT = 1024;
+  /**
+   * Configuration parameter containing the shortest update response, in
+   * bytes, to send gzip or deflate compressed to Windows that accept it; -1
+   * never compresses.
+   */
+  public static final String CONFIGURATION_PROPERTY_COMPRESSION_MIN_LENGTH =
+      "lg.earth.kmlsyncserver.compressionMinLength";
+  public static final int COMPRESSION_MIN_LENGTH_DEFAULT = 1024;
+  /**
+   * Configuration parameter containing the most scenes to keep staged for
+   * activation.
+   */
+  public static final String CONFIGURATION_PROPERTY_STAGED_SCENE_LIMIT =
+      "lg.earth.kmlsyncserver.stagedSceneLimit";
+  public static final int STAGED_SCENE_LIMIT_DEFAULT = 16;
+  /**
+   * Configuration parameters for adaptive refresh: the longest
+   * minRefreshPeriod, in seconds, to ask an idle Window for (1 keeps every
+   * Window polling each second), and how many milliseconds a Window must stay
+   * the same for each extra second.
+   */
+  public static final String CONFIGURATION_PROPERTY_MAX_REFRESH_PERIOD =
+      "lg.earth.kmlsyncserver.maxRefreshPeriod";
+  public static final String CONFIGURATION_PROPERTY_REFRESH_BACKOFF =
+      "lg.earth.kmlsyncserver.refreshBackoff";
+  public static final int MAX_REFRESH_PERIOD_DEFAULT = 1;
+  /**
+   * Configuration parameter containing how many update requests to answer
+   * for each one logged at debug level.
+   */
+  public static final String CONFIGURATION_PROPERTY_POLL_LOG_SAMPLE =
+      "lg.earth.kmlsyncserver.pollLogSample";
+  public static final int POLL_LOG_SAMPLE_DEFAULT = SyncLog.DEFAULT_SAMPLE_EVERY;
+  public static final long REFRESH_BACKOFF_DEFAULT = 10000;
+  /**
+   * Configuration parameters for what Windows keep in their cookie: "slugs"
+   * for the slug and hash of every asset, or "token" for a short state token,
+   * and how many recent states of each Window a token may name.
+   */
+  public static final String CONFIGURATION_PROPERTY_COOKIE_MODE =
+      "lg.earth.kmlsyncserver.cookieMode";
+  public static final String CONFIGURATION_PROPERTY_TOKEN_HISTORY =
+      "lg.earth.kmlsyncserver.tokenHistory";
+  public static final String COOKIE_MODE_SLUGS = "slugs";
+  public static final String COOKIE_MODE_TOKEN = "token";
+  public static final String COOKIE_MODE_DEFAULT = COOKIE_MODE_SLUGS;
+  public static final int TOKEN_HISTORY_DEFAULT = 16;
+  /**
+   * Configuration parameter containing how many milliseconds of window
+   * changes to collect before pushing them to connected WebSocket clients.
+   */
+  public static final String CONFIGURATION_PROPERTY_WEBSOCKET_PUSH_DELAY =
+      "lg.earth.kmlsyncserver.webSocketPushDelay";
+  public static final long WEBSOCKET_PUSH_DELAY_DEFAULT = 250;
+  /**
+   * Configuration parameters for tracing: whether to record scene messages,
+   * commands, and update polls to a trace file in the activity's permanent
+   * data directory, and how many events may wait to be written before more
+   * are dropped.
+   */
+  public static final String CONFIGURATION_PROPERTY_TRACE =
+      "lg.earth.kmlsyncserver.trace";
+  public static final String CONFIGURATION_PROPERTY_TRACE_QUEUE_SIZE =
+      "lg.earth.kmlsyncserver.traceQueueSize";
+  public static final boolean TRACE_DEFAULT = false;
+  public static final int TRACE_QUEUE_SIZE_DEFAULT = 8192;
+  /**
+   * Configuration parameters for long polling: how many milliseconds an up to
+   * date Window's update request may wait for a change (0 turns long polling
+   * off), and how many requests may wait at once.
+   */
+  public static final String CONFIGURATION_PROPERTY_LONG_POLL_TIMEOUT =
+      "lg.earth.kmlsyncserver.longPollTimeout";
+  public static final String CONFIGURATION_PROPERTY_LONG_POLL_MAX_WAITING =
+      "lg.earth.kmlsyncserver.longPollMaxWaiting";
+  public static final long LONG_POLL_TIMEOUT_DEFAULT = 0;
+  public static final int LONG_POLL_MAX_WAITING_DEFAULT = 32;
+  /**
+   * Configuration parameters for saving window assets across restarts:
+   * whether to save them at all, and how many journal records to allow before
+   * compacting the journal into a snapshot.
+   */
+  public static final String CONFIGURATION_PROPERTY_PERSIST_STATE =
+      "lg.earth.kmlsyncserver.persistState";
+  public static final String CONFIGURATION_PROPERTY_JOURNAL_COMPACT_RECORDS =
+      "lg.earth.kmlsyncserver.journalCompactRecords";
+  public static final boolean PERSIST_STATE_DEFAULT = true;
+  public static final int JOURNAL_COMPACT_RECORDS_DEFAULT = 1000;
+  /**
+   * Configuration parameter naming the route, both input and output, that
+   * window asset changes are replicated to and from other kmlsync activities
+   * on. Replication is off unless it's set.
+   */
+  public static final String CONFIGURATION_PROPERTY_REPLICATION_ROUTE =
+      "lg.earth.kmlsyncserver.replicationRoute";
+  /**
+   * Configuration parameters for the asset cache: the most bytes of asset
+   * files to keep (0 turns the cache off, and Windows fetch assets
+   * themselves), the path the cache is served under, and how many
+   * milliseconds a cached file is served before it's fetched again (0 keeps
+   * it until it's evicted).
+   */
+  public static final String CONFIGURATION_PROPERTY_ASSET_CACHE_BYTES =
+      "lg.earth.kmlsyncserver.assetCacheBytes";
+  public static final String CONFIGURATION_PROPERTY_ASSET_CACHE_PATH =
+      "lg.earth.kmlsyncserver.assetCachePath";
+  public static final String CONFIGURATION_PROPERTY_ASSET_CACHE_MAX_AGE =
+      "lg.earth.kmlsyncserver.assetCacheMaxAge";
+  public static final long ASSET_CACHE_BYTES_DEFAULT = 0;
+  public static final String ASSET_CACHE_PATH_DEFAULT = "/asset_cache";
+  public static final long ASSET_CACHE_MAX_AGE_DEFAULT = 300000;
   /**
    * Configuration parameter containing the URL prefix for the asset files.
    */
@@ -111,25 +239,96 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
   String KMLModifyURIPath = new String();
   String KMLIndexURIPath = new String();
   String KMLQueryURIPath = new String();
+  String KMLBatchURIPath = new String();
+  String KMLMetricsURIPath = new String();
+  String KMLAssetCacheURIPath = new String();
 
   /**
-   * URI Prefix for asset file storage.
+   * Saves window assets to the activity's permanent data directory, when
+   * persistence is on.
    */
-//  String KMLAssetURIPrefix = new String();
+  WindowAssetJournal windowAssetJournal;
 
   /**
-   * Handler for HTTP GET Requests from Google Earth.
-   *
-   * KML Resources:
-   * https://developers.google.com/kml/documentation/kml_tut#network_links
-   * https://developers.google.com/kml/documentation/updates
+   * Replicates window assets with other kmlsync activities, when a
+   * replication route is configured.
    */
-  private class KMLUpdateWebHandler implements HttpDynamicRequestHandler {
-    @Override
-    public void handle(HttpRequest request, HttpResponse response) {
-      handleKmlUpdateRequest(request, response);
-    }
-  }
+  WindowReplicator windowReplicator;
+  String replicationRoute;
+
+  /**
+   * Prefetches asset files and serves them to Windows, when the asset cache
+   * is on.
+   */
+  AssetCache assetCache;
+
+  /**
+   * Renders, and remembers, responses for the KML Update resource.
+   */
+  KmlUpdateRenderer updateRenderer;
+  UpdateResponseCache updateResponseCache;
+
+  /**
+   * Parks update requests from up to date Windows, when long polling is on.
+   */
+  WindowChangeWaiter windowChangeWaiter;
+
+  /**
+   * Picks how often each Window polls, when adaptive refresh is on.
+   */
+  RefreshAdvisor refreshAdvisor;
+
+  /**
+   * Pushes window changes to admin pages, when there are any connected.
+   */
+  WebSocketNotifier webSocketNotifier;
+  final AtomicInteger webSocketClients = new AtomicInteger();
+
+  /**
+   * Records scene messages, commands, and polls, when tracing is on.
+   */
+  TraceRecorder traceRecorder;
+
+  /**
+   * Names this activity as the origin of the WebSocket commands it publishes.
+   */
+  final String commandOrigin = UUID.randomUUID().toString();
+
+  /**
+   * Applies window asset commands from every source.
+   */
+  WindowCommands windowCommands;
+
+  /**
+   * Applies director scenes off the ROS callback thread.
+   */
+  SceneIngester sceneIngester;
+
+  /**
+   * Prepares scenes ahead of time, to switch to them in one step.
+   */
+  SceneStager sceneStager;
+
+  /**
+   * master.kml and index.html, encoded ahead of time.
+   */
+  StaticResponse masterResponse;
+  StaticFileResponse indexResponse;
+
+  /**
+   * Counters and timings for the KML Update resource.
+   */
+  final KmlSyncMetrics metrics = new KmlSyncMetrics();
+
+  /**
+   * Debug logging that's only formatted when it's enabled.
+   */
+  SyncLog syncLog;
+
+  /**
+   * URI Prefix for asset file storage.
+   */
+//  String KMLAssetURIPrefix = new String();
 
   /**
    * Query.txt page, to receive updates to /tmp/query.txt, or its equivalent.
@@ -185,31 +384,13 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
   private class KMLIndexWebHandler implements HttpDynamicRequestHandler {
     @Override
     public void handle(HttpRequest request, HttpResponse response) {
-      OutputStream oos = response.getOutputStream();
-      File dataFile;
-      InputStream is;
-
-      byte[] buf = new byte[8192];
-
-      dataFile = getActivityFilesystem().getInstallFile("index.html");
-      try {
-        is = new FileInputStream(dataFile);
-      }
-      catch (FileNotFoundException e) {
+      StaticResponse index = indexResponse.get();
+      if (index == null) {
         response.setResponseCode(500);
-        getLog().warn(e);
         return;
       }
-
-      int c = 0;
-
       try {
-        while ((c = is.read(buf, 0, buf.length)) > 0) {
-            oos.write(buf, 0, c);
-            oos.flush();
-        }
-
-        is.close();
+        index.write(request, response);
       }
       catch (IOException i) {
         response.setResponseCode(500);
@@ -242,12 +423,20 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
           }
       }
 
-      ArrayListMultimap<String, String> result = handleCommand(
-            params.get("command").get(0),
-            params.get("window_slug").get(0),
-            ( params.containsKey("asset_slug") ? params.get("asset_slug").get(0) : null ),
-            asset
-      );
+      final String command = params.get("command").get(0);
+      final String windowSlug = params.get("window_slug").get(0);
+      final String assetSlug = params.containsKey("asset_slug") ? params.get("asset_slug").get(0) : null;
+      final Map<String, Object> commandAsset = asset;
+      if (traceRecorder != null) {
+        traceRecorder.recordCommand(windowAssetsMessage(command, windowSlug, assetSlug, commandAsset));
+      }
+      ArrayListMultimap<String, String> result = sceneIngester.applyInOrder(
+          new Callable<ArrayListMultimap<String, String>>() {
+            @Override
+            public ArrayListMultimap<String, String> call() {
+              return windowCommands.handleCommand(command, windowSlug, assetSlug, commandAsset);
+            }
+          });
 
       response.setContentType("text/plain");
       for (String s : result.get("log")) {
@@ -270,30 +459,208 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
   }
 
   /**
-   * Handler for HTTP GET Requests for master.kml from Google Earth.
+   * The window assets message carrying a single command, as a GET to the
+   * modify resource is traced.
    */
-  private class KMLMasterWebHandler implements HttpDynamicRequestHandler {
+  private static Map<String, Object> windowAssetsMessage(String command, String windowSlug, String assetSlug,
+      Map<String, Object> asset) {
+    Map<String, Object> entry = Maps.newHashMap();
+    entry.put("command", command);
+    entry.put("window_slug", windowSlug);
+    if (assetSlug != null) {
+      entry.put("asset_slug", assetSlug);
+    }
+    if (asset != null) {
+      entry.put("asset", asset);
+    }
+    Map<String, Object> data = Maps.newHashMap();
+    data.put("commands", Collections.singletonList(entry));
+    Map<String, Object> message = Maps.newHashMap();
+    message.put(MessageWrapper.MESSAGE_FIELD_TYPE, MessageTypes.MESSAGE_TYPE_WINDOW_ASSETS);
+    message.put(MessageWrapper.MESSAGE_FIELD_DATA, data);
+    return message;
+  }
+
+  /**
+   * Handler for HTTP POST Requests carrying a whole batch of commands as JSON,
+   * in the same form as the data of a window assets message:
+   * { "commands": [ { "command": ..., "window_slug": ..., ... }, ... ] }
+   *
+   * All the commands are applied as one change, and the response is a JSON
+   * object describing the outcome of each.
+   */
+  private class KMLBatchWebHandler implements HttpDynamicPostRequestHandler {
+    @Override
+    public void handle(HttpRequest request, HttpPostBody body, HttpResponse response) {
+      Map<String, Object> output = Maps.newHashMap();
+      response.setContentType("application/json");
+
+      try {
+        Map<String, Object> parsed = new JsonMapper().parseObject(new String(body.getContent(), "UTF-8"));
+        JsonNavigator message = new JsonNavigator(parsed);
+        if (message.containsProperty(MessageWrapper.MESSAGE_FIELD_DATA)) {
+          message.down(MessageWrapper.MESSAGE_FIELD_DATA);
+        }
+
+        if (message.containsProperty("commands")) {
+          if (traceRecorder != null) {
+            Map<String, Object> traced = Maps.newHashMap();
+            traced.put(MessageWrapper.MESSAGE_FIELD_TYPE, MessageTypes.MESSAGE_TYPE_WINDOW_ASSETS);
+            traced.put(MessageWrapper.MESSAGE_FIELD_DATA, parsed.containsKey(MessageWrapper.MESSAGE_FIELD_DATA)
+                ? parsed.get(MessageWrapper.MESSAGE_FIELD_DATA) : parsed);
+            traceRecorder.recordCommand(traced);
+          }
+          message.down("commands");
+          WindowCommands.Results results = applyCommands(message);
+
+          boolean warning = false;
+          for (Map<String, Object> result : results.results) {
+            warning |= (Boolean) result.get("warning");
+          }
+          Map<String, Object> versions = Maps.newHashMap();
+          for (WindowState state : results.changed.values()) {
+            versions.put(state.getWindowSlug(), state.getVersion());
+          }
+
+          output.put("result", warning ? "warning" : "success");
+          output.put("results", results.results);
+          output.put("versions", versions);
+          response.setResponseCode(HttpResponseCode.OK);
+        }
+        else {
+          output.put("result", "error");
+          output.put("message", "Didn't find a 'commands' array in the request body");
+          response.setResponseCode(HttpResponseCode.BAD_REQUEST);
+        }
+      } catch (Exception e) {
+        getLog().error("KML Sync's batch handler can't parse this request: " + request.getUri(), e);
+        output.put("result", "error");
+        output.put("message", "Couldn't parse request body as JSON: " + e.getMessage());
+        response.setResponseCode(HttpResponseCode.BAD_REQUEST);
+      }
+
+      // Write the HTTP Response to the client.
+      try {
+        response.getOutputStream().write(new JsonMapper().toString(output).getBytes("UTF-8"));
+      } catch (Exception e) {
+        getLog().error("Error writing HTTP Response", e);
+        response.setResponseCode(HttpResponseCode.BAD_REQUEST);
+      }
+    }
+  }
+
+  /**
+   * Handler for HTTP GET Requests for the activity's metrics, as JSON
+   */
+  private class KMLMetricsWebHandler implements HttpDynamicRequestHandler {
     @Override
     public void handle(HttpRequest request, HttpResponse response) {
+      Map<String, Object> output = metrics.toMap();
+      output.put("response_cache_size", updateResponseCache.size());
+      output.put("scenes_applied", sceneIngester.getApplied());
+      output.put("scenes_skipped", sceneIngester.getSkipped());
+      output.put("scenes_staged", sceneStager.getStaged());
+      output.put("scenes_staged_now", sceneStager.size());
+      output.put("scenes_activated", sceneStager.getActivated());
+      output.put("scenes_prerendered_windows", sceneStager.getPrerenderedHits());
+      if (windowChangeWaiter != null) {
+        output.put("long_poll_waiting", windowChangeWaiter.getWaiting());
+      }
+      if (webSocketNotifier != null) {
+        output.put("websocket_clients", webSocketClients.get());
+        output.put("websocket_pushes", webSocketNotifier.getMessages());
+        output.put("websocket_pushed_windows", webSocketNotifier.getWindows());
+      }
+      if (traceRecorder != null) {
+        output.put("trace_events", traceRecorder.getRecorded());
+        output.put("trace_dropped", traceRecorder.getDropped());
+      }
+      if (windowReplicator != null) {
+        output.put("replication_node", windowReplicator.getNodeId());
+        output.put("replication_applied", windowReplicator.getApplied());
+        output.put("replication_stale", windowReplicator.getStale());
+      }
+      if (assetCache != null) {
+        output.put("asset_cache_files", assetCache.size());
+        output.put("asset_cache_bytes", assetCache.getBytes());
+        output.put("asset_cache_hits", assetCache.getHits());
+        output.put("asset_cache_misses", assetCache.getMisses());
+        output.put("asset_cache_fetches", assetCache.getFetches());
+        output.put("asset_cache_fetch_failures", assetCache.getFetchFailures());
+      }
 
-      // KML MIME Type
-      // See https://developers.google.com/kml/documentation/kml_tut#kml_server
-      response.setContentType("application/vnd.google-earth.kml+xml");
+      response.setContentType("application/json");
       response.setResponseCode(200); //OK
 
-      OutputStream outputStream = response.getOutputStream();
+      // Write the HTTP Response to the client.
+      try {
+        response.getOutputStream().write(new JsonMapper().toString(output).getBytes("UTF-8"));
+      } catch (Exception e) {
+        getLog().error("Error writing HTTP Response", e);
+        response.setResponseCode(HttpResponseCode.BAD_REQUEST);
+      }
+    }
+  }
 
-      StringBuilder output = new StringBuilder();
+  /**
+   * Handler for HTTP GET Requests for asset files through the asset cache.
+   * The path after the cache's own names the origin URL; files from origins
+   * the cache doesn't proxy, or that it couldn't fetch, are redirected to.
+   */
+  private class KMLAssetCacheWebHandler implements HttpDynamicRequestHandler {
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) {
+      URI uri = request.getUri();
+      String url = AssetCache.originUrl(
+          uri.getRawPath().substring(KMLAssetCacheURIPath.length()), uri.getRawQuery());
+      if (url == null) {
+        response.setResponseCode(HttpResponseCode.NOT_FOUND);
+        return;
+      }
+
+      AssetCache.Entry entry = assetCache.get(url);
+      if (entry == null) {
+        response.addContentHeader("Location", url);
+        response.setResponseCode(302); // Found
+        return;
+      }
+
+      if (entry.getContentType() != null) {
+        response.setContentType(entry.getContentType());
+      }
+      response.setResponseCode(200); //OK
+
+      try {
+        InputStream is = new FileInputStream(entry.getFile());
+        try {
+          OutputStream oos = response.getOutputStream();
+          byte[] buf = new byte[8192];
+          int c;
+          while ((c = is.read(buf, 0, buf.length)) > 0) {
+            oos.write(buf, 0, c);
+          }
+        } finally {
+          is.close();
+        }
+      } catch (IOException e) {
+        // Evicted since it was looked up
+        getLog().warn("Error serving cached asset " + url, e);
+        response.addContentHeader("Location", url);
+        response.setResponseCode(302); // Found
+      }
+    }
+  }
 
-      output.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-      output.append("    <kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\" xmlns:kml=\"http://www.opengis.net/kml/2.2\" xmlns:atom=\"http://www.w3.org/2005/Atom\">\n");
-      output.append("    <Document id=\"master\">\n");
-      output.append("    </Document>\n");
-      output.append("</kml>\n");
+  /**
+   * Handler for HTTP GET Requests for master.kml from Google Earth.
+   */
+  private class KMLMasterWebHandler implements HttpDynamicRequestHandler {
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) {
 
       // Write the HTTP Response to the client.
       try {
-        outputStream.write(output.toString().getBytes());
+        masterResponse.write(request, response);
       } catch (Exception e) {
         getLog().error("Error writing HTTP Response", e);
         response.setResponseCode(HttpResponseCode.BAD_REQUEST);
@@ -306,6 +673,9 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
     StringBuilder sb = new StringBuilder();
     sb.append("Activity com.endpoint.lg.earth.kmlsync startup\n");
 
+    syncLog = new SyncLog(getLog(), getConfiguration().getPropertyInteger(
+        CONFIGURATION_PROPERTY_POLL_LOG_SAMPLE, POLL_LOG_SAMPLE_DEFAULT));
+
     WebServerActivityComponent wsac = getComponent(WebServerActivityComponent.COMPONENT_NAME);
     if (wsac == null) {
         getLog().warn("*** Couldn't get WebServerActivityComponent ***");
@@ -325,6 +695,12 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
         CONFIGURATION_PROPERTY_KML_INDEX_PATH);
     KMLQueryURIPath = getConfiguration().getRequiredPropertyString(
         CONFIGURATION_PROPERTY_KML_QUERY_PATH);
+    KMLBatchURIPath = getConfiguration().getPropertyString(
+        CONFIGURATION_PROPERTY_KML_BATCH_PATH, KML_BATCH_PATH_DEFAULT);
+    KMLMetricsURIPath = getConfiguration().getPropertyString(
+        CONFIGURATION_PROPERTY_KML_METRICS_PATH, KML_METRICS_PATH_DEFAULT);
+    KMLAssetCacheURIPath = getConfiguration().getPropertyString(
+        CONFIGURATION_PROPERTY_ASSET_CACHE_PATH, ASSET_CACHE_PATH_DEFAULT);
 //    KMLAssetURIPrefix = getConfiguration().getRequiredPropertyString(
 //        CONFIGURATION_PROPERTY_KML_ASSET_PREFIX);
 
@@ -332,10 +708,181 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
 
     KMLURIPort = webserver.getPort();
 
+    // Assemble and log the URI's where these services are available.
+    try {
+      KMLMasterURI = new URI(   // seven-argument constructor
+        KMLURIScheme,     // scheme
+        null,             // userInfo
+        "localhost",      // host
+        //KMLURIHost,       // host
+        KMLURIPort,       // port (type int!)
+        KMLMasterURIPath, // path
+        null,             // query
+        null              // fragment
+      ).toString();
+      getLog().info("KML Sync Master at " + KMLMasterURI);
+    } catch (URISyntaxException e) {
+      getLog().error("Could not assemble KML Master URI from config", e);
+    }
+
+    try {
+      KMLUpdateURI = new URI(
+        KMLURIScheme,     // scheme
+        null,             // userInfo
+        KMLURIHost,       // host
+        KMLURIPort,       // port (type int!)
+        KMLUpdateURIPath, // path
+        null,             // query
+        null              // fragment
+      ).toString();
+      getLog().info("KML Sync Update at " + KMLUpdateURI);
+    } catch (URISyntaxException e) {
+      getLog().error("Could not assemble KML Update URI from config", e);
+    }
+
+    if (getConfiguration().getPropertyBoolean(CONFIGURATION_PROPERTY_TRACE, TRACE_DEFAULT)) {
+      File traceFile = new File(new File(getActivityFilesystem().getPermanentDataDirectory(), "traces"),
+          "kmlsync-" + System.currentTimeMillis() + ".trace");
+      TraceRecorder recorder = new TraceRecorder(traceFile, getConfiguration().getPropertyInteger(
+          CONFIGURATION_PROPERTY_TRACE_QUEUE_SIZE, TRACE_QUEUE_SIZE_DEFAULT), getLog());
+      try {
+        recorder.start();
+        traceRecorder = recorder;
+        getLog().info("KML Sync tracing to " + traceFile);
+      } catch (IOException e) {
+        getLog().error("Couldn't start trace " + traceFile, e);
+      }
+    }
+
+    // Bring back the window assets from before the last restart, before
+    // anything can read or change them.
+    if (getConfiguration().getPropertyBoolean(CONFIGURATION_PROPERTY_PERSIST_STATE, PERSIST_STATE_DEFAULT)) {
+      long restoreStart = System.currentTimeMillis();
+      windowAssetJournal = new WindowAssetJournal(getActivityFilesystem().getPermanentDataDirectory(),
+          getConfiguration().getPropertyInteger(
+              CONFIGURATION_PROPERTY_JOURNAL_COMPACT_RECORDS, JOURNAL_COMPACT_RECORDS_DEFAULT),
+          getLog());
+      int restored = windowAssetJournal.restore(windowAssetStore);
+      getLog().info("Restored assets for " + restored + " windows in "
+          + (System.currentTimeMillis() - restoreStart) + " ms");
+    }
+
+    replicationRoute = getConfiguration().getPropertyString(CONFIGURATION_PROPERTY_REPLICATION_ROUTE, "");
+    if (!replicationRoute.isEmpty()) {
+      windowReplicator = new WindowReplicator(windowAssetStore, new WindowReplicator.Transport() {
+        @Override
+        public void send(Map<String, Object> message) {
+          sendOutputJson(replicationRoute, message);
+        }
+      }, commandOrigin, getLog());
+      windowReplicator.start();
+      getLog().info("KML Sync replicating on route " + replicationRoute + " as node " + windowReplicator.getNodeId());
+    }
+
+    long assetCacheBytes = getConfiguration().getPropertyLong(
+        CONFIGURATION_PROPERTY_ASSET_CACHE_BYTES, ASSET_CACHE_BYTES_DEFAULT);
+    if (assetCacheBytes > 0) {
+      try {
+        String assetCacheURI = new URI(
+          KMLURIScheme,         // scheme
+          null,                 // userInfo
+          KMLURIHost,           // host
+          KMLURIPort,           // port (type int!)
+          KMLAssetCacheURIPath, // path
+          null,                 // query
+          null                  // fragment
+        ).toString();
+        assetCache = new AssetCache(new File(getActivityFilesystem().getTempDataDirectory(), "asset-cache"),
+            assetCacheBytes, getConfiguration().getPropertyLong(
+                CONFIGURATION_PROPERTY_ASSET_CACHE_MAX_AGE, ASSET_CACHE_MAX_AGE_DEFAULT),
+            assetCacheURI, getLog());
+        windowAssetStore.addListener(assetCache);
+        // Catch up on assets restored or replicated before the cache existed
+        assetCache.onWindowsChanged(windowAssetStore.getWindows());
+        getLog().info("KML Sync asset cache at " + assetCacheURI);
+      } catch (URISyntaxException e) {
+        getLog().error("Could not assemble KML asset cache URI from config", e);
+      }
+    }
+
+    String cookieMode = getConfiguration().getPropertyString(CONFIGURATION_PROPERTY_COOKIE_MODE,
+        COOKIE_MODE_DEFAULT);
+    WindowHistory windowHistory = null;
+    if (COOKIE_MODE_TOKEN.equals(cookieMode)) {
+      windowHistory = new WindowHistory(getConfiguration().getPropertyInteger(
+          CONFIGURATION_PROPERTY_TOKEN_HISTORY, TOKEN_HISTORY_DEFAULT));
+      windowAssetStore.addListener(windowHistory);
+      windowHistory.onWindowsChanged(windowAssetStore.getWindows());
+      getLog().info("KML Sync Windows keep a state token cookie");
+    } else if (!COOKIE_MODE_SLUGS.equals(cookieMode)) {
+      getLog().warn("Unknown " + CONFIGURATION_PROPERTY_COOKIE_MODE + " " + cookieMode + ", using "
+          + COOKIE_MODE_SLUGS);
+    }
+
+    updateRenderer = new KmlUpdateRenderer(KMLMasterURI, assetCache, windowHistory != null);
+    // KML MIME Type
+    // See https://developers.google.com/kml/documentation/kml_tut#kml_server
+    masterResponse = StaticResponse.of(KmlUpdateRenderer.renderMaster(), "application/vnd.google-earth.kml+xml");
+    indexResponse = new StaticFileResponse(getActivityFilesystem().getInstallFile("index.html"),
+        "text/html; charset=UTF-8", INDEX_CHECK_INTERVAL_MILLIS, getLog());
+    updateResponseCache = new UpdateResponseCache(getConfiguration().getPropertyInteger(
+        CONFIGURATION_PROPERTY_RESPONSE_CACHE_SIZE, RESPONSE_CACHE_SIZE_DEFAULT));
+    windowAssetStore.addListener(updateResponseCache);
+
+    int maxRefreshPeriod = getConfiguration().getPropertyInteger(
+        CONFIGURATION_PROPERTY_MAX_REFRESH_PERIOD, MAX_REFRESH_PERIOD_DEFAULT);
+    if (maxRefreshPeriod > KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD) {
+      refreshAdvisor = new RefreshAdvisor(maxRefreshPeriod, getConfiguration().getPropertyLong(
+          CONFIGURATION_PROPERTY_REFRESH_BACKOFF, REFRESH_BACKOFF_DEFAULT));
+      windowAssetStore.addListener(refreshAdvisor);
+      getLog().info("KML Sync backing idle windows off to " + maxRefreshPeriod + " s refresh");
+    }
+
+    windowCommands = new WindowCommands(windowAssetStore, refreshAdvisor, syncLog);
+    sceneIngester = new SceneIngester(windowAssetStore, new DirectorSceneParser(getLog()), getLog());
+    sceneStager = new SceneStager(windowAssetStore, updateRenderer, updateResponseCache,
+        new DirectorSceneParser(getLog()), Math.max(1, getConfiguration().getPropertyInteger(
+            CONFIGURATION_PROPERTY_STAGED_SCENE_LIMIT, STAGED_SCENE_LIMIT_DEFAULT)),
+        getLog());
+
+    long longPollTimeout = getConfiguration().getPropertyLong(
+        CONFIGURATION_PROPERTY_LONG_POLL_TIMEOUT, LONG_POLL_TIMEOUT_DEFAULT);
+    if (longPollTimeout > 0) {
+      windowChangeWaiter = new WindowChangeWaiter(windowAssetStore, longPollTimeout,
+          getConfiguration().getPropertyInteger(
+              CONFIGURATION_PROPERTY_LONG_POLL_MAX_WAITING, LONG_POLL_MAX_WAITING_DEFAULT));
+      windowAssetStore.addListener(windowChangeWaiter);
+      getLog().info("KML Sync long polling for up to " + longPollTimeout + " ms");
+    }
+
+    long webSocketPushDelay = getConfiguration().getPropertyLong(
+        CONFIGURATION_PROPERTY_WEBSOCKET_PUSH_DELAY, WEBSOCKET_PUSH_DELAY_DEFAULT);
+    if (webSocketPushDelay > 0) {
+      webSocketNotifier = new WebSocketNotifier(new WebSocketNotifier.Transport() {
+        @Override
+        public void send(Map<String, Object> message) {
+          if (webSocketClients.get() > 0) {
+            sendAllWebSocketJson(message);
+          }
+        }
+      }, webSocketPushDelay, getLog());
+      windowAssetStore.addListener(webSocketNotifier);
+    }
+
+    HttpDynamicRequestHandler updateHandler = new KmlUpdateRequestHandler(windowAssetStore, updateRenderer,
+        updateResponseCache, metrics, syncLog, new KmlUpdateRequestHandler.Options()
+            .windowChangeWaiter(windowChangeWaiter)
+            .compressionMinLength(getConfiguration().getPropertyInteger(
+                CONFIGURATION_PROPERTY_COMPRESSION_MIN_LENGTH, COMPRESSION_MIN_LENGTH_DEFAULT))
+            .refreshAdvisor(refreshAdvisor)
+            .windowHistory(windowHistory));
+    if (traceRecorder != null) {
+      updateHandler = traceRecorder.tracePolls(updateHandler);
+    }
     webserver.addDynamicContentHandler(
         KMLUpdateURIPath,
         false,
-        new KMLUpdateWebHandler()
+        updateHandler
     );
 
     webserver.addDynamicContentHandler(
@@ -362,50 +909,91 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
         new KMLQueryWebHandler()
     );
 
-    // Assemble and log the URI's where these services are available.
-    try {
-      KMLMasterURI = new URI(   // seven-argument constructor
-        KMLURIScheme,     // scheme
-        null,             // userInfo
-        "localhost",      // host
-        //KMLURIHost,       // host
-        KMLURIPort,       // port (type int!)
-        KMLMasterURIPath, // path
-        null,             // query
-        null              // fragment
-      ).toString();
-      getLog().info("KML Sync Master at " + KMLMasterURI);
-    } catch (URISyntaxException e) {
-      getLog().error("Could not assemble KML Master URI from config", e);
+    webserver.addDynamicPostRequestHandler(
+        KMLBatchURIPath,
+        false,
+        new KMLBatchWebHandler()
+    );
+
+    webserver.addDynamicContentHandler(
+        KMLMetricsURIPath,
+        false,
+        new KMLMetricsWebHandler()
+    );
+
+    if (assetCache != null) {
+      webserver.addDynamicContentHandler(
+          KMLAssetCacheURIPath,
+          true,
+          new KMLAssetCacheWebHandler()
+      );
     }
+  }
 
-    try {
-      KMLUpdateURI = new URI(
-        KMLURIScheme,     // scheme
-        null,             // userInfo
-        KMLURIHost,       // host
-        KMLURIPort,       // port (type int!)
-        KMLUpdateURIPath, // path
-        null,             // query
-        null              // fragment
-      ).toString();
-      getLog().info("KML Sync Update at " + KMLUpdateURI);
-    } catch (URISyntaxException e) {
-      getLog().error("Could not assemble KML Update URI from config", e);
+  @Override
+  public void onActivityShutdown() {
+    if (sceneIngester != null) {
+      sceneIngester.shutdown();
+    }
+    if (sceneStager != null) {
+      sceneStager.shutdown();
+    }
+    if (windowReplicator != null) {
+      windowReplicator.shutdown();
+    }
+    if (windowAssetJournal != null) {
+      windowAssetJournal.shutdown();
+    }
+    if (windowChangeWaiter != null) {
+      windowChangeWaiter.shutdown();
+    }
+    if (webSocketNotifier != null) {
+      webSocketNotifier.shutdown();
+    }
+    if (assetCache != null) {
+      assetCache.shutdown();
     }
+    if (traceRecorder != null) {
+      traceRecorder.shutdown();
+    }
+  }
+
+  @Override
+  public void onWebSocketConnect(String channelName) {
+    webSocketClients.incrementAndGet();
   }
 
+  @Override
+  public void onWebSocketClose(String channelName) {
+    webSocketClients.decrementAndGet();
+  }
+
+  /**
+   * Applies the admin page's commands here, replying straight away, then
+   * publishes them on the command route for anyone else listening, marked so
+   * this activity skips them when they come back.
+   */
   @SuppressWarnings("unchecked")
   @Override
   public void onWebSocketReceive(String channelName, Object d) {
-    getLog().debug("Received something on the websocket channel: " + d);
-    Map<String, String> obj = (Map<String, String>) d;
-    obj.put(WSOCKET_CHANNEL_ID, channelName);
+    syncLog.debug("Received something on the websocket channel: {}", d);
+    Map<String, Object> obj = (Map<String, Object>) d;
+
+    Map<String, Object> local = Maps.newHashMap(obj);
+    local.put(WSOCKET_CHANNEL_ID, channelName);
     Map<String, Object> msg = Maps.newHashMap();
     msg.put(MessageWrapper.MESSAGE_FIELD_TYPE, MessageTypes.MESSAGE_TYPE_WINDOW_ASSETS);
-    msg.put(MessageWrapper.MESSAGE_FIELD_DATA, obj);
+    msg.put(MessageWrapper.MESSAGE_FIELD_DATA, local);
+    jsonCommand(msg);
+
+    Map<String, Object> published = Maps.newHashMap(obj);
+    published.put(COMMAND_ORIGIN, commandOrigin);
+    msg.put(MessageWrapper.MESSAGE_FIELD_DATA, published);
+    if (traceRecorder != null) {
+      traceRecorder.recordCommand(msg);
+    }
     sendOutputJson("tocommand", msg);
-    getLog().debug("Sending websocket message to JSON: " + msg);
+    syncLog.debug("Sending websocket message to JSON: {}", msg);
   }
 
   /*
@@ -415,7 +1003,7 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
    *   MessageWrapper.MESSAGE_FIELD_DATA = {
    *     'commands' = [
    *       {
-   *         'command'     = ('add'|'delete'|'list),
+   *         'command'     = ('add'|'delete'|'clear'|'list'|'touch'),
    *         'window_slug' = 'some window slug',
    *           (optional asset_slug or asset key; the former is a string, and
    *           makes sense only in the context of a delete command; the latter is
@@ -428,48 +1016,46 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
    */
   @Override
   public void onNewInputJson(String channelName, Map<String, Object> m) {
-    getLog().debug("Got message on input channel " + channelName);
-    getLog().debug(m);
-    if (channelName.equals("command"))
-        jsonCommand(m);
-    else
-        handleScene(m);
-  }
-
-  public void handleScene(Map<String, Object> m) {
-    Scene s;
-
-    try {
-        s = Scene.fromJson(jsonStringify(m));
-
-        // Clear all assets when a new scene comes in
-        for (String key : windowAssetMap.keySet()) {
-            handleCommand("clear", key, null, null);
-            getLog().debug("Cleared window slug " + key);
-        }
-
-        for (Window w : s.windows) {
-            if (w.activity.equals("earth")) {
-                //handleCommand("clear", w.getWindowSlug(), null, null);
-                getLog().debug("Adding assets for window slug " + w.presentation_viewport);
-                for (String a : w.assets) {
-                    Map<String, Object> asset = Maps.newHashMap();
-                    asset.put("title", a);
-                    asset.put("slug", a);
-                    asset.put("storage", a);
-                    handleCommand("add", w.presentation_viewport, a, asset);
-                }
+    syncLog.debug("Got message on input channel {}: {}", channelName, m);
+    if (channelName.equals("command")) {
+        if (isOwnCommand(m)) {
+            syncLog.debug("Skipping command this activity already applied: {}", m);
+        } else {
+            if (traceRecorder != null) {
+                traceRecorder.recordCommand(m);
             }
+            jsonCommand(m);
         }
     }
-    catch (IOException e) {
-        getLog().error("Couldn't parse scene message", e);
+    else if (windowReplicator != null && channelName.equals(replicationRoute))
+        windowReplicator.receive(m);
+    else {
+        if (traceRecorder != null) {
+            traceRecorder.recordScene(m);
+        }
+        handleScene(m);
     }
   }
 
+  /**
+   * Whether a command message is one this activity published for a WebSocket
+   * client, and so has applied already.
+   */
+  private boolean isOwnCommand(Map<String, Object> m) {
+    Object data = m.get(MessageWrapper.MESSAGE_FIELD_DATA);
+    return data instanceof Map && commandOrigin.equals(((Map<?, ?>) data).get(COMMAND_ORIGIN));
+  }
+
+  /**
+   * Hands a director scene message to the scene ingester, which replaces all
+   * Window assets with the scene's on its own thread
+   */
+  public void handleScene(Map<String, Object> m) {
+    sceneIngester.submit(m);
+  }
+
+  @SuppressWarnings("unchecked")
   public void jsonCommand(Map<String, Object> m) {
-    int i, size;
-    Map<String, Object> asset;
     StringBuilder sb = new StringBuilder();
     JsonNavigator message = new JsonNavigator(m);
     String websocket;
@@ -479,7 +1065,7 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
     message.up();
 
     if (websocket != null) {
-        getLog().debug("Message originally from WebSocket channel " + websocket);
+        syncLog.debug("Message originally from WebSocket channel {}", websocket);
     }
 
     String type = message.getString(MessageWrapper.MESSAGE_FIELD_TYPE);
@@ -487,73 +1073,75 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
       message.down(MessageWrapper.MESSAGE_FIELD_DATA);
       message.down("commands");
 
-      size = message.getSize();
-      for (i = 0; i < size; i++) {
-        message.down(i);
-        getLog().debug("Command: " + message.getString("command"));
-        if (message.containsProperty("asset")) {
-            asset = Maps.newHashMap();
-            message.down("asset");
-            asset.put("title", message.getString("title"));
-            asset.put("slug", message.getString("slug"));
-            asset.put("storage", message.getString("storage"));
-            message.up();
-        }
-        else {
-            asset = null;
-        }
-        ArrayListMultimap<String, String> result = handleCommand(
-            message.getString("command"),
-            message.getString("window_slug"),
-            (message.containsProperty("asset_slug") ? message.getString("asset_slug") : null),
-            asset
-        );
-
-        for (String s : result.get("log")) {
+      WindowCommands.Results results = applyCommands(message);
+      for (Map<String, Object> result : results.results) {
+        for (String s : (List<String>) result.get("log")) {
             sb.append(" " + s);
         }
-
-        message.up();
-      }
-
-      for (String key : m.keySet()) {
-          getLog().debug("Key: " + key);
       }
 
       if (websocket != null) {
-          getLog().debug("Sending response to websocket: " + sb.toString());
-          sendWebSocketString(websocket, sb.toString());
-          getLog().debug("Sent response " + sb.toString() + " to websocket " + websocket);
+          String reply = sb.toString();
+          sendWebSocketString(websocket, reply);
+          syncLog.debug("Sent response {} to websocket {}", reply, websocket);
       }
 
-      getLog().debug("windowAssetMap is now " + windowAssetMap);
+      if (syncLog.isDebugEnabled()) {
+        syncLog.event("commands", "count", results.results.size(), "changed_windows", results.changed.size(),
+            "windows", windowAssetStore.getWindows().size());
+      }
+    }
+    else if (SceneStager.MESSAGE_TYPE_STAGE.equals(type)) {
+      Map<String, Object> data = (Map<String, Object>) m.get(MessageWrapper.MESSAGE_FIELD_DATA);
+      if (data == null) {
+        getLog().warn("Scene stage message has no data");
+        return;
+      }
+      List<Map<String, Object>> scenes = data.containsKey("scenes")
+          ? (List<Map<String, Object>>) data.get("scenes") : Lists.newArrayList(data);
+      for (Map<String, Object> scene : scenes) {
+        Object id = scene.get("id");
+        if (id == null || !(scene.get("scene") instanceof Map)) {
+          getLog().warn("Scene to stage needs an 'id' and a 'scene': " + scene);
+          continue;
+        }
+        sceneStager.stage(id.toString(), (Map<String, Object>) scene.get("scene"));
+      }
+    }
+    else if (SceneStager.MESSAGE_TYPE_ACTIVATE.equals(type)) {
+      message.down(MessageWrapper.MESSAGE_FIELD_DATA);
+      String id = message.getString("id");
+      if (id == null) {
+        getLog().warn("Scene to activate needs an 'id'");
+      } else {
+        // After any director scene that arrived first, so it can't wipe
+        // the activated scene out
+        sceneStager.activate(id, sceneIngester);
+      }
+    }
+    else if (SceneStager.MESSAGE_TYPE_CLEAR.equals(type)) {
+      sceneStager.clear();
     }
   }
 
+  /**
+   * Applies a list of commands once every director scene that arrived before
+   * them has been applied, so a late scene can't wipe them out.
+   */
+  private WindowCommands.Results applyCommands(final JsonNavigator commands) {
+    return sceneIngester.applyInOrder(new Callable<WindowCommands.Results>() {
+      @Override
+      public WindowCommands.Results call() {
+        return windowCommands.applyCommands(commands);
+      }
+    });
+  }
+
   /**
    * Parses parameters from a request URI
    */
   private ArrayListMultimap<String, String> getParams(String rawQuery) {
-    ArrayListMultimap<String, String> params = ArrayListMultimap.create();
-    if (rawQuery != null && !rawQuery.isEmpty()) {
-      String[] components = rawQuery.split("\\&");
-      for (String component : components) {
-        getLog().debug("Found component " + component);
-        int pos = component.indexOf('=');
-        if (pos != -1) {
-          String decode = component.substring(pos + 1);
-          try {
-            decode = URLDecoder.decode(decode, "UTF-8");
-          } catch (Exception e) {
-            // Don't care
-          }
-          params.put(component.substring(0, pos).trim(), decode);
-        } else {
-          params.put(component.trim(), "");
-        }
-      }
-    }
-    return params;
+    return QueryParams.parse(rawQuery);
   }
 
   /**
@@ -568,265 +1156,4 @@ public class KMLSyncServerActivity extends BaseRoutableRosWebServerActivity {
     }
     return true;
   }
-
-  /**
-   * Handles commands received either via GET requests, JSON, or ROS messages
-   */
-  private ArrayListMultimap<String, String>
-  handleCommand(String command, String window_slug, String asset_slug, Map<String, Object> asset) {
-    ArrayListMultimap<String, String> result = ArrayListMultimap.create();
-
-    if (command.equals("add")) {
-        if (asset == null) {
-            result.put("log", "No asset supplied to add command");
-            result.put("warning", "t");
-            return result;
-        }
-        List<Map<String, Object>> assets;
-        if (windowAssetMap.containsKey(window_slug)) {
-            synchronized (windowAssetMap) {
-                assets = windowAssetMap.get(window_slug);
-            }
-        }
-        else {
-            assets = new ArrayList<Map<String, Object>>();
-        }
-        result.put("log", "Adding asset " + asset);
-        assets.add((Map<String, Object>) asset);
-        synchronized (windowAssetMap) {
-            windowAssetMap.put(window_slug, assets);
-        }
-    }
-    else if (command.equals("clear")) {
-        if (windowAssetMap.containsKey(window_slug)) {
-            synchronized (windowAssetMap) {
-                windowAssetMap.get(window_slug).clear();
-            }
-            result.put("log", "Assets for window slug '" + window_slug + "' cleared");
-        }
-        else {
-            result.put("log", "No such window slug '" + window_slug + "' found");
-        }
-    }
-    else if (command.equals("delete")) {
-        List<Map<String, Object>> assets;
-        boolean found = false;
-
-        if (asset_slug == null) {
-            result.put("log", "No asset slug supplied to delete command");
-            result.put("warning", "t");
-            return result;
-        }
-
-        if (windowAssetMap.containsKey(window_slug)) {
-            synchronized (windowAssetMap) {
-                assets = windowAssetMap.get(window_slug);
-            }
-            result.put("log", "Found assets for window: " + assets);
-            ListIterator<Map<String, Object>> li = assets.listIterator();
-            Map<String, Object> m;
-            while (li.hasNext()) {
-                m = li.next();
-                if (m.containsKey("slug")) {
-                    result.put("log", "Searching for slug to delete. Found \"" + m.get("slug") + "\"");
-                    if ( m.get("slug").toString().equals(asset_slug)) {
-                        li.remove();
-                        found = true;
-                        break;
-                    }
-                }
-            }
-            if (found) {
-                synchronized (windowAssetMap) {
-                    windowAssetMap.put(window_slug, assets);
-                }
-            }
-            else {
-                result.put("log", "Didn't find asset slug " + asset_slug + " for window " + window_slug);
-            }
-        }
-        else {
-            result.put("log", "Window slug " + window_slug + " has no assets");
-        }
-    }
-    else if (command.equals("list")) {
-        List<Map<String, Object>> assets;
-        if (windowAssetMap.containsKey(window_slug)) {
-            synchronized (windowAssetMap) {
-                assets = windowAssetMap.get(window_slug);
-            }
-            for (Map<String, Object> m : assets) {
-                result.put("log", "Asset: " + m.toString());
-            }
-        }
-        else {
-            result.put("log", "Cannot find window_slug " + window_slug);
-        }
-    }
-    else {
-        result.put("log", "Unknown command \"" + command + "\"");
-        result.put("warning", "t");
-    }
-    return result;
-  }
-
-  /**
-   * A dynamic HTTP request has come in for a KML Sync.
-   *
-   * @param request
-   *          the HTTP request
-   * @param response
-   *          the HTTP response
-   */
-  private void handleKmlUpdateRequest(HttpRequest request, HttpResponse response) {
-    URI uri = request.getUri();
-    getLog().debug(
-        String.format("Activity com.endpoint.lg.earth.kmlsync handle URI: %s parameters: %s", uri, uri.getQuery()));
-
-    // GET Parameter parsing courtesy of Keith Hughes.
-    ArrayListMultimap<String, String> params = getParams(uri.getQuery());
-    //ArrayListMultimap.create();
-
-    // KML MIME Type
-    // See https://developers.google.com/kml/documentation/kml_tut#kml_server
-    response.setContentType("application/vnd.google-earth.kml+xml");
-    response.setResponseCode(200); //OK
-
-    if (! params.containsKey("window_slug")) {
-        getLog().error("No window slug provided.");
-        response.setResponseCode(HttpResponseCode.BAD_REQUEST);
-        return;
-    }
-
-    // Which Earth Window is this HTTP request coming from?
-    String clientWindowSlug = params.get("window_slug").get(0);
-    getLog().debug("Checking window slug " + clientWindowSlug);
-
-    // What Assets does this Earth Window already have loaded?
-    List<String> clientAssetSlugList = params.get("asset_slug");
-
-    // What Assets _should_ the client have loaded?
-    List<Map<String, Object>> serverAssetList;
-    synchronized (windowAssetMap) {
-      serverAssetList = windowAssetMap.get(clientWindowSlug);
-    }
-
-    // If this Window wasn't found in the list, use an empty list.
-    if ( serverAssetList == null ) {
-      serverAssetList = Lists.newArrayList();
-    }
-
-    getLog().debug("Window " + clientWindowSlug + " has " + clientAssetSlugList + " should have " + serverAssetList);
-
-    // What Assets need <Create> KML entries?
-    List<Map<String, Object>> createAssetList = Lists.newArrayList();
-    // For each Asset the server wants the client to load,
-    for (Map<String, Object> serverAsset : serverAssetList) {
-      JsonNavigator nav = new JsonNavigator(serverAsset);
-      String serverAssetSlug = nav.getString("slug");
-
-      // If the client has not loaded this asset ...
-      if (!clientAssetSlugList.contains(serverAssetSlug)) {
-        // ... add it to the list needing <Create> elements.
-        createAssetList.add(serverAsset);
-      }
-    }
-
-    // Which Assets need <Delete> KML entries?
-    List<String> deleteAssetSlugList = Lists.newArrayList(clientAssetSlugList);
-
-    // This will see all the ones the server requires and removes them from the
-    // delete list. All that will be left is the ones to delete.
-    for (Map<String, Object> serverAsset : serverAssetList) {
-      JsonNavigator nav = new JsonNavigator(serverAsset);
-      String serverAssetSlug = nav.getString("slug");
-      deleteAssetSlugList.remove(serverAssetSlug);
-    }
-
-    // Begin rendering the KML for the HTTP Response.
-    getLog().debug("Create list: " + createAssetList);
-    getLog().debug("Delete list: " + deleteAssetSlugList);
-
-    OutputStream outputStream = response.getOutputStream();
-
-    StringBuilder output = new StringBuilder();
-
-    output.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-    output
-        .append("<kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\" xmlns:kml=\"http://www.opengis.net/kml/2.2\" xmlns:atom=\"http://www.w3.org/2005/Atom\">\n");
-    output.append("<NetworkLinkControl>\n");
-    output.append("  <minRefreshPeriod>1</minRefreshPeriod>\n");
-    output.append("  <maxSessionLength>-1</maxSessionLength>\n");
-
-    output.append("  <cookie><![CDATA[");
-    // slugs of serverAssetList go here
-    Joiner joiner = Joiner.on("&").skipNulls();
-    List<String> cookies = Lists.newArrayList();
-    for (Map<String, Object> serverAsset : serverAssetList) {
-      JsonNavigator nav = new JsonNavigator(serverAsset);
-      String serverAssetSlug = nav.getString("slug");
-      cookies.add("asset_slug=" + serverAssetSlug);
-    }
-    output.append(joiner.join(cookies));
-    output.append("]]></cookie>\n");
-
-    output.append("  <Update>\n");
-    output.append("    <targetHref>");
-    // URL to master.kml goes here.
-    output.append(KMLMasterURI);
-    output.append("</targetHref>\n");
-
-    // If there are any assets the client should load but hasn't yet,
-    if (createAssetList.size() > 0) {
-      output.append("      <Create><Document targetId=\"master\">\n");
-      // For each asset the client should load but hasn't yet,
-      for (Map<String, Object> asset : createAssetList) {
-        JsonNavigator nav = new JsonNavigator(asset);
-        //nav.down("fields");
-
-        output.append("        <NetworkLink id=\"");
-        // asset.slug goes here
-        output.append(nav.getString("slug"));
-        output.append("\">\n");
-
-        output.append("          <name>");
-        // asset.title goes here
-        output.append(nav.getString("title"));
-        output.append("</name>\n");
-
-        output.append("          <Link><href>");
-        // asset.storage goes here
-        //output.append(KMLAssetURIPrefix + nav.getString("storage"));
-        output.append(nav.getString("storage"));
-        output.append("</href></Link>\n");
-
-        output.append("        </NetworkLink>\n");
-      }
-      output.append("      </Document></Create>\n");
-    }
-
-    // If there are any assets the client has loaded but should unload,
-    if (deleteAssetSlugList.size() > 0) {
-      output.append("      <Delete>\n");
-      for (String assetSlug : deleteAssetSlugList) {
-        output.append("        <NetworkLink targetId=\"");
-        output.append(assetSlug);
-        output.append("\" />\n");
-      }
-      output.append("      </Delete>\n");
-    }
-
-    output.append("  </Update>\n");
-    output.append("</NetworkLinkControl>\n");
-    output.append("</kml>\n");
-
-    getLog().debug("Returning " + output.toString());
-    // Write the HTTP Response to the client.
-    try {
-      outputStream.write(output.toString().getBytes());
-    } catch (Exception e) {
-      getLog().error("Error writing HTTP Response", e);
-      response.setResponseCode(HttpResponseCode.BAD_REQUEST);
-    }
-  }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings for the NetworkLinkUpdate handler, per Window and in
+ * total. Recording never takes a lock.
+ */
+public class KmlSyncMetrics {
+  /**
+   * How a poll was answered.
+   */
+  public enum Outcome {
+    /**
+     * The client already had everything; only the cookie was sent.
+     */
+    UNCHANGED,
+    /**
+     * A cached response was sent.
+     */
+    CACHE_HIT,
+    /**
+     * A response was rendered and sent.
+     */
+    CACHE_MISS,
+    /**
+     * The client's If-None-Match matched; nothing was sent.
+     */
+    NOT_MODIFIED
+  }
+
+  private final long startMillis = System.currentTimeMillis();
+  private final WindowMetrics total = new WindowMetrics();
+  private final ConcurrentMap<String, WindowMetrics> windows = new ConcurrentHashMap<String, WindowMetrics>();
+
+  /**
+   * Records one answered poll.
+   *
+   * @param windowSlug
+   *          the polling Window
+   * @param outcome
+   *          how it was answered
+   * @param response
+   *          what was sent, or null if nothing was
+   * @param bytesWritten
+   *          how many body bytes were written
+   * @param nanos
+   *          how long the handler spent, not counting long poll waits
+   */
+  public void recordPoll(String windowSlug, Outcome outcome, RenderedUpdate response, long bytesWritten,
+      long nanos) {
+    total.record(outcome, response, bytesWritten, nanos);
+    window(windowSlug).record(outcome, response, bytesWritten, nanos);
+  }
+
+  /**
+   * Records a poll that was rejected before it could be answered.
+   */
+  public void recordBadRequest() {
+    total.badRequests.incrementAndGet();
+  }
+
+  /**
+   * Records a token cookie client that had to be sent every asset again.
+   */
+  public void recordResync(String windowSlug) {
+    total.resyncs.incrementAndGet();
+    window(windowSlug).resyncs.incrementAndGet();
+  }
+
+  /**
+   * Summarizes every counter for JSON output.
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    map.put("uptime_ms", System.currentTimeMillis() - startMillis);
+    map.put("total", total.toMap());
+    Map<String, Object> perWindow = Maps.newTreeMap();
+    for (Map.Entry<String, WindowMetrics> entry : windows.entrySet()) {
+      perWindow.put(entry.getKey(), entry.getValue().toMap());
+    }
+    map.put("windows", perWindow);
+    return map;
+  }
+
+  private WindowMetrics window(String windowSlug) {
+    WindowMetrics metrics = windows.get(windowSlug);
+    if (metrics == null) {
+      WindowMetrics created = new WindowMetrics();
+      metrics = windows.putIfAbsent(windowSlug, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    return metrics;
+  }
+
+  private static final class WindowMetrics {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong badRequests = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong creates = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private void record(Outcome outcome, RenderedUpdate response, long bytes, long nanos) {
+      requests.incrementAndGet();
+      switch (outcome) {
+        case UNCHANGED:
+          unchanged.incrementAndGet();
+          break;
+        case CACHE_HIT:
+          cacheHits.incrementAndGet();
+          break;
+        case CACHE_MISS:
+          cacheMisses.incrementAndGet();
+          break;
+        case NOT_MODIFIED:
+          notModified.incrementAndGet();
+          break;
+        default:
+          break;
+      }
+      if (response != null) {
+        creates.addAndGet(response.getCreateCount());
+        deletes.addAndGet(response.getDeleteCount());
+        changes.addAndGet(response.getChangeCount());
+      }
+      bytesWritten.addAndGet(bytes);
+      latency.record(nanos);
+    }
+
+    private Map<String, Object> toMap() {
+      Map<String, Object> map = Maps.newLinkedHashMap();
+      long hits = cacheHits.get() + unchanged.get();
+      long lookups = hits + cacheMisses.get();
+      map.put("requests", requests.get());
+      map.put("bad_requests", badRequests.get());
+      map.put("unchanged", unchanged.get());
+      map.put("not_modified", notModified.get());
+      map.put("cache_hits", cacheHits.get());
+      map.put("cache_misses", cacheMisses.get());
+      map.put("cache_hit_ratio", lookups == 0 ? 0.0 : (double) hits / lookups);
+      map.put("resyncs", resyncs.get());
+      map.put("bytes_written", bytesWritten.get());
+      map.put("creates", creates.get());
+      map.put("deletes", deletes.get());
+      map.put("changes", changes.get());
+      map.put("latency", latency.toMap());
+      return map;
+    }
+  }
+}
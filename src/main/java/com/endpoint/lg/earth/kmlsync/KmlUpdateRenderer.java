@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the NetworkLinkControl document that brings a Google Earth Window
+ * from the assets it has loaded to the assets it should have loaded.
+ *
+ * KML Resources:
+ * https://developers.google.com/kml/documentation/kml_tut#network_links
+ * https://developers.google.com/kml/documentation/updates
+ */
+public class KmlUpdateRenderer {
+  /**
+   * ID of the Document in master.kml that NetworkLinks are created in.
+   */
+  public static final String MASTER_DOCUMENT_ID = "master";
+
+  /**
+   * ID of the Folder, inside the master Document, that NetworkLinks are
+   * created in when clients keep a state token instead of asset slugs. Deleting
+   * it unloads every asset at once.
+   */
+  public static final String ASSET_FOLDER_ID = "kmlsync-assets";
+
+  /**
+   * minRefreshPeriod, in seconds, for Windows polling at the normal rate.
+   */
+  public static final int DEFAULT_MIN_REFRESH_PERIOD = 1;
+
+  /**
+   * URL of the master.kml document that updates target.
+   */
+  private final String targetHref;
+
+  /**
+   * Proxy that asset links point through, or null to link to assets directly.
+   */
+  private final AssetCache assetCache;
+
+  /**
+   * Whether the cookie carries a {@link WindowHistory#token(WindowState)}
+   * rather than the slug and hash of every asset.
+   */
+  private final boolean tokenCookies;
+
+  public KmlUpdateRenderer(String targetHref) {
+    this(targetHref, null, false);
+  }
+
+  public KmlUpdateRenderer(String targetHref, AssetCache assetCache, boolean tokenCookies) {
+    this.targetHref = targetHref;
+    this.assetCache = assetCache;
+    this.tokenCookies = tokenCookies;
+  }
+
+  public boolean isTokenCookies() {
+    return tokenCookies;
+  }
+
+  /**
+   * Renders the update document for an already computed diff.
+   *
+   * @param state
+   *          what the Window should have loaded
+   * @param diff
+   *          how to get the Window there from what it has loaded
+   * @param minRefreshPeriod
+   *          least seconds the Window should wait before polling again
+   * @param out
+   *          where to write the UTF-8 encoded document
+   */
+  public void render(WindowState state, AssetDiff diff, int minRefreshPeriod, OutputStream out)
+      throws IOException {
+    KmlWriter kml = KmlWriter.open(out);
+    try {
+      startNetworkLinkControl(kml, state, minRefreshPeriod);
+      // URL to master.kml goes here.
+      kml.startUpdate(targetHref);
+
+      // If there are any assets the client should load but hasn't yet,
+      if (!diff.getCreates().isEmpty()) {
+        if (tokenCookies) {
+          kml.startCreateInFolder(ASSET_FOLDER_ID);
+        } else {
+          kml.startCreate(MASTER_DOCUMENT_ID);
+        }
+        // For each asset the client should load but hasn't yet,
+        for (Map<String, Object> asset : diff.getCreates()) {
+          Asset a = Asset.of(asset);
+          kml.networkLink(a, href(a));
+        }
+        if (tokenCookies) {
+          kml.endCreateInFolder();
+        } else {
+          kml.endCreate();
+        }
+      }
+
+      // If there are any assets the client has loaded but should unload,
+      if (!diff.getDeletes().isEmpty()) {
+        kml.startDelete();
+        for (String assetSlug : diff.getDeletes()) {
+          kml.deleteNetworkLink(assetSlug);
+        }
+        kml.endDelete();
+      }
+
+      // If there are any assets the client has loaded, but whose title or
+      // storage URL has since changed, update them in place.
+      if (!diff.getChanges().isEmpty()) {
+        kml.startChange();
+        for (Map<String, Object> asset : diff.getChanges()) {
+          Asset a = Asset.of(asset);
+          kml.changeNetworkLink(a, href(a));
+        }
+        kml.endChange();
+      }
+
+      kml.endUpdate();
+      kml.endNetworkLinkControl();
+      kml.endKml();
+      kml.finish();
+    } finally {
+      kml.release();
+    }
+  }
+
+  /**
+   * Renders the update document into memory, for a client that reported the
+   * slug and content hash of each asset it has loaded.
+   */
+  public RenderedUpdate render(WindowState state, List<String> clientAssetSlugList,
+      List<String> clientAssetHashList, int minRefreshPeriod) {
+    AssetDiff diff = AssetDiff.between(clientAssetSlugList, clientAssetHashList, state);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      render(state, diff, minRefreshPeriod, out);
+    } catch (IOException e) {
+      // Can't happen, writing to memory
+      throw new IllegalStateException(e);
+    }
+    return new RenderedUpdate(out.toByteArray(), diff.getCreates().size(), diff.getDeletes().size(),
+        diff.getChanges().size());
+  }
+
+  /**
+   * Renders the response for a Window that already has every asset it should,
+   * which only needs to hand the cookie back.
+   */
+  public void renderUnchanged(WindowState state, int minRefreshPeriod, OutputStream out) throws IOException {
+    KmlWriter kml = KmlWriter.open(out);
+    try {
+      startNetworkLinkControl(kml, state, minRefreshPeriod);
+      kml.endNetworkLinkControl();
+      kml.endKml();
+      kml.finish();
+    } finally {
+      kml.release();
+    }
+  }
+
+  /**
+   * Renders the unchanged response into memory.
+   */
+  public RenderedUpdate renderUnchanged(WindowState state, int minRefreshPeriod) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      renderUnchanged(state, minRefreshPeriod, out);
+    } catch (IOException e) {
+      // Can't happen, writing to memory
+      throw new IllegalStateException(e);
+    }
+    return new RenderedUpdate(out.toByteArray(), 0, 0, 0);
+  }
+
+  /**
+   * Renders the response for a token cookie client whose token is missing or
+   * no longer known: the asset Folder, and everything the client had in it,
+   * is deleted and created again with every asset the Window should have.
+   *
+   * A client polling for the first time has no Folder yet; Google Earth skips
+   * a Delete whose target doesn't exist.
+   */
+  public RenderedUpdate renderResync(WindowState state, int minRefreshPeriod) {
+    AssetDiff diff = AssetDiff.between(Collections.<String>emptyList(), state);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    KmlWriter kml = KmlWriter.open(out);
+    try {
+      startNetworkLinkControl(kml, state, minRefreshPeriod);
+      kml.startUpdate(targetHref);
+
+      kml.startDelete();
+      kml.deleteFolder(ASSET_FOLDER_ID);
+      kml.endDelete();
+
+      kml.startCreate(MASTER_DOCUMENT_ID);
+      kml.startFolder(ASSET_FOLDER_ID);
+      for (Map<String, Object> asset : diff.getCreates()) {
+        Asset a = Asset.of(asset);
+        kml.networkLink(a, href(a));
+      }
+      kml.endFolder();
+      kml.endCreate();
+
+      kml.endUpdate();
+      kml.endNetworkLinkControl();
+      kml.endKml();
+      kml.finish();
+    } catch (IOException e) {
+      // Can't happen, writing to memory
+      throw new IllegalStateException(e);
+    } finally {
+      kml.release();
+    }
+    return new RenderedUpdate(out.toByteArray(), diff.getCreates().size(), 1, 0);
+  }
+
+  /**
+   * Renders the master.kml document, an empty Document that update documents
+   * add NetworkLinks to.
+   */
+  public static byte[] renderMaster() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      renderMaster(out);
+    } catch (IOException e) {
+      // Can't happen, writing to memory
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Renders master.kml.
+   */
+  public static void renderMaster(OutputStream out) throws IOException {
+    KmlWriter kml = KmlWriter.open(out);
+    try {
+      kml.startKml();
+      kml.startDocument(MASTER_DOCUMENT_ID);
+      kml.endDocument();
+      kml.endKml();
+      kml.finish();
+    } finally {
+      kml.release();
+    }
+  }
+
+  /**
+   * Opens the document and its NetworkLinkControl, up to and including the
+   * cookie, which names each asset the Window should have and the content
+   * hash of its current version, or in token mode just names the state.
+   */
+  private void startNetworkLinkControl(KmlWriter kml, WindowState state, int minRefreshPeriod)
+      throws IOException {
+    kml.startKml();
+    kml.startNetworkLinkControl();
+    kml.element("minRefreshPeriod", Integer.toString(minRefreshPeriod));
+    kml.element("maxSessionLength", "-1");
+
+    // slugs of serverAssetList go here
+    kml.startCookie();
+    if (tokenCookies) {
+      kml.cookieParameter(UpdateQuery.STATE_TOKEN, WindowHistory.token(state), true);
+      kml.endCookie();
+      return;
+    }
+    List<String> serverAssetSlugList = state.getAssetSlugs();
+    List<String> serverAssetHashList = state.getAssetHashes();
+    for (int i = 0; i < serverAssetSlugList.size(); i++) {
+      kml.cookieParameter("asset_slug", serverAssetSlugList.get(i), i == 0);
+      kml.cookieParameter("asset_hash", serverAssetHashList.get(i), false);
+    }
+    kml.endCookie();
+  }
+
+  private String href(Asset asset) {
+    String storage = asset.getStorage();
+    return assetCache == null || storage == null ? storage : assetCache.rewrite(storage);
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import interactivespaces.service.web.HttpResponseCode;
+import interactivespaces.service.web.server.HttpDynamicRequestHandler;
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Handler for HTTP GET Requests from Google Earth.
+ *
+ * KML Resources:
+ * https://developers.google.com/kml/documentation/kml_tut#network_links
+ * https://developers.google.com/kml/documentation/updates
+ */
+public class KmlUpdateRequestHandler implements HttpDynamicRequestHandler {
+  private final WindowAssetStore windowAssetStore;
+  private final KmlUpdateRenderer updateRenderer;
+  private final UpdateResponseCache updateResponseCache;
+  private final WindowChangeWaiter windowChangeWaiter;
+  private final KmlSyncMetrics metrics;
+  private final SyncLog log;
+  private final int compressionMinLength;
+  private final RefreshAdvisor refreshAdvisor;
+  private final WindowHistory windowHistory;
+
+  /**
+   * The parts of a handler that are optional. By default a handler answers
+   * every poll straight away, never compresses, always asks for the default
+   * refresh period, and reads the slugs of every asset a client has from its
+   * cookie.
+   */
+  public static class Options {
+    private WindowChangeWaiter windowChangeWaiter;
+    private int compressionMinLength = -1;
+    private RefreshAdvisor refreshAdvisor;
+    private WindowHistory windowHistory;
+
+    /**
+     * Parks requests from up to date Windows until they change.
+     */
+    public Options windowChangeWaiter(WindowChangeWaiter windowChangeWaiter) {
+      this.windowChangeWaiter = windowChangeWaiter;
+      return this;
+    }
+
+    /**
+     * Shortest response body to compress for clients that accept gzip or
+     * deflate, or -1 to never compress.
+     */
+    public Options compressionMinLength(int compressionMinLength) {
+      this.compressionMinLength = compressionMinLength;
+      return this;
+    }
+
+    /**
+     * Picks each Window's minRefreshPeriod.
+     */
+    public Options refreshAdvisor(RefreshAdvisor refreshAdvisor) {
+      this.refreshAdvisor = refreshAdvisor;
+      return this;
+    }
+
+    /**
+     * Recent states to look client state tokens up in; must be given if and
+     * only if the renderer writes token cookies.
+     */
+    public Options windowHistory(WindowHistory windowHistory) {
+      this.windowHistory = windowHistory;
+      return this;
+    }
+  }
+
+  /**
+   * @param log
+   *          logs a sample of polls, and every render, at debug level
+   */
+  public KmlUpdateRequestHandler(WindowAssetStore windowAssetStore, KmlUpdateRenderer updateRenderer,
+      UpdateResponseCache updateResponseCache, KmlSyncMetrics metrics, SyncLog log, Options options) {
+    this.windowAssetStore = windowAssetStore;
+    this.updateRenderer = updateRenderer;
+    this.updateResponseCache = updateResponseCache;
+    this.metrics = metrics;
+    this.log = log;
+    this.windowChangeWaiter = options.windowChangeWaiter;
+    this.compressionMinLength = options.compressionMinLength;
+    this.refreshAdvisor = options.refreshAdvisor;
+    this.windowHistory = options.windowHistory;
+  }
+
+  /**
+   * A dynamic HTTP request has come in for a KML Sync.
+   *
+   * @param request
+   *          the HTTP request
+   * @param response
+   *          the HTTP response
+   */
+  @Override
+  public void handle(HttpRequest request, HttpResponse response) {
+    long start = System.nanoTime();
+    URI uri = request.getUri();
+
+    // The cookie's slugs were URL-encoded once, so decode the raw query once.
+    UpdateQuery query = UpdateQuery.parse(uri.getRawQuery());
+    try {
+      respond(request, response, query, start);
+    } finally {
+      query.release();
+    }
+  }
+
+  /**
+   * Answers an update request once its parameters are parsed.
+   */
+  private void respond(HttpRequest request, HttpResponse response, UpdateQuery query, long start) {
+    // KML MIME Type
+    // See https://developers.google.com/kml/documentation/kml_tut#kml_server
+    response.setContentType("application/vnd.google-earth.kml+xml");
+    response.setResponseCode(200); //OK
+
+    // Which Earth Window is this HTTP request coming from?
+    String clientWindowSlug = query.getWindowSlug();
+    if (clientWindowSlug == null) {
+        log.getLog().error("No window slug provided.");
+        response.setResponseCode(HttpResponseCode.BAD_REQUEST);
+        metrics.recordBadRequest();
+        return;
+    }
+
+    // What Assets _should_ the client have loaded? Unknown Windows get an
+    // empty list.
+    WindowState serverState = windowAssetStore.get(clientWindowSlug);
+
+    // What Assets does this Earth Window already have loaded, and which
+    // version of each? A state token names a recent state of the Window; if
+    // it's missing or too old, the Window is sent everything again.
+    List<String> clientAssetSlugList;
+    List<String> clientAssetHashList;
+    boolean resync = false;
+    if (windowHistory != null) {
+      WindowState clientState = query.hasStateToken() ? windowHistory.find(clientWindowSlug,
+          query.getStateTokenVersion(), query.getStateTokenFingerprint()) : null;
+      if (clientState != null) {
+        clientAssetSlugList = clientState.getAssetSlugs();
+        clientAssetHashList = clientState.getAssetHashes();
+      } else {
+        resync = true;
+        clientAssetSlugList = Collections.emptyList();
+        clientAssetHashList = Collections.emptyList();
+      }
+    } else {
+      clientAssetSlugList = query.resolveAssetSlugs(serverState);
+      clientAssetHashList = query.getAssetHashes();
+    }
+
+    // With long polling, a Window that's already up to date waits here for its
+    // next change rather than coming back on its next poll.
+    long clientFingerprint = WindowState.fingerprint(clientAssetSlugList, clientAssetHashList);
+    if (windowChangeWaiter != null && !resync
+        && serverState.isLoadedBy(clientFingerprint, clientAssetSlugList, clientAssetHashList)) {
+      long waitStart = System.nanoTime();
+      serverState = windowChangeWaiter.awaitChange(clientWindowSlug, serverState.getVersion());
+      start += System.nanoTime() - waitStart;
+    }
+
+    // Windows that have been idle a while are asked to poll less often.
+    int minRefreshPeriod = refreshAdvisor == null
+        ? KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD : refreshAdvisor.getMinRefreshPeriod(clientWindowSlug);
+
+    // Big bodies go out compressed to clients that take it, so when
+    // compression is on the response depends on Accept-Encoding.
+    ContentCoding coding = null;
+    if (compressionMinLength >= 0) {
+      response.addContentHeader("Vary", "Accept-Encoding");
+      coding = ContentCoding.negotiate(request);
+    }
+
+    // Clients that can send If-None-Match don't need the body again if
+    // neither side has changed since they last got it. Each coding's body
+    // gets its own tag.
+    String etag = "W/\"" + serverState.getVersion() + "-"
+        + (resync ? "resync" : Long.toHexString(clientFingerprint)) + "-" + minRefreshPeriod
+        + (coding == null ? "" : "-" + coding.getName()) + "\"";
+    response.addContentHeader("ETag", etag);
+    if (StaticResponse.matchesEtag(request, etag)) {
+      response.setResponseCode(HttpResponseCode.NOT_MODIFIED);
+      long nanos = System.nanoTime() - start;
+      metrics.recordPoll(clientWindowSlug, KmlSyncMetrics.Outcome.NOT_MODIFIED, null, 0, nanos);
+      if (log.sample()) {
+        log.event("poll", "window", clientWindowSlug, "version", serverState.getVersion(),
+            "outcome", KmlSyncMetrics.Outcome.NOT_MODIFIED, "us", nanos / 1000);
+      }
+      return;
+    }
+
+    RenderedUpdate output;
+    KmlSyncMetrics.Outcome outcome;
+    if (resync) {
+      // Replace the asset Folder and everything in it.
+      outcome = KmlSyncMetrics.Outcome.CACHE_HIT;
+      output = updateResponseCache.getResync(serverState, minRefreshPeriod);
+      if (output == null) {
+        outcome = KmlSyncMetrics.Outcome.CACHE_MISS;
+        output = updateRenderer.renderResync(serverState, minRefreshPeriod);
+        if (log.isDebugEnabled()) {
+          log.event("render", "window", clientWindowSlug, "version", serverState.getVersion(),
+              "resync", true, "assets", serverState.getAssets().size(), "bytes", output.getBody().length);
+        }
+        updateResponseCache.putResync(serverState, minRefreshPeriod, output);
+      }
+      metrics.recordResync(clientWindowSlug);
+    } else if (serverState.isLoadedBy(clientFingerprint, clientAssetSlugList, clientAssetHashList)) {
+      // Nothing to create or delete; just hand back the cookie.
+      outcome = KmlSyncMetrics.Outcome.UNCHANGED;
+      output = updateResponseCache.getUnchanged(serverState, minRefreshPeriod);
+      if (output == null) {
+        output = updateRenderer.renderUnchanged(serverState, minRefreshPeriod);
+        updateResponseCache.putUnchanged(serverState, minRefreshPeriod, output);
+      }
+    } else {
+      // Polls with the same cookie against the same state get the same answer.
+      UpdateResponseCache.Key key = new UpdateResponseCache.Key(clientWindowSlug, serverState.getVersion(),
+          clientFingerprint, clientAssetSlugList, clientAssetHashList, minRefreshPeriod);
+      outcome = KmlSyncMetrics.Outcome.CACHE_HIT;
+      output = updateResponseCache.get(key);
+      if (output == null) {
+        outcome = KmlSyncMetrics.Outcome.CACHE_MISS;
+        output = updateRenderer.render(serverState, clientAssetSlugList, clientAssetHashList, minRefreshPeriod);
+        if (log.isDebugEnabled()) {
+          log.event("render", "window", clientWindowSlug, "version", serverState.getVersion(),
+              "client_assets", clientAssetSlugList.size(), "assets", serverState.getAssets().size(),
+              "creates", output.getCreateCount(), "deletes", output.getDeleteCount(),
+              "changes", output.getChangeCount(), "bytes", output.getBody().length);
+        }
+        updateResponseCache.put(key, output);
+      }
+    }
+
+    // The compressed copy is kept with the response, so cached responses
+    // compress once.
+    byte[] body = output.getBody();
+    if (coding != null && body.length >= compressionMinLength) {
+      body = output.getBody(coding);
+      response.addContentHeader("Content-Encoding", coding.getName());
+    }
+
+    OutputStream outputStream = response.getOutputStream();
+
+    // Write the HTTP Response to the client.
+    try {
+      outputStream.write(body);
+    } catch (Exception e) {
+      log.getLog().error("Error writing HTTP Response", e);
+      response.setResponseCode(HttpResponseCode.BAD_REQUEST);
+    }
+    long nanos = System.nanoTime() - start;
+    metrics.recordPoll(clientWindowSlug, outcome, output, body.length, nanos);
+    if (log.sample()) {
+      log.event("poll", "window", clientWindowSlug, "version", serverState.getVersion(), "outcome", outcome,
+          "client_assets", clientAssetSlugList.size(), "refresh", minRefreshPeriod, "bytes", body.length,
+          "us", nanos / 1000);
+    }
+  }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes KML documents straight to an OutputStream as UTF-8, escaping text and
+ * attribute values as it goes.
+ *
+ * Writers are pooled per thread, along with their character and byte buffers
+ * and encoder, so writing a document doesn't allocate. Get one with
+ * {@link #open(OutputStream)}, call {@link #finish()} once the document is
+ * complete, and always {@link #release()} it afterwards.
+ *
+ * KML Resources:
+ * https://developers.google.com/kml/documentation/kmlreference
+ * https://developers.google.com/kml/documentation/updates
+ */
+public final class KmlWriter {
+  private static final String KML_NAMESPACES =
+      "xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\" xmlns:kml=\"http://www.opengis.net/kml/2.2\" xmlns:atom=\"http://www.w3.org/2005/Atom\"";
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private static final int CHAR_BUFFER_SIZE = 4096;
+  private static final int BYTE_BUFFER_SIZE = 3 * CHAR_BUFFER_SIZE;
+
+  private static final ThreadLocal<KmlWriter> POOL = new ThreadLocal<KmlWriter>() {
+    @Override
+    protected KmlWriter initialValue() {
+      return new KmlWriter();
+    }
+  };
+
+  private final char[] chars = new char[CHAR_BUFFER_SIZE];
+  private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+  private final ByteBuffer bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+  private final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  private int charCount;
+  private int depth;
+  private boolean inUse;
+  private OutputStream out;
+
+  private KmlWriter() {
+  }
+
+  /**
+   * Returns a writer for the given stream, reusing this thread's writer when
+   * it's free.
+   */
+  public static KmlWriter open(OutputStream out) {
+    KmlWriter writer = POOL.get();
+    if (writer.inUse) {
+      writer = new KmlWriter();
+    }
+    writer.inUse = true;
+    writer.out = out;
+    writer.charCount = 0;
+    writer.depth = 0;
+    writer.encoder.reset();
+    return writer;
+  }
+
+  /**
+   * Encodes and writes out everything written so far. Does not close the
+   * underlying stream.
+   */
+  public void finish() throws IOException {
+    drain(true);
+    bytes.clear();
+    encoder.flush(bytes);
+    writeBytes();
+    encoder.reset();
+    out.flush();
+  }
+
+  /**
+   * Detaches the writer from its stream and returns it to the pool, dropping
+   * anything not yet written by {@link #finish()}.
+   */
+  public void release() {
+    out = null;
+    charCount = 0;
+    inUse = false;
+  }
+
+  /**
+   * Writes the XML declaration and opens the kml element.
+   */
+  public KmlWriter startKml() throws IOException {
+    raw("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    return open("<kml " + KML_NAMESPACES + ">");
+  }
+
+  public KmlWriter endKml() throws IOException {
+    return close("</kml>");
+  }
+
+  public KmlWriter startDocument(String id) throws IOException {
+    indent();
+    raw("<Document id=\"");
+    attribute(id);
+    raw("\">\n");
+    depth++;
+    return this;
+  }
+
+  public KmlWriter endDocument() throws IOException {
+    return close("</Document>");
+  }
+
+  public KmlWriter startNetworkLinkControl() throws IOException {
+    return open("<NetworkLinkControl>");
+  }
+
+  public KmlWriter endNetworkLinkControl() throws IOException {
+    return close("</NetworkLinkControl>");
+  }
+
+  /**
+   * Writes a simple element with escaped text content, e.g. minRefreshPeriod.
+   */
+  public KmlWriter element(String name, String value) throws IOException {
+    indent();
+    raw("<");
+    raw(name);
+    raw(">");
+    text(value);
+    raw("</");
+    raw(name);
+    raw(">\n");
+    return this;
+  }
+
+  /**
+   * Opens a NetworkLinkControl cookie. Follow with
+   * {@link #cookieParameter(String, String, boolean)} calls and {@link #endCookie()}.
+   */
+  public KmlWriter startCookie() throws IOException {
+    indent();
+    raw("<cookie><![CDATA[");
+    return this;
+  }
+
+  /**
+   * Appends one URL encoded query parameter to an open cookie.
+   *
+   * @param first
+   *          whether this is the first parameter in the cookie
+   */
+  public KmlWriter cookieParameter(String name, String value, boolean first) throws IOException {
+    if (!first) {
+      raw("&");
+    }
+    // URL encoding also keeps "]]>" out of the CDATA section
+    urlEncoded(name);
+    raw("=");
+    urlEncoded(value);
+    return this;
+  }
+
+  public KmlWriter endCookie() throws IOException {
+    raw("]]></cookie>\n");
+    return this;
+  }
+
+  public KmlWriter startUpdate(String targetHref) throws IOException {
+    open("<Update>");
+    return element("targetHref", targetHref);
+  }
+
+  public KmlWriter endUpdate() throws IOException {
+    return close("</Update>");
+  }
+
+  /**
+   * Opens a Create element adding children to the Document with the given ID.
+   */
+  public KmlWriter startCreate(String documentId) throws IOException {
+    indent();
+    raw("<Create><Document targetId=\"");
+    attribute(documentId);
+    raw("\">\n");
+    depth++;
+    return this;
+  }
+
+  public KmlWriter endCreate() throws IOException {
+    return close("</Document></Create>");
+  }
+
+  /**
+   * Opens a Create element adding children to the Folder with the given ID.
+   */
+  public KmlWriter startCreateInFolder(String folderId) throws IOException {
+    indent();
+    raw("<Create><Folder targetId=\"");
+    attribute(folderId);
+    raw("\">\n");
+    depth++;
+    return this;
+  }
+
+  public KmlWriter endCreateInFolder() throws IOException {
+    return close("</Folder></Create>");
+  }
+
+  public KmlWriter startFolder(String id) throws IOException {
+    indent();
+    raw("<Folder id=\"");
+    attribute(id);
+    raw("\">\n");
+    depth++;
+    return this;
+  }
+
+  public KmlWriter endFolder() throws IOException {
+    return close("</Folder>");
+  }
+
+  public KmlWriter startDelete() throws IOException {
+    return open("<Delete>");
+  }
+
+  public KmlWriter endDelete() throws IOException {
+    return close("</Delete>");
+  }
+
+  public KmlWriter startChange() throws IOException {
+    return open("<Change>");
+  }
+
+  public KmlWriter endChange() throws IOException {
+    return close("</Change>");
+  }
+
+  /**
+   * Writes a new NetworkLink for an asset, from its pre-escaped fields.
+   *
+   * @param href
+   *          where the link points, which is escaped here unless it's the
+   *          asset's own storage URL
+   */
+  public KmlWriter networkLink(Asset asset, String href) throws IOException {
+    indent();
+    raw("<NetworkLink id=\"");
+    raw(asset.getEscapedSlug());
+    raw("\">\n");
+    networkLinkBody(asset, href);
+    return this;
+  }
+
+  /**
+   * Writes replacement values for an existing NetworkLink from an asset's
+   * pre-escaped fields.
+   */
+  public KmlWriter changeNetworkLink(Asset asset, String href) throws IOException {
+    indent();
+    raw("<NetworkLink targetId=\"");
+    raw(asset.getEscapedSlug());
+    raw("\">\n");
+    networkLinkBody(asset, href);
+    return this;
+  }
+
+  /**
+   * Writes a reference to an existing NetworkLink, for use inside a Delete
+   * element.
+   */
+  public KmlWriter deleteNetworkLink(String targetId) throws IOException {
+    indent();
+    raw("<NetworkLink targetId=\"");
+    attribute(targetId);
+    raw("\" />\n");
+    return this;
+  }
+
+  /**
+   * Writes a reference to an existing Folder, for use inside a Delete
+   * element.
+   */
+  public KmlWriter deleteFolder(String targetId) throws IOException {
+    indent();
+    raw("<Folder targetId=\"");
+    attribute(targetId);
+    raw("\" />\n");
+    return this;
+  }
+
+  /**
+   * Writes characters as they are, without escaping.
+   */
+  public KmlWriter raw(String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      put(s.charAt(i));
+    }
+    return this;
+  }
+
+  /**
+   * Writes element text content, escaped.
+   */
+  public KmlWriter text(String s) throws IOException {
+    if (s == null) {
+      return this;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '&':
+          raw("&amp;");
+          break;
+        case '<':
+          raw("&lt;");
+          break;
+        case '>':
+          raw("&gt;");
+          break;
+        default:
+          if (isXmlChar(c)) {
+            put(c);
+          }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Writes a double-quoted attribute value, escaped.
+   */
+  public KmlWriter attribute(String s) throws IOException {
+    if (s == null) {
+      return this;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '&':
+          raw("&amp;");
+          break;
+        case '<':
+          raw("&lt;");
+          break;
+        case '>':
+          raw("&gt;");
+          break;
+        case '"':
+          raw("&quot;");
+          break;
+        case '\'':
+          raw("&apos;");
+          break;
+        default:
+          if (isXmlChar(c)) {
+            put(c);
+          }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Returns text content escaped as {@link #text(String)} would write it.
+   */
+  static String escapeText(String s) {
+    return escape(s, false);
+  }
+
+  /**
+   * Returns an attribute value escaped as {@link #attribute(String)} would
+   * write it.
+   */
+  static String escapeAttribute(String s) {
+    return escape(s, true);
+  }
+
+  /**
+   * Escapes a String, returning it as it is if nothing needs escaping.
+   */
+  private static String escape(String s, boolean attribute) {
+    if (s == null) {
+      return null;
+    }
+    StringBuilder escaped = null;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      String replacement;
+      switch (c) {
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = "&gt;";
+          break;
+        case '"':
+          replacement = attribute ? "&quot;" : null;
+          break;
+        case '\'':
+          replacement = attribute ? "&apos;" : null;
+          break;
+        default:
+          replacement = isXmlChar(c) ? null : "";
+      }
+      if (replacement != null && escaped == null) {
+        escaped = new StringBuilder(s.length() + 16);
+        escaped.append(s, 0, i);
+      }
+      if (replacement != null) {
+        escaped.append(replacement);
+      } else if (escaped != null) {
+        escaped.append(c);
+      }
+    }
+    return escaped == null ? s : escaped.toString();
+  }
+
+  private void networkLinkBody(Asset asset, String href) throws IOException {
+    depth++;
+    indent();
+    raw("<name>");
+    raw(asset.getEscapedTitle());
+    raw("</name>\n");
+    indent();
+    raw("<Link><href>");
+    // Only the asset's own String is known to match its escaped copy
+    if (href == asset.getStorage()) {
+      raw(asset.getEscapedStorage());
+    } else {
+      text(href);
+    }
+    raw("</href></Link>\n");
+    depth--;
+    indent();
+    raw("</NetworkLink>\n");
+  }
+
+  private KmlWriter open(String tag) throws IOException {
+    indent();
+    raw(tag);
+    put('\n');
+    depth++;
+    return this;
+  }
+
+  private KmlWriter close(String tag) throws IOException {
+    depth--;
+    indent();
+    raw(tag);
+    put('\n');
+    return this;
+  }
+
+  private void indent() throws IOException {
+    for (int i = 0; i < depth; i++) {
+      put(' ');
+      put(' ');
+    }
+  }
+
+  private void put(char c) throws IOException {
+    if (charCount == chars.length) {
+      drain(false);
+    }
+    chars[charCount++] = c;
+  }
+
+  /**
+   * Encodes the character buffer into the byte buffer, writing the bytes out
+   * whenever it fills. A trailing high surrogate is kept back until its pair
+   * arrives.
+   */
+  private void drain(boolean endOfInput) throws IOException {
+    charBuffer.limit(charCount).position(0);
+    CoderResult result;
+    do {
+      bytes.clear();
+      result = encoder.encode(charBuffer, bytes, endOfInput);
+      writeBytes();
+    } while (result.isOverflow());
+
+    int left = charBuffer.remaining();
+    System.arraycopy(chars, charBuffer.position(), chars, 0, left);
+    charCount = left;
+    charBuffer.clear();
+  }
+
+  private void writeBytes() throws IOException {
+    bytes.flip();
+    if (bytes.hasRemaining()) {
+      out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    }
+    bytes.clear();
+  }
+
+  /**
+   * Whether the character may appear in an XML 1.0 document.
+   */
+  private static boolean isXmlChar(char c) {
+    return c >= 0x20 ? c != 0xfffe && c != 0xffff : c == '\t' || c == '\n' || c == '\r';
+  }
+
+  /**
+   * Writes the string form encoded as {@link java.net.URLEncoder} would with
+   * UTF-8, straight into the character buffer. Null is written as nothing,
+   * and an unpaired surrogate as an encoded "?".
+   */
+  private void urlEncoded(String s) throws IOException {
+    if (s == null) {
+      return;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '.' || c == '-' || c == '*' || c == '_') {
+        put(c);
+      } else if (c == ' ') {
+        put('+');
+      } else if (c < 0x80) {
+        percent(c);
+      } else if (c < 0x800) {
+        percent(0xc0 | (c >> 6));
+        percent(0x80 | (c & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, s.charAt(++i));
+          percent(0xf0 | (codePoint >> 18));
+          percent(0x80 | ((codePoint >> 12) & 0x3f));
+          percent(0x80 | ((codePoint >> 6) & 0x3f));
+          percent(0x80 | (codePoint & 0x3f));
+        } else {
+          percent('?');
+        }
+      } else {
+        percent(0xe0 | (c >> 12));
+        percent(0x80 | ((c >> 6) & 0x3f));
+        percent(0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void percent(int b) throws IOException {
+    put('%');
+    put(HEX_DIGITS[(b >> 4) & 0xf]);
+    put(HEX_DIGITS[b & 0xf]);
+  }
+}
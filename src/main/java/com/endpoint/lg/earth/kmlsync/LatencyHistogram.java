@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, in power-of-two microsecond buckets.
+ * Percentiles are reported as the upper bound of the bucket they fall in, so
+ * they're accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+  /**
+   * Bucket i holds durations under 2^i microseconds; the last bucket holds
+   * everything longer.
+   */
+  private static final int BUCKETS = 32;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    long micros = Math.max(nanos / 1000, 0);
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the duration, in microseconds, that the given fraction of
+   * recorded durations are under.
+   *
+   * @param fraction
+   *          between 0 and 1, e.g. 0.99
+   */
+  public long getPercentileMicros(double fraction) {
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long threshold = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= threshold) {
+        return 1L << i;
+      }
+    }
+    return 1L << (BUCKETS - 1);
+  }
+
+  /**
+   * Summarizes the histogram for JSON output.
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    long total = count.get();
+    map.put("count", total);
+    map.put("mean_us", total == 0 ? 0 : totalNanos.get() / total / 1000);
+    map.put("p50_us", getPercentileMicros(0.50));
+    map.put("p90_us", getPercentileMicros(0.90));
+    map.put("p99_us", getPercentileMicros(0.99));
+    map.put("p999_us", getPercentileMicros(0.999));
+    map.put("max_us", maxNanos.get() / 1000);
+    return map;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.ArrayListMultimap;
+
+/**
+ * Parses the parameters of a request URI's query string.
+ */
+public final class QueryParams {
+  private QueryParams() {
+  }
+
+  /**
+   * Splits a query string into its parameters, URL-decoding each value.
+   * Parameters without a value map to the empty string.
+   *
+   * This is the general purpose parser for the modify and query pages. Update
+   * requests, which come in far more often, use {@link UpdateQuery}.
+   */
+  public static ArrayListMultimap<String, String> parse(String rawQuery) {
+    ArrayListMultimap<String, String> params = ArrayListMultimap.create();
+    if (rawQuery == null) {
+      return params;
+    }
+    StringBuilder value = new StringBuilder();
+    int length = rawQuery.length();
+    int start = 0;
+    while (start < length) {
+      int end = rawQuery.indexOf('&', start);
+      if (end == -1) {
+        end = length;
+      }
+      if (end > start) {
+        int pos = rawQuery.indexOf('=', start);
+        if (pos != -1 && pos < end) {
+          value.setLength(0);
+          decode(rawQuery, pos + 1, end, value);
+          params.put(rawQuery.substring(start, pos).trim(), value.toString());
+        } else {
+          params.put(rawQuery.substring(start, end).trim(), "");
+        }
+      }
+      start = end + 1;
+    }
+    return params;
+  }
+
+  /**
+   * URL-decodes part of a query string onto the end of a StringBuilder:
+   * '+' becomes a space and percent-escaped bytes are decoded as UTF-8.
+   * Malformed escapes are copied as they are, and malformed UTF-8 becomes
+   * U+FFFD, rather than failing the whole value.
+   */
+  static void decode(String raw, int start, int end, StringBuilder out) {
+    int i = start;
+    while (i < end) {
+      char c = raw.charAt(i);
+      if (c == '+') {
+        out.append(' ');
+        i++;
+      } else if (c != '%') {
+        out.append(c);
+        i++;
+      } else {
+        int b = escapedByte(raw, i, end);
+        if (b == -1) {
+          out.append('%');
+          i++;
+          continue;
+        }
+        i += 3;
+        if (b < 0x80) {
+          out.append((char) b);
+          continue;
+        }
+
+        int remaining;
+        int codePoint;
+        if ((b & 0xe0) == 0xc0) {
+          remaining = 1;
+          codePoint = b & 0x1f;
+        } else if ((b & 0xf0) == 0xe0) {
+          remaining = 2;
+          codePoint = b & 0x0f;
+        } else if ((b & 0xf8) == 0xf0) {
+          remaining = 3;
+          codePoint = b & 0x07;
+        } else {
+          out.append('\ufffd');
+          continue;
+        }
+        for (; remaining > 0; remaining--) {
+          int next = escapedByte(raw, i, end);
+          if (next == -1 || (next & 0xc0) != 0x80) {
+            break;
+          }
+          codePoint = (codePoint << 6) | (next & 0x3f);
+          i += 3;
+        }
+        if (remaining > 0 || codePoint > Character.MAX_CODE_POINT) {
+          out.append('\ufffd');
+        } else {
+          out.appendCodePoint(codePoint);
+        }
+      }
+    }
+  }
+
+  /**
+   * The byte escaped as "%XX" at the given position, or -1 if there isn't one.
+   */
+  private static int escapedByte(String raw, int i, int end) {
+    if (i + 2 >= end || raw.charAt(i) != '%') {
+      return -1;
+    }
+    int high = Character.digit(raw.charAt(i + 1), 16);
+    int low = Character.digit(raw.charAt(i + 2), 16);
+    if (high == -1 || low == -1) {
+      return -1;
+    }
+    return (high << 4) | low;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks the minRefreshPeriod each Window is told to wait between polls, from
+ * how long it has gone without changing. A Window polls every second while
+ * it's busy, and less often the longer it stays the same, up to a limit.
+ *
+ * A change to a Window's assets, or a touch (someone interacting with the
+ * Window), makes it busy again; the next response it gets asks it to poll
+ * every second.
+ */
+public class RefreshAdvisor implements WindowAssetStore.Listener {
+  /**
+   * Shortest refresh period, in seconds, and the one busy Windows get.
+   */
+  public static final int MIN_REFRESH_PERIOD = 1;
+
+  private final int maxRefreshPeriod;
+  private final long backoffMillis;
+  private final long startMillis = System.currentTimeMillis();
+
+  /**
+   * When each Window last changed or was touched.
+   */
+  private final ConcurrentMap<String, Long> lastActive = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * @param maxRefreshPeriod
+   *          longest refresh period, in seconds
+   * @param backoffMillis
+   *          how long a Window must stay the same for each extra second of
+   *          refresh period; at least a millisecond
+   */
+  public RefreshAdvisor(int maxRefreshPeriod, long backoffMillis) {
+    this.maxRefreshPeriod = Math.max(maxRefreshPeriod, MIN_REFRESH_PERIOD);
+    this.backoffMillis = Math.max(1, backoffMillis);
+  }
+
+  /**
+   * The refresh period, in seconds, to send a Window now. It's one second per
+   * backoff interval the Window has been idle, between the minimum and the
+   * maximum; Windows not seen since startup count as idle since then.
+   */
+  public int getMinRefreshPeriod(String windowSlug) {
+    Long active = lastActive.get(windowSlug);
+    long idle = System.currentTimeMillis() - (active == null ? startMillis : active);
+    long period = idle / backoffMillis;
+    return (int) Math.max(MIN_REFRESH_PERIOD, Math.min(maxRefreshPeriod, period));
+  }
+
+  /**
+   * Marks a Window busy, as though it had changed.
+   */
+  public void touch(String windowSlug) {
+    lastActive.put(windowSlug, System.currentTimeMillis());
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    Long now = System.currentTimeMillis();
+    for (String windowSlug : changed.keySet()) {
+      lastActive.put(windowSlug, now);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+/**
+ * A rendered NetworkLinkUpdate response, ready to be written out as many times
+ * as it's needed.
+ */
+public final class RenderedUpdate {
+  private final byte[] body;
+  private final int createCount;
+  private final int deleteCount;
+  private final int changeCount;
+
+  /**
+   * Compressed copies of the body, made the first time they're asked for.
+   */
+  private volatile byte[] gzipBody;
+  private volatile byte[] deflateBody;
+
+  public RenderedUpdate(byte[] body, int createCount, int deleteCount, int changeCount) {
+    this.body = body;
+    this.createCount = createCount;
+    this.deleteCount = deleteCount;
+    this.changeCount = changeCount;
+  }
+
+  /**
+   * The UTF-8 encoded KML document.
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * The body compressed with the given coding, or as is if the coding is
+   * null. Compressed copies are kept, so a response cached for many polls is
+   * compressed once.
+   */
+  public byte[] getBody(ContentCoding coding) {
+    if (coding == null) {
+      return body;
+    }
+    // Two threads may both compress it the first time; either copy will do.
+    if (coding == ContentCoding.GZIP) {
+      if (gzipBody == null) {
+        gzipBody = coding.encode(body);
+      }
+      return gzipBody;
+    }
+    if (deflateBody == null) {
+      deflateBody = coding.encode(body);
+    }
+    return deflateBody;
+  }
+
+  /**
+   * How many NetworkLinks the response creates.
+   */
+  public int getCreateCount() {
+    return createCount;
+  }
+
+  /**
+   * How many NetworkLinks the response deletes.
+   */
+  public int getDeleteCount() {
+    return deleteCount;
+  }
+
+  /**
+   * How many NetworkLinks the response changes in place.
+   */
+  public int getChangeCount() {
+    return changeCount;
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.logging.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies director scene messages to a {@link WindowAssetStore} on its own
+ * thread, so the thread delivering the messages never waits on parsing or on
+ * the store.
+ *
+ * Each scene is built in full before it replaces the store's state in a single
+ * commit. If several scenes arrive while one is being applied, only the latest
+ * is applied next; the others are skipped.
+ *
+ * Commands that edit the store go through the same thread with
+ * {@link #applyInOrder(Callable)}, so a scene and a command are applied in the
+ * order they arrived: a scene can't land after a later command and wipe it
+ * out, and a command can't be overwritten by an earlier scene.
+ */
+public class SceneIngester {
+  /**
+   * Turns a scene message into the assets each Window should have.
+   */
+  public interface SceneParser {
+    Map<String, List<Map<String, Object>>> parse(Map<String, Object> message) throws IOException;
+  }
+
+  private final WindowAssetStore store;
+  private final SceneParser parser;
+  private final Log log;
+
+  private final ExecutorService executor;
+
+  /**
+   * Guards the pending scene and the sequence numbers. Work is queued on the
+   * executor while holding it, so the queue is in the order scenes and
+   * commands took the lock.
+   */
+  private final Object lock = new Object();
+
+  /**
+   * The latest scene not yet applied or taken by a command, or null.
+   */
+  private Map<String, Object> pending;
+
+  /**
+   * The sequence number of the pending scene. Each scene queues a drain with
+   * its own number, and a drain only applies the pending scene if it's still
+   * that one: otherwise the scene was replaced by a later one, which has a
+   * later drain of its own, or taken by a command, which applies it.
+   */
+  private long pendingSequence;
+  private long sequence;
+
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  public SceneIngester(WindowAssetStore store, SceneParser parser, Log log) {
+    this(store, parser, log, Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("kmlsync-scene-ingester").setDaemon(true).build()));
+  }
+
+  /**
+   * @param executor
+   *          runs scenes and commands one at a time, in the order they're
+   *          queued
+   */
+  SceneIngester(WindowAssetStore store, SceneParser parser, Log log, ExecutorService executor) {
+    this.store = store;
+    this.parser = parser;
+    this.log = log;
+    this.executor = executor;
+  }
+
+  /**
+   * Queues a scene message, replacing any scene still waiting. Returns
+   * immediately.
+   */
+  public void submit(Map<String, Object> message) {
+    synchronized (lock) {
+      try {
+        executor.execute(drain(sequence + 1));
+      } catch (RejectedExecutionException e) {
+        log.warn("Scene ingester is shut down; scene not applied");
+        return;
+      }
+      if (pending != null) {
+        skipped.incrementAndGet();
+      }
+      pending = message;
+      pendingSequence = ++sequence;
+    }
+  }
+
+  /**
+   * Runs a command on the ingester thread, after any scene submitted before
+   * it and before any submitted after, and returns its result. Blocks until
+   * the command has run. Once the ingester is shut down, commands run on the
+   * calling thread.
+   */
+  public <T> T applyInOrder(final Callable<T> command) {
+    // Taking the waiting scene keeps a scene submitted after this command
+    // from being applied in its place, ahead of the command.
+    Callable<T> task;
+    Future<T> result;
+    synchronized (lock) {
+      final Map<String, Object> scene = pending;
+      pending = null;
+      task = new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          if (scene != null) {
+            apply(scene);
+          }
+          return command.call();
+        }
+      };
+      try {
+        result = executor.submit(task);
+      } catch (RejectedExecutionException e) {
+        result = null;
+      }
+    }
+    if (result == null) {
+      return call(task);
+    }
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for a command to be applied", e);
+    } catch (ExecutionException e) {
+      throw propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Scenes applied to the store so far.
+   */
+  public long getApplied() {
+    return applied.get();
+  }
+
+  /**
+   * Scenes replaced by a newer one before they could be applied.
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Stops the ingester thread, waiting briefly for a scene in progress.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Runnable drain(final long scheduledSequence) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        Map<String, Object> message;
+        synchronized (lock) {
+          if (pending == null || pendingSequence != scheduledSequence) {
+            return;
+          }
+          message = pending;
+          pending = null;
+        }
+        apply(message);
+      }
+    };
+  }
+
+  private static <T> T call(Callable<T> task) {
+    try {
+      return task.call();
+    } catch (Exception e) {
+      throw propagate(e);
+    }
+  }
+
+  private static RuntimeException propagate(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new IllegalStateException(t);
+  }
+
+  private void apply(Map<String, Object> message) {
+    try {
+      store.replaceScene(parser.parse(message));
+      applied.incrementAndGet();
+    } catch (IOException e) {
+      log.error("Couldn't parse scene message", e);
+    } catch (RuntimeException e) {
+      log.error("Couldn't apply scene message", e);
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.logging.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares director scenes ahead of time, so switching to one later is a
+ * single swap of the store's Window states.
+ *
+ * Staging a scene parses it, builds the state of each of its Windows, and
+ * renders the update each Window will need, assuming the Windows are showing
+ * the scene staged just before it (or, for the first, what they're showing
+ * now). Activating it hands the states to {@link WindowAssetStore#activate}
+ * and puts the updates in the response cache for every Window that really
+ * was showing that scene. Nothing is rendered ahead when the renderer writes
+ * state tokens, since a token names the version the store only assigns on
+ * activation.
+ *
+ * Both happen in order on the stager's own thread; activation can also be
+ * put in order with director scenes and commands going through a
+ * {@link SceneIngester}. At most a fixed number of
+ * scenes are kept; staging one more drops the least recently staged or
+ * activated.
+ */
+public class SceneStager {
+  /**
+   * Command message types. A stage message's data holds the scene's "id" and
+   * the director "scene" message itself, or a "scenes" list of those; an
+   * activate message's data holds the "id".
+   */
+  public static final String MESSAGE_TYPE_STAGE = "kmlsync.scene.stage";
+  public static final String MESSAGE_TYPE_ACTIVATE = "kmlsync.scene.activate";
+  public static final String MESSAGE_TYPE_CLEAR = "kmlsync.scene.clear_staged";
+
+  /**
+   * A scene ready to activate.
+   */
+  private static final class StagedScene {
+    private final Map<String, WindowState> windows;
+    private final Map<String, Transition> transitions;
+
+    private StagedScene(Map<String, WindowState> windows, Map<String, Transition> transitions) {
+      this.windows = windows;
+      this.transitions = transitions;
+    }
+  }
+
+  /**
+   * What one Window is sent when the scene is activated.
+   */
+  private static final class Transition {
+    /**
+     * The state the update was rendered against.
+     */
+    private final WindowState from;
+    private final RenderedUpdate update;
+    private final RenderedUpdate unchanged;
+
+    private Transition(WindowState from, RenderedUpdate update, RenderedUpdate unchanged) {
+      this.from = from;
+      this.update = update;
+      this.unchanged = unchanged;
+    }
+  }
+
+  private final WindowAssetStore store;
+  private final KmlUpdateRenderer renderer;
+  private final UpdateResponseCache cache;
+  private final SceneIngester.SceneParser parser;
+  private final int maxScenes;
+  private final Log log;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("kmlsync-scene-stager").setDaemon(true).build());
+
+  /**
+   * Staged scenes by ID, least recently staged or activated first. Only used
+   * on the stager thread.
+   */
+  private final LinkedHashMap<String, StagedScene> scenes = new LinkedHashMap<String, StagedScene>();
+
+  /**
+   * The scene staged last, which the next one is rendered against.
+   */
+  private StagedScene lastStaged;
+
+  private final AtomicLong staged = new AtomicLong();
+  private final AtomicLong activated = new AtomicLong();
+  private final AtomicLong prerenderedHits = new AtomicLong();
+  private volatile int size;
+
+  /**
+   * @param maxScenes
+   *          most scenes to keep staged
+   */
+  public SceneStager(WindowAssetStore store, KmlUpdateRenderer renderer, UpdateResponseCache cache,
+      SceneIngester.SceneParser parser, int maxScenes, Log log) {
+    this.store = store;
+    this.renderer = renderer;
+    this.cache = cache;
+    this.parser = parser;
+    this.maxScenes = maxScenes;
+    this.log = log;
+  }
+
+  /**
+   * Queues a director scene message to be staged under the given ID,
+   * replacing any scene staged under it before. Returns immediately.
+   */
+  public void stage(final String id, final Map<String, Object> message) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          stageNow(id, parser.parse(message));
+        } catch (IOException e) {
+          log.error("Couldn't parse scene " + id + " to stage", e);
+        } catch (RuntimeException e) {
+          log.error("Couldn't stage scene " + id, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues activation of a staged scene, after any scenes still being staged.
+   * Returns immediately.
+   */
+  public void activate(final String id) {
+    executor.execute(activation(id));
+  }
+
+  /**
+   * Activates a staged scene in order with the scenes and commands going
+   * through an ingester, so a director scene that arrived first can't land
+   * on top of it. Blocks until the scene is activated, after any scenes
+   * still being staged.
+   */
+  public void activate(final String id, SceneIngester ingester) {
+    ingester.applyInOrder(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Future<?> activated;
+        try {
+          activated = executor.submit(activation(id));
+        } catch (RejectedExecutionException e) {
+          log.warn("Scene stager is shut down; not activating scene " + id);
+          return null;
+        }
+        activated.get();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Queues dropping every staged scene.
+   */
+  public void clear() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        scenes.clear();
+        lastStaged = null;
+        size = 0;
+      }
+    });
+  }
+
+  /**
+   * Scenes staged so far.
+   */
+  public long getStaged() {
+    return staged.get();
+  }
+
+  /**
+   * Scenes activated so far.
+   */
+  public long getActivated() {
+    return activated.get();
+  }
+
+  /**
+   * Windows whose update on activation had been rendered ahead of time.
+   */
+  public long getPrerenderedHits() {
+    return prerenderedHits.get();
+  }
+
+  /**
+   * Scenes staged right now.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Stops the stager thread, waiting briefly for work in progress.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void stageNow(String id, Map<String, List<Map<String, Object>>> scene) {
+    long start = System.currentTimeMillis();
+    Map<String, WindowState> windows = Maps.newHashMapWithExpectedSize(scene.size());
+    Map<String, Transition> transitions = Maps.newHashMapWithExpectedSize(scene.size());
+    for (Map.Entry<String, List<Map<String, Object>>> entry : scene.entrySet()) {
+      String windowSlug = entry.getKey();
+      List<Map<String, Object>> assets = Lists.newArrayListWithCapacity(entry.getValue().size());
+      for (Map<String, Object> asset : entry.getValue()) {
+        assets.add(Asset.of(asset));
+      }
+      WindowState state = new WindowState(windowSlug, 0, assets);
+      windows.put(windowSlug, state);
+      if (renderer.isTokenCookies()) {
+        continue;
+      }
+
+      WindowState from = lastStaged == null ? store.get(windowSlug) : lastStaged.windows.get(windowSlug);
+      if (from == null) {
+        from = WindowState.empty(windowSlug);
+      }
+      transitions.put(windowSlug, new Transition(from,
+          renderer.render(state, from.getAssetSlugs(), from.getAssetHashes(),
+              KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD),
+          renderer.renderUnchanged(state, KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD)));
+    }
+
+    StagedScene staging = new StagedScene(ImmutableMap.copyOf(windows), transitions);
+    scenes.remove(id);
+    scenes.put(id, staging);
+    lastStaged = staging;
+    evict();
+    staged.incrementAndGet();
+    log.info("Staged scene " + id + " for " + windows.size() + " windows in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private Runnable activation(final String id) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          activateNow(id);
+        } catch (RuntimeException e) {
+          log.error("Couldn't activate scene " + id, e);
+        }
+      }
+    };
+  }
+
+  private void activateNow(String id) {
+    StagedScene scene = scenes.remove(id);
+    if (scene == null) {
+      log.warn("Scene " + id + " isn't staged; not activating it");
+      return;
+    }
+    scenes.put(id, scene);
+
+    Map<String, WindowState> before = store.getWindows();
+    Map<String, WindowState> changed = store.activate(scene.windows);
+
+    // The cache dropped these Windows' entries when they changed; refill them
+    // with what was rendered ahead, for Windows showing what it assumed.
+    for (WindowState state : changed.values()) {
+      Transition transition = scene.transitions.get(state.getWindowSlug());
+      if (transition == null) {
+        continue;
+      }
+      cache.putUnchanged(state, KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD, transition.unchanged);
+      WindowState previous = before.get(state.getWindowSlug());
+      if (previous == null) {
+        previous = WindowState.empty(state.getWindowSlug());
+      }
+      if (previous.getAssets().equals(transition.from.getAssets())) {
+        cache.put(new UpdateResponseCache.Key(state.getWindowSlug(), state.getVersion(),
+            previous.getAssetSlugs(), previous.getAssetHashes(), KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD),
+            transition.update);
+        prerenderedHits.incrementAndGet();
+      }
+    }
+    activated.incrementAndGet();
+    log.info("Activated scene " + id + ", changing " + changed.size() + " windows");
+  }
+
+  private void evict() {
+    Iterator<StagedScene> eldest = scenes.values().iterator();
+    while (scenes.size() > maxScenes && eldest.hasNext()) {
+      StagedScene evicted = eldest.next();
+      eldest.remove();
+      if (evicted == lastStaged) {
+        lastStaged = null;
+      }
+    }
+    size = scenes.size();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import org.apache.commons.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link StaticResponse} for a file that may be edited while the activity
+ * runs. The file is checked for changes at most once per interval, by its
+ * modification time and length, and loaded again when it has changed. If it
+ * can't be read, the last version that could be keeps being served.
+ */
+public class StaticFileResponse {
+  private final File file;
+  private final String contentType;
+  private final long checkIntervalMillis;
+  private final Log log;
+
+  private volatile StaticResponse response;
+  private volatile long nextCheckMillis;
+  private long lastModified = -1;
+  private long length = -1;
+
+  /**
+   * @param checkIntervalMillis
+   *          least time between checks of the file
+   */
+  public StaticFileResponse(File file, String contentType, long checkIntervalMillis, Log log) {
+    this.file = file;
+    this.contentType = contentType;
+    this.checkIntervalMillis = checkIntervalMillis;
+    this.log = log;
+    reload();
+  }
+
+  /**
+   * Returns the response for the file as of its last check, or null if it has
+   * never been readable.
+   */
+  public StaticResponse get() {
+    if (System.currentTimeMillis() >= nextCheckMillis) {
+      reload();
+    }
+    return response;
+  }
+
+  private synchronized void reload() {
+    long now = System.currentTimeMillis();
+    if (now < nextCheckMillis) {
+      return;
+    }
+    nextCheckMillis = now + checkIntervalMillis;
+
+    long modified = file.lastModified();
+    long size = file.length();
+    if (response != null && modified == lastModified && size == length) {
+      return;
+    }
+    try {
+      response = StaticResponse.load(file, contentType);
+      lastModified = modified;
+      length = size;
+      log.info("Loaded " + file + ", " + response.getLength() + " bytes");
+    } catch (IOException e) {
+      log.warn("Couldn't load " + file, e);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.io.Files;
+
+import interactivespaces.service.web.HttpResponseCode;
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A response body that never changes, encoded once up front, along with its
+ * gzipped form when that's worth sending and an entity tag for revalidation.
+ * Serving one is a single write of a shared array.
+ */
+public final class StaticResponse {
+  /**
+   * Bodies shorter than this aren't worth gzipping.
+   */
+  private static final int GZIP_MIN_LENGTH = 256;
+
+  private final byte[] body;
+  private final byte[] gzipBody;
+  private final String contentType;
+  private final String etag;
+  private final String gzipEtag;
+
+  private StaticResponse(byte[] body, byte[] gzipBody, String contentType, String etag) {
+    this.body = body;
+    this.gzipBody = gzipBody;
+    this.contentType = contentType;
+    this.etag = etag;
+    this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+
+  /**
+   * Prepares a response with the given body, which mustn't be changed
+   * afterwards.
+   */
+  public static StaticResponse of(byte[] body, String contentType) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+
+    byte[] gzipBody = null;
+    if (body.length >= GZIP_MIN_LENGTH) {
+      gzipBody = ContentCoding.GZIP.encode(body);
+      if (gzipBody.length >= body.length) {
+        gzipBody = null;
+      }
+    }
+    return new StaticResponse(body, gzipBody, contentType, etag);
+  }
+
+  /**
+   * Prepares a response with the contents of a file.
+   */
+  public static StaticResponse load(File file, String contentType) throws IOException {
+    return of(Files.toByteArray(file), contentType);
+  }
+
+  /**
+   * Writes the response: nothing but the status if the client's copy is
+   * current, otherwise the body, gzipped if the client accepts it.
+   */
+  public void write(HttpRequest request, HttpResponse response) throws IOException {
+    boolean gzip = gzipBody != null && ContentCoding.accepts(request, ContentCoding.GZIP.getName());
+    String sentEtag = gzip ? gzipEtag : etag;
+
+    response.addContentHeader("ETag", sentEtag);
+    response.addContentHeader("Cache-Control", "no-cache");
+    if (gzipBody != null) {
+      response.addContentHeader("Vary", "Accept-Encoding");
+    }
+    if (matchesEtag(request, sentEtag)) {
+      response.setResponseCode(HttpResponseCode.NOT_MODIFIED);
+      return;
+    }
+
+    byte[] sent = gzip ? gzipBody : body;
+    response.setContentType(contentType);
+    if (gzip) {
+      response.addContentHeader("Content-Encoding", "gzip");
+    }
+    response.addContentHeader("Content-Length", Integer.toString(sent.length));
+    response.setResponseCode(HttpResponseCode.OK);
+    response.getOutputStream().write(sent);
+  }
+
+  public int getLength() {
+    return body.length;
+  }
+
+  /**
+   * Length of the gzipped body, or -1 if there isn't one.
+   */
+  public int getGzipLength() {
+    return gzipBody == null ? -1 : gzipBody.length;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * Checks whether a request's If-None-Match header names the given entity
+   * tag, comparing weakly.
+   */
+  public static boolean matchesEtag(HttpRequest request, String etag) {
+    Set<String> ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String header : ifNoneMatch) {
+      for (String candidate : header.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.equals("*") || candidate.equals(etag) || ("W/" + candidate).equals(etag)
+            || candidate.equals("W/" + etag)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
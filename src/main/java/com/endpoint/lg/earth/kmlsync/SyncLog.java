@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import org.apache.commons.logging.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug logging for the activity's hot paths that costs nothing when debug
+ * logging is off: nothing is formatted, and no argument's toString() is
+ * called, unless the message will be logged.
+ *
+ * Events are logged as "op key=value ...", one line each, so they can be
+ * grepped and parsed. Per-poll events should be logged only when
+ * {@link #sample()} says so, which keeps one in every so many:
+ *
+ * <pre>
+ * if (syncLog.sample()) {
+ *   syncLog.event("poll", "window", windowSlug, "bytes", length);
+ * }
+ * </pre>
+ */
+public class SyncLog {
+  /**
+   * Per-poll events kept, one in this many, when no rate is given.
+   */
+  public static final int DEFAULT_SAMPLE_EVERY = 100;
+
+  private final Log log;
+  private final int sampleEvery;
+  private final AtomicLong samples = new AtomicLong();
+
+  public SyncLog(Log log) {
+    this(log, DEFAULT_SAMPLE_EVERY);
+  }
+
+  /**
+   * @param sampleEvery
+   *          keep one in this many sampled events; 1 keeps them all
+   */
+  public SyncLog(Log log, int sampleEvery) {
+    this.log = log;
+    this.sampleEvery = Math.max(sampleEvery, 1);
+  }
+
+  /**
+   * The underlying log, for warnings and errors, which are always formatted.
+   */
+  public Log getLog() {
+    return log;
+  }
+
+  public boolean isDebugEnabled() {
+    return log.isDebugEnabled();
+  }
+
+  /**
+   * Whether to log this occurrence of a sampled event: false whenever debug
+   * logging is off, and otherwise true once in every sampleEvery calls.
+   */
+  public boolean sample() {
+    return log.isDebugEnabled() && (sampleEvery == 1 || samples.incrementAndGet() % sampleEvery == 0);
+  }
+
+  /**
+   * Logs a message at debug level, replacing each "{}" in it with the next
+   * argument.
+   */
+  public void debug(String message, Object... args) {
+    if (log.isDebugEnabled()) {
+      log.debug(format(message, args));
+    }
+  }
+
+  /**
+   * Logs an event at debug level.
+   *
+   * @param op
+   *          what happened, e.g. "poll" or "command"
+   * @param fields
+   *          alternating names and values
+   */
+  public void event(String op, Object... fields) {
+    if (log.isDebugEnabled()) {
+      StringBuilder line = new StringBuilder(op);
+      for (int i = 0; i + 1 < fields.length; i += 2) {
+        line.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+      }
+      log.debug(line);
+    }
+  }
+
+  static String format(String message, Object[] args) {
+    StringBuilder line = new StringBuilder(message.length() + 16 * args.length);
+    int from = 0;
+    for (Object arg : args) {
+      int at = message.indexOf("{}", from);
+      if (at == -1) {
+        break;
+      }
+      line.append(message, from, at).append(arg);
+      from = at + 2;
+    }
+    return line.append(message, from, message.length()).toString();
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads back a trace file written by {@link TraceRecorder}, one event at a
+ * time. A trace cut short, as when the activity didn't shut down cleanly,
+ * reads up to its last whole event.
+ */
+public class TraceReader implements Closeable {
+  /**
+   * What a traced event was.
+   */
+  public enum Type {
+    SCENE, COMMAND, POLL
+  }
+
+  /**
+   * One traced event.
+   */
+  public static final class Event {
+    private final Type type;
+    private final long micros;
+    private final Map<String, Object> message;
+    private final String query;
+
+    private Event(Type type, long micros, Map<String, Object> message, String query) {
+      this.type = type;
+      this.micros = micros;
+      this.message = message;
+      this.query = query;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    /**
+     * Microseconds from the start of the recording.
+     */
+    public long getMicros() {
+      return micros;
+    }
+
+    /**
+     * The scene or command message, or null for a poll.
+     */
+    public Map<String, Object> getMessage() {
+      return message;
+    }
+
+    /**
+     * The poll's raw query, or null for a message.
+     */
+    public String getQuery() {
+      return query;
+    }
+  }
+
+  private final DataInputStream in;
+  private final long startMillis;
+  private final List<String> queries = Lists.newArrayList();
+
+  public TraceReader(File file) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      if (in.readInt() != TraceRecorder.MAGIC) {
+        throw new IOException(file + " isn't a kmlsync trace");
+      }
+      startMillis = in.readLong();
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * When the recording started, in epoch milliseconds.
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Returns the next event, or null at the end of the trace.
+   */
+  @SuppressWarnings("unchecked")
+  public Event next() throws IOException {
+    try {
+      int type = in.read();
+      if (type == -1) {
+        return null;
+      }
+      long micros = readVarLong(in);
+      switch (type) {
+        case TraceRecorder.RECORD_POLL:
+          int reference = (int) readVarLong(in);
+          if (reference != 0) {
+            return new Event(Type.POLL, micros, null, queries.get(reference - 1));
+          }
+          if (queries.size() == TraceRecorder.QUERY_TABLE_SIZE) {
+            queries.clear();
+          }
+          String query = readString(in);
+          queries.add(query);
+          return new Event(Type.POLL, micros, null, query);
+        case TraceRecorder.RECORD_SCENE:
+        case TraceRecorder.RECORD_COMMAND:
+          readVarLong(in);
+          Map<String, Object> message = (Map<String, Object>) readValue(in);
+          return new Event(type == TraceRecorder.RECORD_SCENE ? Type.SCENE : Type.COMMAND, micros, message,
+              null);
+        default:
+          throw new IOException("Unknown trace record type " + type);
+      }
+    } catch (EOFException e) {
+      // The last event was cut short
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private static Object readValue(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case TraceRecorder.VALUE_NULL:
+        return null;
+      case TraceRecorder.VALUE_TRUE:
+        return Boolean.TRUE;
+      case TraceRecorder.VALUE_FALSE:
+        return Boolean.FALSE;
+      case TraceRecorder.VALUE_LONG:
+        long n = readVarLong(in);
+        return (n >>> 1) ^ -(n & 1);
+      case TraceRecorder.VALUE_DOUBLE:
+        return in.readDouble();
+      case TraceRecorder.VALUE_STRING:
+        return readString(in);
+      case TraceRecorder.VALUE_LIST:
+        int size = (int) readVarLong(in);
+        List<Object> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(in));
+        }
+        return list;
+      case TraceRecorder.VALUE_MAP:
+        int entries = (int) readVarLong(in);
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        for (int i = 0; i < entries; i++) {
+          String key = readString(in);
+          map.put(key, readValue(in));
+        }
+        return map;
+      default:
+        throw new IOException("Unknown trace value tag " + tag);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static long readVarLong(DataInput in) throws IOException {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      n |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+    throw new IOException("Malformed varint in trace");
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import interactivespaces.service.web.server.HttpDynamicRequestHandler;
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+
+import org.apache.commons.logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records scene messages, command messages, and update polls, with when they
+ * arrived, to a binary trace file that {@link TraceReader} reads back, so a
+ * real session can be replayed and profiled offline.
+ *
+ * Recording never blocks: events go on a bounded queue, and a background
+ * thread writes them. When the queue is full, events are dropped and counted.
+ * Messages are encoded as they're recorded, so the caller may change them
+ * afterwards; a poll is just its raw query String.
+ *
+ * File format: MAGIC, then the epoch milliseconds recording started, then
+ * records of a type byte, the microseconds since the start as a varint, and:
+ * <ul>
+ * <li>scene and command records: a varint length and an encoded value</li>
+ * <li>poll records: a varint reference to a query seen before, or 0 and the
+ * query itself as a new String</li>
+ * </ul>
+ * Values are tagged: null, true, false, varint longs, doubles, Strings
+ * (varint length and UTF-8), lists, and Maps with String keys.
+ */
+public class TraceRecorder {
+  static final int MAGIC = 0x4b535431;
+
+  static final byte RECORD_SCENE = 'S';
+  static final byte RECORD_COMMAND = 'C';
+  static final byte RECORD_POLL = 'P';
+
+  static final byte VALUE_NULL = 0;
+  static final byte VALUE_TRUE = 1;
+  static final byte VALUE_FALSE = 2;
+  static final byte VALUE_LONG = 3;
+  static final byte VALUE_DOUBLE = 4;
+  static final byte VALUE_STRING = 5;
+  static final byte VALUE_LIST = 6;
+  static final byte VALUE_MAP = 7;
+
+  /**
+   * Most distinct poll queries to refer back to; the table starts over when
+   * it's full.
+   */
+  static final int QUERY_TABLE_SIZE = 4096;
+
+  private static final class Event {
+    private final byte type;
+    private final long micros;
+    private final byte[] message;
+    private final String query;
+
+    private Event(byte type, long micros, byte[] message, String query) {
+      this.type = type;
+      this.micros = micros;
+      this.message = message;
+      this.query = query;
+    }
+  }
+
+  private static final Event STOP = new Event((byte) 0, 0, null, null);
+
+  private final File file;
+  private final Log log;
+  private final long startNanos = System.nanoTime();
+  private final long startMillis = System.currentTimeMillis();
+  private final BlockingQueue<Event> queue;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("kmlsync-trace-writer").setDaemon(true).build());
+
+  private final AtomicLong recorded = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /*
+   * Only touched by the writer thread.
+   */
+  private DataOutputStream out;
+  private final Map<String, Integer> queries = Maps.newHashMap();
+
+  /**
+   * @param file
+   *          the trace file, replaced if it exists
+   * @param queueSize
+   *          most events waiting to be written before more are dropped
+   */
+  public TraceRecorder(File file, int queueSize, Log log) {
+    this.file = file;
+    this.log = log;
+    this.queue = new ArrayBlockingQueue<Event>(Math.max(queueSize, 1));
+  }
+
+  /**
+   * Opens the trace file and starts the writer thread.
+   */
+  public void start() throws IOException {
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Couldn't create " + directory);
+    }
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    out.writeInt(MAGIC);
+    out.writeLong(startMillis);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        writeEvents();
+      }
+    });
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Records a director scene message.
+   */
+  public void recordScene(Map<String, Object> message) {
+    recordMessage(RECORD_SCENE, message);
+  }
+
+  /**
+   * Records a message from the command route, or its equivalent from a
+   * WebSocket client or a batch POST.
+   */
+  public void recordCommand(Map<String, Object> message) {
+    recordMessage(RECORD_COMMAND, message);
+  }
+
+  /**
+   * Records an update poll by its raw query String, which names its Window
+   * and carries its cookie.
+   */
+  public void recordPoll(String rawQuery) {
+    offer(new Event(RECORD_POLL, micros(), null, rawQuery == null ? "" : rawQuery));
+  }
+
+  /**
+   * Wraps the update handler so every poll it answers is recorded first.
+   */
+  public HttpDynamicRequestHandler tracePolls(final HttpDynamicRequestHandler handler) {
+    return new HttpDynamicRequestHandler() {
+      @Override
+      public void handle(HttpRequest request, HttpResponse response) {
+        recordPoll(request.getUri().getRawQuery());
+        handler.handle(request, response);
+      }
+    };
+  }
+
+  /**
+   * Events queued for writing so far.
+   */
+  public long getRecorded() {
+    return recorded.get();
+  }
+
+  /**
+   * Events dropped because the queue was full.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes what's queued, closes the file, and stops the writer thread.
+   * Events recorded after this are dropped.
+   */
+  public void shutdown() {
+    try {
+      if (queue.offer(STOP, 5, TimeUnit.SECONDS)) {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+      } else {
+        log.warn("Trace writer isn't keeping up; " + file + " may be cut short");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void recordMessage(byte type, Map<String, Object> message) {
+    long micros = micros();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try {
+      writeValue(new DataOutputStream(bytes), message);
+    } catch (IOException e) {
+      // Can't happen, writing to memory
+      throw new IllegalStateException(e);
+    }
+    offer(new Event(type, micros, bytes.toByteArray(), null));
+  }
+
+  private long micros() {
+    return (System.nanoTime() - startNanos) / 1000;
+  }
+
+  private void offer(Event event) {
+    if (queue.offer(event)) {
+      recorded.incrementAndGet();
+    } else {
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void writeEvents() {
+    try {
+      try {
+        while (true) {
+          Event event = queue.poll();
+          if (event == null) {
+            // Caught up; put what's written on disk, then wait for more
+            out.flush();
+            event = queue.take();
+          }
+          if (event == STOP) {
+            break;
+          }
+          write(event);
+        }
+      } finally {
+        out.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      log.error("Couldn't write trace to " + file + "; tracing stopped", e);
+    }
+  }
+
+  private void write(Event event) throws IOException {
+    out.writeByte(event.type);
+    writeVarLong(out, event.micros);
+    if (event.type == RECORD_POLL) {
+      Integer reference = queries.get(event.query);
+      if (reference != null) {
+        writeVarLong(out, reference);
+      } else {
+        if (queries.size() == QUERY_TABLE_SIZE) {
+          queries.clear();
+        }
+        queries.put(event.query, queries.size() + 1);
+        writeVarLong(out, 0);
+        writeString(out, event.query);
+      }
+    } else {
+      writeVarLong(out, event.message.length);
+      out.write(event.message);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static void writeValue(DataOutput out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(VALUE_NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      out.writeByte(VALUE_LONG);
+      // Zigzag, so small negative numbers stay small
+      long n = ((Number) value).longValue();
+      writeVarLong(out, (n << 1) ^ (n >> 63));
+    } else if (value instanceof Number) {
+      out.writeByte(VALUE_DOUBLE);
+      out.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      out.writeByte(VALUE_LIST);
+      writeVarLong(out, list.size());
+      for (Object item : list) {
+        writeValue(out, item);
+      }
+    } else if (value instanceof Map) {
+      Map<Object, Object> map = (Map<Object, Object>) value;
+      out.writeByte(VALUE_MAP);
+      writeVarLong(out, map.size());
+      for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        writeString(out, String.valueOf(entry.getKey()));
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      out.writeByte(VALUE_STRING);
+      writeString(out, value.toString());
+    }
+  }
+
+  static void writeString(DataOutput out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes a non-negative number seven bits at a time, low bits first.
+   */
+  static void writeVarLong(DataOutput out, long n) throws IOException {
+    while ((n & ~0x7fL) != 0) {
+      out.writeByte((int) ((n & 0x7f) | 0x80));
+      n >>>= 7;
+    }
+    out.writeByte((int) n);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.endpoint.lg.support.message.MessageTypes;
+import com.endpoint.lg.support.message.MessageWrapper;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+import interactivespaces.util.data.json.JsonNavigator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.impl.NoOpLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a trace recorded by {@link TraceRecorder} through the same
+ * store, scene parser, command processor, stager, and update handler the
+ * activity uses, and reports how long each kind of event took and the update
+ * handler's metrics.
+ *
+ * Events are replayed one at a time, in recorded order, at the recorded pace
+ * divided by the given speed; a speed of 0 replays as fast as possible. Polls
+ * that arrived together are answered one after another.
+ *
+ * Polls are answered with stand-in requests that carry only the recorded
+ * query, and their bodies are discarded.
+ *
+ * Usage: TraceReplayer trace-file [speed]
+ */
+public class TraceReplayer {
+  private final WindowAssetStore store = new WindowAssetStore();
+  private final Log log = new NoOpLog();
+  private final UpdateResponseCache cache = new UpdateResponseCache(1024);
+  private final KmlUpdateRenderer renderer = new KmlUpdateRenderer("http://localhost:8765/kml/master.kml");
+  private final KmlSyncMetrics metrics = new KmlSyncMetrics();
+  private final KmlUpdateRequestHandler handler =
+      new KmlUpdateRequestHandler(store, renderer, cache, metrics, new SyncLog(log),
+          new KmlUpdateRequestHandler.Options());
+  private final DirectorSceneParser parser = new DirectorSceneParser(log);
+  private final WindowCommands commands = new WindowCommands(store, new SyncLog(log));
+  private final SceneStager stager = new SceneStager(store, renderer, cache, parser, 16, log);
+  private final OutputStream body = ByteStreams.nullOutputStream();
+
+  private final Map<TraceReader.Type, LatencyHistogram> latency = Maps.newEnumMap(TraceReader.Type.class);
+  private int skipped;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: TraceReplayer trace-file [speed]");
+      System.exit(1);
+    }
+    double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+    new TraceReplayer().replay(new File(args[0]), speed);
+  }
+
+  TraceReplayer() {
+    store.addListener(cache);
+    for (TraceReader.Type type : TraceReader.Type.values()) {
+      latency.put(type, new LatencyHistogram());
+    }
+  }
+
+  void replay(File file, double speed) throws IOException, InterruptedException {
+    TraceReader reader = new TraceReader(file);
+    long start = System.nanoTime();
+    try {
+      TraceReader.Event event;
+      while ((event = reader.next()) != null) {
+        if (speed > 0) {
+          long due = start + (long) (event.getMicros() * 1000 / speed);
+          long waitNanos = due - System.nanoTime();
+          if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+          }
+        }
+        long eventStart = System.nanoTime();
+        apply(event);
+        latency.get(event.getType()).record(System.nanoTime() - eventStart);
+      }
+    } finally {
+      reader.close();
+      stager.shutdown();
+    }
+
+    System.out.println(String.format("Replayed %s in %.1f s", file, (System.nanoTime() - start) / 1e9));
+    for (Map.Entry<TraceReader.Type, LatencyHistogram> entry : latency.entrySet()) {
+      System.out.println(entry.getKey() + " " + entry.getValue().toMap());
+    }
+    System.out.println("skipped " + skipped + " messages of unknown types");
+    System.out.println("update handler " + metrics.toMap());
+  }
+
+  /**
+   * Applies one event the way the activity did when it was recorded.
+   */
+  @SuppressWarnings("unchecked")
+  private void apply(TraceReader.Event event) throws IOException {
+    switch (event.getType()) {
+      case POLL:
+        handler.handle(request(URI.create("http://localhost:8765/kml/update.kml?" + event.getQuery())),
+            response(body));
+        break;
+      case SCENE:
+        store.replaceScene(parser.parse(event.getMessage()));
+        break;
+      case COMMAND:
+        Map<String, Object> message = event.getMessage();
+        Object type = message.get(MessageWrapper.MESSAGE_FIELD_TYPE);
+        Map<String, Object> data = (Map<String, Object>) message.get(MessageWrapper.MESSAGE_FIELD_DATA);
+        if (MessageTypes.MESSAGE_TYPE_WINDOW_ASSETS.equals(type)) {
+          JsonNavigator navigator = new JsonNavigator(message);
+          navigator.down(MessageWrapper.MESSAGE_FIELD_DATA);
+          navigator.down("commands");
+          commands.applyCommands(navigator);
+        } else if (SceneStager.MESSAGE_TYPE_STAGE.equals(type) && data != null) {
+          List<Map<String, Object>> scenes = data.containsKey("scenes")
+              ? (List<Map<String, Object>>) data.get("scenes") : Collections.singletonList(data);
+          for (Map<String, Object> scene : scenes) {
+            if (scene.get("id") != null && scene.get("scene") instanceof Map) {
+              stager.stage(scene.get("id").toString(), (Map<String, Object>) scene.get("scene"));
+            }
+          }
+        } else if (SceneStager.MESSAGE_TYPE_ACTIVATE.equals(type) && data != null && data.get("id") != null) {
+          stager.activate(data.get("id").toString());
+        } else if (SceneStager.MESSAGE_TYPE_CLEAR.equals(type)) {
+          stager.clear();
+        } else {
+          skipped++;
+        }
+        break;
+      default:
+        skipped++;
+    }
+  }
+
+  /**
+   * A GET request for the given URI, without headers.
+   */
+  private static HttpRequest request(final URI uri) {
+    return stub(HttpRequest.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("getUri") ? uri : defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * A response whose body goes to the given stream, and whose status and
+   * headers are dropped.
+   */
+  private static HttpResponse response(final OutputStream body) {
+    return stub(HttpResponse.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("getOutputStream") ? body : defaultValue(method);
+      }
+    });
+  }
+
+  private static <T> T stub(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return Boolean.FALSE;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parameters of an update request from Google Earth: the Window's
+ * "window_slug", and an "asset_slug" for each asset its cookie says it has
+ * loaded, each followed by the "asset_hash" of the version it has. Other
+ * parameters are ignored.
+ *
+ * The query string is read in one pass, decoding asset slugs and hashes back
+ * to back into buffers. They only become Strings when resolved against the
+ * Window's state, and slugs and hashes the Window has resolve to the state's
+ * own Strings, so a client that's up to date costs no per-slug allocation.
+ *
+ * Queries are pooled per thread, like {@link KmlWriter}. Get one with
+ * {@link #parse(String)} and always {@link #release()} it afterwards.
+ */
+public final class UpdateQuery {
+  private static final String WINDOW_SLUG = "window_slug";
+  private static final String ASSET_SLUG = "asset_slug";
+  private static final String ASSET_HASH = "asset_hash";
+
+  /**
+   * Cookie parameter holding a {@link WindowHistory#token(WindowState)}.
+   */
+  public static final String STATE_TOKEN = "state_token";
+
+  private static final ThreadLocal<UpdateQuery> POOL = new ThreadLocal<UpdateQuery>() {
+    @Override
+    protected UpdateQuery initialValue() {
+      return new UpdateQuery();
+    }
+  };
+
+  /**
+   * Decoded asset slugs, back to back; slug i ends at assetSlugEnds[i].
+   */
+  private final StringBuilder assetSlugChars = new StringBuilder(4096);
+  private int[] assetSlugEnds = new int[64];
+  private int assetSlugCount;
+
+  /**
+   * Decoded asset hashes, the same way.
+   */
+  private final StringBuilder assetHashChars = new StringBuilder(1024);
+  private int[] assetHashEnds = new int[64];
+  private int assetHashCount;
+
+  private final StringBuilder windowSlugChars = new StringBuilder(64);
+  private String windowSlug;
+
+  /**
+   * The first "state_token" parameter, split into its version and
+   * fingerprint; a malformed token has version -1, which no state has.
+   */
+  private boolean hasStateToken;
+  private long stateTokenVersion;
+  private long stateTokenFingerprint;
+
+  private final ArrayList<String> assetSlugs = new ArrayList<String>(64);
+  private final List<String> assetSlugsView = Collections.unmodifiableList(assetSlugs);
+  private final ArrayList<String> assetHashes = new ArrayList<String>(64);
+  private final List<String> assetHashesView = Collections.unmodifiableList(assetHashes);
+
+  private boolean inUse;
+
+  private UpdateQuery() {
+  }
+
+  /**
+   * Parses an update request's query string, as given by
+   * {@link java.net.URI#getRawQuery()}, reusing this thread's buffers when
+   * they're free.
+   */
+  public static UpdateQuery parse(String rawQuery) {
+    UpdateQuery query = POOL.get();
+    if (query.inUse) {
+      query = new UpdateQuery();
+    }
+    query.inUse = true;
+    query.read(rawQuery);
+    return query;
+  }
+
+  /**
+   * The first "window_slug" parameter, or null if there wasn't one.
+   */
+  public String getWindowSlug() {
+    return windowSlug;
+  }
+
+  public int getAssetSlugCount() {
+    return assetSlugCount;
+  }
+
+  /**
+   * Whether the client sent a "state_token" parameter.
+   */
+  public boolean hasStateToken() {
+    return hasStateToken;
+  }
+
+  public long getStateTokenVersion() {
+    return stateTokenVersion;
+  }
+
+  public long getStateTokenFingerprint() {
+    return stateTokenFingerprint;
+  }
+
+  /**
+   * The "asset_slug" parameters, in order, using the state's own Strings for
+   * every slug it has, and resolves the "asset_hash" parameters the same way.
+   * The list is only good until {@link #release()}.
+   */
+  public List<String> resolveAssetSlugs(WindowState state) {
+    assetSlugs.clear();
+    assetHashes.clear();
+    assetSlugs.ensureCapacity(assetSlugCount);
+    // Hashes only mean something if there's one for every slug
+    boolean hashed = assetHashCount == assetSlugCount && assetSlugCount > 0;
+    if (hashed) {
+      assetHashes.ensureCapacity(assetHashCount);
+    }
+
+    int start = 0;
+    int hashStart = 0;
+    for (int i = 0; i < assetSlugCount; i++) {
+      int end = assetSlugEnds[i];
+      int index = state.indexOfAssetSlug(assetSlugChars, start, end);
+      assetSlugs.add(index != -1 ? state.getAssetSlugs().get(index) : assetSlugChars.substring(start, end));
+      if (hashed) {
+        int hashEnd = assetHashEnds[i];
+        if (index != -1 && state.isAssetHash(index, assetHashChars, hashStart, hashEnd)) {
+          assetHashes.add(state.getAssetHashes().get(index));
+        } else {
+          assetHashes.add(assetHashChars.substring(hashStart, hashEnd));
+        }
+        hashStart = hashEnd;
+      }
+      start = end;
+    }
+    return assetSlugsView;
+  }
+
+  /**
+   * The "asset_hash" parameters, paired with the slugs from
+   * {@link #resolveAssetSlugs(WindowState)}, or an empty list if the client
+   * didn't send one for each slug. Only good after resolving the slugs, and
+   * until {@link #release()}.
+   */
+  public List<String> getAssetHashes() {
+    return assetHashesView;
+  }
+
+  /**
+   * Returns the query to the pool. Nothing it returned may be used after.
+   */
+  public void release() {
+    assetSlugs.clear();
+    assetHashes.clear();
+    windowSlug = null;
+    hasStateToken = false;
+    inUse = false;
+  }
+
+  private void read(String rawQuery) {
+    assetSlugChars.setLength(0);
+    assetSlugCount = 0;
+    assetHashChars.setLength(0);
+    assetHashCount = 0;
+    windowSlug = null;
+    hasStateToken = false;
+    if (rawQuery == null) {
+      return;
+    }
+
+    int length = rawQuery.length();
+    int start = 0;
+    while (start < length) {
+      int end = rawQuery.indexOf('&', start);
+      if (end == -1) {
+        end = length;
+      }
+      int pos = rawQuery.indexOf('=', start);
+      if (pos != -1 && pos < end) {
+        if (isName(rawQuery, start, pos, ASSET_SLUG)) {
+          QueryParams.decode(rawQuery, pos + 1, end, assetSlugChars);
+          assetSlugEnds = addEnd(assetSlugEnds, assetSlugCount++, assetSlugChars.length());
+        } else if (isName(rawQuery, start, pos, ASSET_HASH)) {
+          QueryParams.decode(rawQuery, pos + 1, end, assetHashChars);
+          assetHashEnds = addEnd(assetHashEnds, assetHashCount++, assetHashChars.length());
+        } else if (!hasStateToken && isName(rawQuery, start, pos, STATE_TOKEN)) {
+          readStateToken(rawQuery, pos + 1, end);
+        } else if (windowSlug == null && isName(rawQuery, start, pos, WINDOW_SLUG)) {
+          windowSlugChars.setLength(0);
+          QueryParams.decode(rawQuery, pos + 1, end, windowSlugChars);
+          windowSlug = windowSlugChars.toString();
+        }
+      } else if (windowSlug == null && isName(rawQuery, start, end, WINDOW_SLUG)) {
+        windowSlug = "";
+      }
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Reads "version.fingerprint", a decimal version and a hex fingerprint,
+   * neither of which needs percent-encoding.
+   */
+  private void readStateToken(String raw, int start, int end) {
+    hasStateToken = true;
+    stateTokenVersion = -1;
+    stateTokenFingerprint = 0;
+    int dot = raw.indexOf('.', start);
+    if (dot == -1 || dot >= end || dot == start || dot == end - 1 || dot - start > 18 || end - dot - 1 > 16) {
+      return;
+    }
+    long version = 0;
+    for (int i = start; i < dot; i++) {
+      int digit = Character.digit(raw.charAt(i), 10);
+      if (digit == -1) {
+        return;
+      }
+      version = version * 10 + digit;
+    }
+    long fingerprint = 0;
+    for (int i = dot + 1; i < end; i++) {
+      int digit = Character.digit(raw.charAt(i), 16);
+      if (digit == -1) {
+        return;
+      }
+      fingerprint = (fingerprint << 4) | digit;
+    }
+    stateTokenVersion = version;
+    stateTokenFingerprint = fingerprint;
+  }
+
+  /**
+   * Stores an end offset at the given index, growing the array if needed.
+   */
+  private static int[] addEnd(int[] ends, int index, int end) {
+    if (index == ends.length) {
+      int[] grown = new int[ends.length * 2];
+      System.arraycopy(ends, 0, grown, 0, index);
+      ends = grown;
+    }
+    ends[index] = end;
+    return ends;
+  }
+
+  /**
+   * Whether the given range, less surrounding whitespace, is the given name.
+   */
+  private static boolean isName(String raw, int start, int end, String name) {
+    while (start < end && raw.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && raw.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return end - start == name.length() && raw.regionMatches(start, name, 0, name.length());
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps rendered NetworkLinkUpdate responses, so that Windows polling with an
+ * unchanged cookie get the same bytes back without re-rendering them.
+ *
+ * Entries are keyed by Window slug, Window state version, the asset slugs
+ * the client reported, and the refresh period the response asks for. When a
+ * Window's state changes its old entries can never be hit again, so they are
+ * evicted right away; each Window's keys are indexed so that doesn't mean
+ * scanning the whole cache.
+ *
+ * Separately, each Window's "nothing changed" response is kept for its
+ * current version, since that's what nearly every poll gets, and likewise its
+ * full resync response for token cookie clients that need one.
+ */
+public class UpdateResponseCache implements WindowAssetStore.Listener {
+  private final Cache<Key, RenderedUpdate> cache;
+
+  /**
+   * The cached keys of each Window. Keys leave it when they're evicted.
+   */
+  private final ConcurrentMap<String, Set<Key>> keysByWindow = new ConcurrentHashMap<String, Set<Key>>();
+
+  private final ConcurrentMap<String, Unchanged> unchanged = new ConcurrentHashMap<String, Unchanged>();
+
+  private final ConcurrentMap<String, Unchanged> resync = new ConcurrentHashMap<String, Unchanged>();
+
+  /**
+   * @param maximumSize
+   *          the most responses to keep, over all Windows
+   */
+  public UpdateResponseCache(long maximumSize) {
+    RemovalListener<Key, RenderedUpdate> unindex = new RemovalListener<Key, RenderedUpdate>() {
+      @Override
+      public void onRemoval(RemovalNotification<Key, RenderedUpdate> notification) {
+        if (notification.getCause() == RemovalCause.REPLACED) {
+          return;
+        }
+        Set<Key> keys = keysByWindow.get(notification.getKey().windowSlug);
+        if (keys != null) {
+          keys.remove(notification.getKey());
+        }
+      }
+    };
+    cache = CacheBuilder.newBuilder().maximumSize(maximumSize).removalListener(unindex).build();
+  }
+
+  /**
+   * Returns the cached response for this key, or null. Looking a key up
+   * doesn't copy it.
+   */
+  public RenderedUpdate get(Key key) {
+    return cache.getIfPresent(key);
+  }
+
+  /**
+   * Caches a response. The key is copied first, so it may refer to lists
+   * that are reused once the request is answered.
+   */
+  public void put(Key key, RenderedUpdate response) {
+    Key stored = key.immutableCopy();
+    Set<Key> keys = keysByWindow.get(stored.windowSlug);
+    if (keys == null) {
+      Set<Key> created = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+      keys = keysByWindow.putIfAbsent(stored.windowSlug, created);
+      if (keys == null) {
+        keys = created;
+      }
+    }
+    keys.add(stored);
+    cache.put(stored, response);
+  }
+
+  /**
+   * Returns the cached response for a client that already has everything in
+   * this state, asking for the given refresh period, or null.
+   */
+  public RenderedUpdate getUnchanged(WindowState state, int minRefreshPeriod) {
+    Unchanged entry = unchanged.get(state.getWindowSlug());
+    if (entry != null && entry.version == state.getVersion() && entry.minRefreshPeriod == minRefreshPeriod) {
+      return entry.response;
+    }
+    return null;
+  }
+
+  public void putUnchanged(WindowState state, int minRefreshPeriod, RenderedUpdate response) {
+    unchanged.put(state.getWindowSlug(), new Unchanged(state.getVersion(), minRefreshPeriod, response));
+  }
+
+  /**
+   * Returns the cached resync response for this state and refresh period, or
+   * null.
+   */
+  public RenderedUpdate getResync(WindowState state, int minRefreshPeriod) {
+    Unchanged entry = resync.get(state.getWindowSlug());
+    if (entry != null && entry.version == state.getVersion() && entry.minRefreshPeriod == minRefreshPeriod) {
+      return entry.response;
+    }
+    return null;
+  }
+
+  public void putResync(WindowState state, int minRefreshPeriod, RenderedUpdate response) {
+    resync.put(state.getWindowSlug(), new Unchanged(state.getVersion(), minRefreshPeriod, response));
+  }
+
+  /**
+   * Drops every entry for one Window.
+   */
+  public void invalidateWindow(String windowSlug) {
+    unchanged.remove(windowSlug);
+    resync.remove(windowSlug);
+    Set<Key> keys = keysByWindow.remove(windowSlug);
+    if (keys != null) {
+      cache.invalidateAll(keys);
+    }
+  }
+
+  public void invalidateAll() {
+    unchanged.clear();
+    resync.clear();
+    cache.invalidateAll();
+    keysByWindow.clear();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    for (String windowSlug : changed.keySet()) {
+      invalidateWindow(windowSlug);
+    }
+  }
+
+  private static final class Unchanged {
+    private final long version;
+    private final int minRefreshPeriod;
+    private final RenderedUpdate response;
+
+    private Unchanged(long version, int minRefreshPeriod, RenderedUpdate response) {
+      this.version = version;
+      this.minRefreshPeriod = minRefreshPeriod;
+      this.response = response;
+    }
+  }
+
+  /**
+   * Identifies one response: what the client has, and which state it's being
+   * compared against.
+   *
+   * A key is hashed on the fingerprint of the client's lists, and only
+   * compares the lists themselves to confirm a match, so a lookup neither
+   * copies nor rehashes them.
+   */
+  public static final class Key {
+    private final String windowSlug;
+    private final long version;
+    private final long clientFingerprint;
+    private final List<String> clientAssetSlugs;
+    private final List<String> clientAssetHashes;
+    private final int minRefreshPeriod;
+    private final int hash;
+
+    public Key(String windowSlug, long version, List<String> clientAssetSlugs, List<String> clientAssetHashes,
+        int minRefreshPeriod) {
+      this(windowSlug, version, WindowState.fingerprint(clientAssetSlugs, clientAssetHashes), clientAssetSlugs,
+          clientAssetHashes, minRefreshPeriod);
+    }
+
+    /**
+     * @param clientFingerprint
+     *          {@link WindowState#fingerprint(List, List)} of the client's
+     *          slugs and hashes
+     */
+    public Key(String windowSlug, long version, long clientFingerprint, List<String> clientAssetSlugs,
+        List<String> clientAssetHashes, int minRefreshPeriod) {
+      this.windowSlug = windowSlug;
+      this.version = version;
+      this.clientFingerprint = clientFingerprint;
+      this.clientAssetSlugs = clientAssetSlugs;
+      this.clientAssetHashes = clientAssetHashes;
+      this.minRefreshPeriod = minRefreshPeriod;
+      int h = windowSlug.hashCode();
+      h = 31 * h + (int) (version ^ (version >>> 32));
+      h = 31 * h + (int) (clientFingerprint ^ (clientFingerprint >>> 32));
+      this.hash = 31 * h + minRefreshPeriod;
+    }
+
+    /**
+     * Returns this key with its lists copied, or itself if they're already
+     * immutable.
+     */
+    private Key immutableCopy() {
+      if (clientAssetSlugs instanceof ImmutableList && clientAssetHashes instanceof ImmutableList) {
+        return this;
+      }
+      return new Key(windowSlug, version, clientFingerprint, ImmutableList.copyOf(clientAssetSlugs),
+          ImmutableList.copyOf(clientAssetHashes), minRefreshPeriod);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && version == other.version && clientFingerprint == other.clientFingerprint
+          && minRefreshPeriod == other.minRefreshPeriod && windowSlug.equals(other.windowSlug)
+          && clientAssetSlugs.equals(other.clientAssetSlugs) && clientAssetHashes.equals(other.clientAssetHashes);
+    }
+
+    @Override
+    public String toString() {
+      return windowSlug + "@" + version + clientAssetSlugs;
+    }
+  }
+}
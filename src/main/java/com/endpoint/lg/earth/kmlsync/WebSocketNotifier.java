@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.endpoint.lg.support.message.MessageWrapper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.logging.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes Window changes to connected admin pages, so they stay current
+ * without polling.
+ *
+ * Changes are batched: the first change after a quiet spell starts a timer,
+ * and when it goes off the latest state of every Window changed since is sent
+ * in one message. A Window changed many times in that spell is sent once.
+ */
+public class WebSocketNotifier implements WindowAssetStore.Listener {
+  /**
+   * Sends a message to every connected WebSocket client.
+   */
+  public interface Transport {
+    void send(Map<String, Object> message);
+  }
+
+  public static final String MESSAGE_TYPE_WINDOWS_CHANGED = "kmlsync.windows_changed";
+
+  public static final String MESSAGE_FIELD_WINDOWS = "windows";
+  public static final String MESSAGE_FIELD_WINDOW_SLUG = "window_slug";
+  public static final String MESSAGE_FIELD_VERSION = "version";
+  public static final String MESSAGE_FIELD_ASSETS = "assets";
+
+  private final Transport transport;
+  private final long delayMillis;
+  private final Log log;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("kmlsync-websocket-notifier").setDaemon(true).build());
+
+  /**
+   * The latest state of each Window changed since the last message.
+   */
+  private final ConcurrentMap<String, WindowState> pending = new ConcurrentHashMap<String, WindowState>();
+
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong windows = new AtomicLong();
+
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      // Clear the flag first, so a change that comes in while this message is
+      // built schedules the next one.
+      scheduled.set(false);
+      flush();
+    }
+  };
+
+  /**
+   * @param delayMillis
+   *          how long to collect changes before sending them
+   */
+  public WebSocketNotifier(Transport transport, long delayMillis, Log log) {
+    this.transport = transport;
+    this.delayMillis = delayMillis;
+    this.log = log;
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    pending.putAll(changed);
+    if (scheduled.compareAndSet(false, true)) {
+      try {
+        executor.schedule(flush, delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        log.warn("WebSocket notifier is shut down; changes not sent");
+      }
+    }
+  }
+
+  /**
+   * Messages sent so far.
+   */
+  public long getMessages() {
+    return messages.get();
+  }
+
+  /**
+   * Window states sent so far, over all messages.
+   */
+  public long getWindows() {
+    return windows.get();
+  }
+
+  /**
+   * Stops the notifier thread, waiting briefly for a message in progress.
+   * Changes still being collected are dropped.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flush() {
+    List<Map<String, Object>> states = Lists.newArrayListWithCapacity(pending.size());
+    for (String windowSlug : pending.keySet()) {
+      WindowState state = pending.remove(windowSlug);
+      if (state != null) {
+        Map<String, Object> window = Maps.newHashMap();
+        window.put(MESSAGE_FIELD_WINDOW_SLUG, state.getWindowSlug());
+        window.put(MESSAGE_FIELD_VERSION, state.getVersion());
+        window.put(MESSAGE_FIELD_ASSETS, state.getAssets());
+        states.add(window);
+      }
+    }
+    if (states.isEmpty()) {
+      return;
+    }
+
+    Map<String, Object> data = Maps.newHashMap();
+    data.put(MESSAGE_FIELD_WINDOWS, states);
+    Map<String, Object> message = Maps.newHashMap();
+    message.put(MessageWrapper.MESSAGE_FIELD_TYPE, MESSAGE_TYPE_WINDOWS_CHANGED);
+    message.put(MessageWrapper.MESSAGE_FIELD_DATA, data);
+    try {
+      transport.send(message);
+      messages.incrementAndGet();
+      windows.addAndGet(states.size());
+    } catch (RuntimeException e) {
+      log.error("Couldn't send window changes to WebSocket clients", e);
+    }
+  }
+}
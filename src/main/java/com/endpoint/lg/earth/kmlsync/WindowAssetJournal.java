@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a {@link WindowAssetStore}'s state to disk as it changes, so it
+ * survives the activity restarting.
+ *
+ * Every change to a Window is appended to a journal: either the assets added
+ * to the end of the Window, or, for any other change, all of its assets.
+ * Once the journal holds enough records it's compacted into a snapshot of
+ * every Window and started afresh. Records carry a CRC, so a record torn by a
+ * crash is found and dropped, along with anything after it.
+ *
+ * Writing happens on its own thread. The store only queues each change, so
+ * neither writers nor polling Windows ever wait on the disk.
+ */
+public class WindowAssetJournal implements WindowAssetStore.Listener {
+  static final String SNAPSHOT_FILE = "window-assets.snapshot";
+  static final String JOURNAL_FILE = "window-assets.journal";
+
+  private static final int MAGIC = 0x4b4d4c31;
+  private static final int MAX_RECORD_LENGTH = 1 << 26;
+
+  /**
+   * A Window's whole state.
+   */
+  private static final byte RECORD_SET = 'S';
+  /**
+   * Assets added to the end of a Window at a known version.
+   */
+  private static final byte RECORD_APPEND = 'A';
+
+  private static final byte VALUE_NULL = 0;
+  private static final byte VALUE_STRING = 1;
+  private static final byte VALUE_REPEAT = 2;
+
+  private final File directory;
+  private final int compactRecords;
+  private final Log log;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("kmlsync-journal").setDaemon(true).build());
+
+  private final ConcurrentLinkedQueue<Map<String, WindowState>> pending =
+      new ConcurrentLinkedQueue<Map<String, WindowState>>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      scheduled.set(false);
+      write();
+    }
+  };
+
+  private WindowAssetStore store;
+
+  /*
+   * The rest is only touched by the journal thread, once restore() returns.
+   */
+
+  /**
+   * The state of each Window as of the last record written for it.
+   */
+  private final Map<String, WindowState> written = Maps.newHashMap();
+
+  private FileOutputStream journalFile;
+  private DataOutputStream journal;
+  private int journalRecords;
+
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(8192);
+  private final DataOutputStream record = new DataOutputStream(recordBytes);
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * @param directory
+   *          where to keep the snapshot and journal
+   * @param compactRecords
+   *          how many journal records to allow before compacting
+   */
+  public WindowAssetJournal(File directory, int compactRecords, Log log) {
+    this.directory = directory;
+    this.compactRecords = compactRecords;
+    this.log = log;
+  }
+
+  /**
+   * Loads the saved state into the store, then starts saving the store's
+   * changes. Call before anything else writes to the store.
+   *
+   * @return the number of Windows restored
+   */
+  public int restore(WindowAssetStore store) {
+    Map<String, RestoredWindow> restored = Maps.newHashMap();
+    long journalLength = 0;
+    try {
+      directory.mkdirs();
+      read(new File(directory, SNAPSHOT_FILE), restored);
+      journalLength = read(new File(directory, JOURNAL_FILE), restored);
+    } catch (IOException e) {
+      log.error("Couldn't read saved window assets from " + directory, e);
+    }
+
+    List<WindowState> states = Lists.newArrayListWithCapacity(restored.size());
+    for (Map.Entry<String, RestoredWindow> entry : restored.entrySet()) {
+      WindowState state = new WindowState(entry.getKey(), entry.getValue().version, entry.getValue().assets);
+      states.add(state);
+      written.put(state.getWindowSlug(), state);
+    }
+    store.restore(states);
+
+    try {
+      openJournal(journalLength);
+    } catch (IOException e) {
+      log.error("Couldn't open window asset journal in " + directory, e);
+      closeJournal();
+    }
+    this.store = store;
+    store.addListener(this);
+    return states.size();
+  }
+
+  /**
+   * Stops saving changes, waiting briefly for those already queued to be
+   * written.
+   */
+  public void shutdown() {
+    if (store != null) {
+      store.removeListener(this);
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    closeJournal();
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    pending.add(changed);
+    if (scheduled.compareAndSet(false, true)) {
+      try {
+        executor.execute(drain);
+      } catch (RejectedExecutionException e) {
+        log.warn("Window asset journal is shut down; change not saved");
+      }
+    }
+  }
+
+  /**
+   * Writes everything queued, then syncs the journal to disk.
+   */
+  private void write() {
+    boolean wrote = false;
+    Map<String, WindowState> changed;
+    while ((changed = pending.poll()) != null) {
+      for (WindowState state : changed.values()) {
+        encode(state);
+        written.put(state.getWindowSlug(), state);
+        if (journal != null) {
+          try {
+            frame(journal);
+            journalRecords++;
+          } catch (IOException e) {
+            log.error("Couldn't write to window asset journal; will write a new snapshot", e);
+            closeJournal();
+          }
+        }
+        wrote = true;
+      }
+    }
+    if (!wrote) {
+      return;
+    }
+
+    try {
+      if (journal == null || journalRecords >= compactRecords) {
+        compact();
+      } else {
+        journal.flush();
+        journalFile.getFD().sync();
+      }
+    } catch (IOException e) {
+      log.error("Couldn't save window assets to " + directory, e);
+      closeJournal();
+    }
+  }
+
+  /**
+   * Writes a snapshot of every Window, then starts a new, empty journal.
+   */
+  private void compact() throws IOException {
+    closeJournal();
+
+    File snapshot = new File(directory, SNAPSHOT_FILE);
+    File temporary = new File(directory, SNAPSHOT_FILE + ".tmp");
+    FileOutputStream out = new FileOutputStream(temporary);
+    try {
+      DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 65536));
+      data.writeInt(MAGIC);
+      for (WindowState state : written.values()) {
+        encodeSet(state);
+        frame(data);
+      }
+      data.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temporary.renameTo(snapshot)) {
+      throw new IOException("Couldn't replace " + snapshot + " with " + temporary);
+    }
+
+    openJournal(0);
+  }
+
+  /**
+   * Opens the journal for appending, first cutting it down to the given
+   * length to drop any torn record at its end.
+   */
+  private void openJournal(long validLength) throws IOException {
+    File file = new File(directory, JOURNAL_FILE);
+    RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+    try {
+      truncate.setLength(validLength);
+    } finally {
+      truncate.close();
+    }
+
+    journalFile = new FileOutputStream(file, true);
+    journal = new DataOutputStream(new BufferedOutputStream(journalFile, 65536));
+    journalRecords = 0;
+    if (validLength == 0) {
+      journal.writeInt(MAGIC);
+      journal.flush();
+      journalFile.getFD().sync();
+    }
+  }
+
+  private void closeJournal() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        log.warn("Couldn't close window asset journal", e);
+      }
+    }
+    journal = null;
+    journalFile = null;
+  }
+
+  /**
+   * Encodes a record for a Window's new state: an append if it only gained
+   * assets at the end since its last record, otherwise its whole state.
+   */
+  private void encode(WindowState state) {
+    WindowState previous = written.get(state.getWindowSlug());
+    List<Map<String, Object>> assets = state.getAssets();
+    if (previous == null || previous.isEmpty() || assets.size() <= previous.getAssets().size()
+        || !assets.subList(0, previous.getAssets().size()).equals(previous.getAssets())) {
+      encodeSet(state);
+      return;
+    }
+
+    try {
+      recordBytes.reset();
+      record.writeByte(RECORD_APPEND);
+      writeString(record, state.getWindowSlug());
+      record.writeLong(state.getVersion());
+      record.writeLong(previous.getVersion());
+      writeAssets(record, assets.subList(previous.getAssets().size(), assets.size()));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void encodeSet(WindowState state) {
+    try {
+      recordBytes.reset();
+      record.writeByte(RECORD_SET);
+      writeString(record, state.getWindowSlug());
+      record.writeLong(state.getVersion());
+      writeAssets(record, state.getAssets());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Writes the encoded record with its length and CRC.
+   */
+  private void frame(DataOutputStream out) throws IOException {
+    crc.reset();
+    crc.update(recordBytes.toByteArray(), 0, recordBytes.size());
+    out.writeInt(recordBytes.size());
+    out.writeInt((int) crc.getValue());
+    recordBytes.writeTo(out);
+  }
+
+  private static void writeAssets(DataOutputStream out, List<Map<String, Object>> assets) throws IOException {
+    out.writeInt(assets.size());
+    for (Map<String, Object> asset : assets) {
+      out.writeInt(asset.size());
+      String previous = null;
+      for (Map.Entry<String, Object> field : asset.entrySet()) {
+        writeString(out, field.getKey());
+        Object value = field.getValue();
+        if (value == null) {
+          out.writeByte(VALUE_NULL);
+        } else if (value.toString().equals(previous)) {
+          // Director assets have the same title, slug, and storage
+          out.writeByte(VALUE_REPEAT);
+        } else {
+          previous = value.toString();
+          out.writeByte(VALUE_STRING);
+          writeString(out, previous);
+        }
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * A Window's state as it's rebuilt from saved records.
+   */
+  private static final class RestoredWindow {
+    private long version;
+    private final List<Map<String, Object>> assets = Lists.newArrayList();
+  }
+
+  /**
+   * Applies every intact record in a file to the restored Windows.
+   *
+   * @return the length of the file up to the end of the last intact record,
+   *         or 0 if it's missing or not a saved state file
+   */
+  private long read(File file, Map<String, RestoredWindow> restored) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      long valid = 0;
+      try {
+        if (in.readInt() != MAGIC) {
+          log.warn("Ignoring " + file + ", which isn't saved window assets");
+          return 0;
+        }
+        valid = 4;
+        byte[] buffer = new byte[8192];
+        while (true) {
+          int length = in.readInt();
+          int checksum = in.readInt();
+          if (length < 0 || length > MAX_RECORD_LENGTH) {
+            break;
+          }
+          if (length > buffer.length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+          }
+          in.readFully(buffer, 0, length);
+          crc.reset();
+          crc.update(buffer, 0, length);
+          if ((int) crc.getValue() != checksum) {
+            break;
+          }
+          try {
+            apply(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)), restored);
+          } catch (IOException e) {
+            log.warn("Couldn't apply window asset record in " + file, e);
+            break;
+          }
+          valid += 8 + length;
+        }
+      } catch (EOFException e) {
+        // A record cut short by a crash; everything before it stands
+      }
+      if (valid < file.length()) {
+        log.warn("Dropping " + (file.length() - valid) + " bytes of incomplete records from " + file);
+      }
+      return valid;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Applies one record, unless the restored Window is already past it, as
+   * happens when a crash comes between writing a snapshot and emptying the
+   * journal.
+   */
+  private static void apply(DataInputStream in, Map<String, RestoredWindow> restored) throws IOException {
+    byte type = in.readByte();
+    String windowSlug = readString(in);
+    long version = in.readLong();
+
+    RestoredWindow window = restored.get(windowSlug);
+    if (window == null) {
+      window = new RestoredWindow();
+      restored.put(windowSlug, window);
+    }
+
+    if (type == RECORD_SET) {
+      if (version > window.version) {
+        List<Map<String, Object>> assets = readAssets(in);
+        window.assets.clear();
+        window.assets.addAll(assets);
+        window.version = version;
+      }
+    } else if (type == RECORD_APPEND) {
+      long previousVersion = in.readLong();
+      if (previousVersion == window.version) {
+        window.assets.addAll(readAssets(in));
+        window.version = version;
+      }
+    } else {
+      throw new IOException("Unknown window asset record type " + type);
+    }
+  }
+
+  private static List<Map<String, Object>> readAssets(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<Map<String, Object>> assets = Lists.newArrayListWithCapacity(Math.min(count, 4096));
+    for (int i = 0; i < count; i++) {
+      int fields = in.readInt();
+      String slug = null;
+      String title = null;
+      String storage = null;
+      String previous = null;
+      for (int j = 0; j < fields; j++) {
+        String key = readString(in);
+        byte tag = in.readByte();
+        String value;
+        if (tag == VALUE_NULL) {
+          value = null;
+        } else if (tag == VALUE_REPEAT) {
+          value = previous;
+        } else {
+          previous = readString(in);
+          value = previous;
+        }
+        // Stores only keep these; anything else in an old journal is dropped
+        if (key.equals(Asset.SLUG)) {
+          slug = value;
+        } else if (key.equals(Asset.TITLE)) {
+          title = value;
+        } else if (key.equals(Asset.STORAGE)) {
+          storage = value;
+        }
+      }
+      assets.add(Asset.of(slug, title, storage));
+    }
+    return assets;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
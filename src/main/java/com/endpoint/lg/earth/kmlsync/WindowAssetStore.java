@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the assets each Google Earth Window should have loaded.
+ *
+ * Readers get immutable {@link WindowState} snapshots without taking any lock,
+ * so polling Windows never wait on writers. Writers go through a
+ * {@link Transaction}; only one transaction is open at a time, and its changes
+ * are published all at once when it commits. Every committed change to a
+ * Window gives it a new, higher version number.
+ */
+public class WindowAssetStore {
+  /**
+   * Notified after each commit that changed at least one Window.
+   */
+  public interface Listener {
+    /**
+     * Called with the write lock held, so calls arrive in version order and
+     * must return quickly.
+     *
+     * @param changed
+     *          the new state of each Window that changed, keyed by Window slug
+     */
+    void onWindowsChanged(Map<String, WindowState> changed);
+  }
+
+  /**
+   * All Window states, replaced wholesale on each commit.
+   */
+  private volatile Map<String, WindowState> windows = ImmutableMap.of();
+
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /**
+   * The last version number handed out. Guarded by writeLock.
+   */
+  private long lastVersion = 0;
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the current state of a Window. Never returns null; unknown Windows
+   * get an empty state with version 0.
+   */
+  public WindowState get(String windowSlug) {
+    WindowState state = windows.get(windowSlug);
+    return state == null ? WindowState.empty(windowSlug) : state;
+  }
+
+  /**
+   * Returns the current version of a Window, or 0 if it is unknown.
+   */
+  public long getVersion(String windowSlug) {
+    return get(windowSlug).getVersion();
+  }
+
+  /**
+   * Returns a consistent snapshot of every known Window.
+   */
+  public Map<String, WindowState> getWindows() {
+    return windows;
+  }
+
+  /**
+   * Opens a transaction, waiting for any other open transaction to finish.
+   * Callers must always {@link Transaction#release()} it, normally in a finally
+   * block after calling {@link Transaction#commit()}.
+   */
+  public Transaction begin() {
+    writeLock.lock();
+    return new Transaction();
+  }
+
+  /**
+   * Adds one asset to a Window.
+   */
+  public WindowState add(String windowSlug, Map<String, Object> asset) {
+    Transaction tx = begin();
+    try {
+      tx.add(windowSlug, asset);
+      tx.commit();
+    } finally {
+      tx.release();
+    }
+    return get(windowSlug);
+  }
+
+  /**
+   * Deletes the first asset with the given slug from a Window.
+   *
+   * @return true if an asset was deleted
+   */
+  public boolean delete(String windowSlug, String assetSlug) {
+    Transaction tx = begin();
+    try {
+      boolean found = tx.delete(windowSlug, assetSlug);
+      tx.commit();
+      return found;
+    } finally {
+      tx.release();
+    }
+  }
+
+  /**
+   * Removes every asset from a Window.
+   *
+   * @return false if the Window was unknown
+   */
+  public boolean clear(String windowSlug) {
+    Transaction tx = begin();
+    try {
+      boolean known = tx.clear(windowSlug);
+      tx.commit();
+      return known;
+    } finally {
+      tx.release();
+    }
+  }
+
+  /**
+   * Replaces the state of every Window with the given scene, as one change.
+   */
+  public void replaceScene(Map<String, List<Map<String, Object>>> scene) {
+    Transaction tx = begin();
+    try {
+      tx.replaceScene(scene);
+      tx.commit();
+    } finally {
+      tx.release();
+    }
+  }
+
+  /**
+   * Loads Window states saved or made elsewhere, keeping their versions, as
+   * one change. Versions handed out afterwards are higher than any of them.
+   *
+   * May be called with a transaction open on the same thread, to load states
+   * only if they're newer than the ones in the store.
+   */
+  public void restore(Collection<WindowState> states) {
+    writeLock.lock();
+    try {
+      Map<String, WindowState> changed = Maps.newHashMap();
+      for (WindowState state : states) {
+        changed.put(state.getWindowSlug(), state);
+        lastVersion = Math.max(lastVersion, state.getVersion());
+      }
+      if (!changed.isEmpty()) {
+        Map<String, WindowState> next = Maps.newHashMap(windows);
+        next.putAll(changed);
+        windows = ImmutableMap.copyOf(next);
+        for (Listener listener : listeners) {
+          listener.onWindowsChanged(changed);
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the state of every Window with a scene whose states were built
+   * ahead of time, as one change, the way {@link #replaceScene(Map)} would.
+   * The states' own versions are ignored; each Window that changes gets a new
+   * one, and the rest keep theirs.
+   *
+   * @param scene
+   *          the state of each Window in the scene, keyed by Window slug
+   *
+   * @return the new state of each Window that changed
+   */
+  public Map<String, WindowState> activate(Map<String, WindowState> scene) {
+    writeLock.lock();
+    try {
+      Map<String, WindowState> current = windows;
+      Map<String, WindowState> changed = Maps.newHashMap();
+      for (WindowState previous : current.values()) {
+        if (!scene.containsKey(previous.getWindowSlug()) && !previous.isEmpty()) {
+          changed.put(previous.getWindowSlug(), WindowState.empty(previous.getWindowSlug())
+              .withVersion(++lastVersion));
+        }
+      }
+      for (Map.Entry<String, WindowState> entry : scene.entrySet()) {
+        WindowState previous = current.get(entry.getKey());
+        if (previous == null ? !entry.getValue().isEmpty()
+            : !previous.getAssets().equals(entry.getValue().getAssets())) {
+          changed.put(entry.getKey(), entry.getValue().withVersion(++lastVersion));
+        }
+      }
+
+      if (!changed.isEmpty()) {
+        Map<String, WindowState> next = Maps.newHashMap(current);
+        next.putAll(changed);
+        windows = ImmutableMap.copyOf(next);
+        for (Listener listener : listeners) {
+          listener.onWindowsChanged(changed);
+        }
+      }
+      return changed;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return windows.values().toString();
+  }
+
+  /**
+   * A set of changes to apply to the store at once. Reads through a
+   * transaction see its own uncommitted changes.
+   */
+  public class Transaction {
+    private final Map<String, List<Map<String, Object>>> working = Maps.newHashMap();
+    private boolean open = true;
+
+    private Transaction() {
+    }
+
+    /**
+     * Whether the Window is known to the store or this transaction.
+     */
+    public boolean contains(String windowSlug) {
+      return working.containsKey(windowSlug) || windows.containsKey(windowSlug);
+    }
+
+    /**
+     * The assets the Window will have if this transaction commits.
+     */
+    public List<Map<String, Object>> getAssets(String windowSlug) {
+      List<Map<String, Object>> assets = working.get(windowSlug);
+      if (assets == null) {
+        return get(windowSlug).getAssets();
+      }
+      return Collections.unmodifiableList(assets);
+    }
+
+    public void add(String windowSlug, Map<String, Object> asset) {
+      edit(windowSlug).add(Asset.of(asset));
+    }
+
+    public boolean delete(String windowSlug, String assetSlug) {
+      if (!contains(windowSlug)) {
+        return false;
+      }
+      ListIterator<Map<String, Object>> li = edit(windowSlug).listIterator();
+      while (li.hasNext()) {
+        Object slug = li.next().get("slug");
+        if (slug != null && slug.toString().equals(assetSlug)) {
+          li.remove();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public boolean clear(String windowSlug) {
+      if (!contains(windowSlug)) {
+        return false;
+      }
+      edit(windowSlug).clear();
+      return true;
+    }
+
+    /**
+     * Clears every known Window, then loads the given scene.
+     */
+    public void replaceScene(Map<String, List<Map<String, Object>>> scene) {
+      for (String windowSlug : windows.keySet()) {
+        clear(windowSlug);
+      }
+      for (String windowSlug : Lists.newArrayList(working.keySet())) {
+        clear(windowSlug);
+      }
+      for (Map.Entry<String, List<Map<String, Object>>> entry : scene.entrySet()) {
+        for (Map<String, Object> asset : entry.getValue()) {
+          add(entry.getKey(), asset);
+        }
+      }
+    }
+
+    /**
+     * Publishes the changes. Windows whose assets didn't actually change keep
+     * their version.
+     *
+     * @return the new state of each Window that changed
+     */
+    public Map<String, WindowState> commit() {
+      checkOpen();
+      Map<String, WindowState> current = windows;
+      Map<String, WindowState> changed = Maps.newHashMap();
+      for (Map.Entry<String, List<Map<String, Object>>> entry : working.entrySet()) {
+        WindowState previous = current.get(entry.getKey());
+        if (previous != null && previous.getAssets().equals(entry.getValue())) {
+          continue;
+        }
+        changed.put(entry.getKey(), new WindowState(entry.getKey(), ++lastVersion, entry.getValue()));
+      }
+      working.clear();
+
+      if (!changed.isEmpty()) {
+        Map<String, WindowState> next = Maps.newHashMap(current);
+        next.putAll(changed);
+        windows = ImmutableMap.copyOf(next);
+        for (Listener listener : listeners) {
+          listener.onWindowsChanged(changed);
+        }
+      }
+      return changed;
+    }
+
+    /**
+     * Ends the transaction, discarding anything not committed. Safe to call
+     * more than once.
+     */
+    public void release() {
+      if (open) {
+        open = false;
+        working.clear();
+        writeLock.unlock();
+      }
+    }
+
+    private List<Map<String, Object>> edit(String windowSlug) {
+      checkOpen();
+      List<Map<String, Object>> assets = working.get(windowSlug);
+      if (assets == null) {
+        assets = Lists.newArrayList(get(windowSlug).getAssets());
+        working.put(windowSlug, assets);
+      }
+      return assets;
+    }
+
+    private void checkOpen() {
+      if (!open) {
+        throw new IllegalStateException("Transaction has already been released");
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets update requests wait for a Window's state to change, so that a Window
+ * that's already up to date hears about the next change as soon as it happens
+ * instead of on its next poll.
+ *
+ * Each waiting request holds a web server thread, so only a limited number may
+ * wait at once; past that, requests return straight away as if long polling
+ * were off.
+ */
+public class WindowChangeWaiter implements WindowAssetStore.Listener {
+  private final WindowAssetStore store;
+  private final long timeoutMillis;
+  private final int maxWaiting;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final ConcurrentMap<String, Object> monitors = new ConcurrentHashMap<String, Object>();
+  private volatile boolean running = true;
+
+  /**
+   * @param timeoutMillis
+   *          longest a request waits before being answered anyway
+   * @param maxWaiting
+   *          most requests that may wait at once
+   */
+  public WindowChangeWaiter(WindowAssetStore store, long timeoutMillis, int maxWaiting) {
+    this.store = store;
+    this.timeoutMillis = timeoutMillis;
+    this.maxWaiting = maxWaiting;
+  }
+
+  /**
+   * Waits until the Window's version is past the given one, the timeout
+   * passes, or the waiter is shut down.
+   *
+   * @return the Window's state at the end of the wait
+   */
+  public WindowState awaitChange(String windowSlug, long sinceVersion) {
+    WindowState state = store.get(windowSlug);
+    if (state.getVersion() != sinceVersion || !running) {
+      return state;
+    }
+    if (waiting.incrementAndGet() > maxWaiting) {
+      waiting.decrementAndGet();
+      return state;
+    }
+
+    try {
+      Object monitor = monitor(windowSlug);
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (monitor) {
+        state = store.get(windowSlug);
+        long remaining = deadline - System.currentTimeMillis();
+        while (state.getVersion() == sinceVersion && remaining > 0 && running) {
+          monitor.wait(remaining);
+          state = store.get(windowSlug);
+          remaining = deadline - System.currentTimeMillis();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      state = store.get(windowSlug);
+    } finally {
+      waiting.decrementAndGet();
+    }
+    return state;
+  }
+
+  /**
+   * The number of requests waiting right now.
+   */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /**
+   * Releases every waiting request, and stops new ones from waiting.
+   */
+  public void shutdown() {
+    running = false;
+    for (Object monitor : monitors.values()) {
+      synchronized (monitor) {
+        monitor.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    for (String windowSlug : changed.keySet()) {
+      Object monitor = monitors.get(windowSlug);
+      if (monitor != null) {
+        synchronized (monitor) {
+          monitor.notifyAll();
+        }
+      }
+    }
+  }
+
+  private Object monitor(String windowSlug) {
+    Object monitor = monitors.get(windowSlug);
+    if (monitor == null) {
+      Object created = new Object();
+      monitor = monitors.putIfAbsent(windowSlug, created);
+      if (monitor == null) {
+        monitor = created;
+      }
+    }
+    return monitor;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import interactivespaces.util.data.json.JsonNavigator;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies window asset commands ("add", "delete", "clear", and "list") to a
+ * {@link WindowAssetStore}, whether they came from GET requests, JSON, or ROS
+ * messages. A "touch" command marks a Window as in use, so it's asked to poll
+ * often.
+ */
+public class WindowCommands {
+  /**
+   * The outcome of applying a "commands" array
+   */
+  public static class Results {
+    /**
+     * One Map per command, in order, with "command", "window_slug", "log",
+     * and "warning" keys
+     */
+    public final List<Map<String, Object>> results = Lists.newArrayList();
+
+    /**
+     * The new state of each Window the commands changed
+     */
+    public Map<String, WindowState> changed;
+  }
+
+  private final WindowAssetStore windowAssetStore;
+  private final RefreshAdvisor refreshAdvisor;
+  private final SyncLog log;
+
+  public WindowCommands(WindowAssetStore windowAssetStore, SyncLog log) {
+    this(windowAssetStore, null, log);
+  }
+
+  /**
+   * @param refreshAdvisor
+   *          told about "touch" commands, or null to ignore them
+   * @param log
+   *          logs every command at debug level
+   */
+  public WindowCommands(WindowAssetStore windowAssetStore, RefreshAdvisor refreshAdvisor, SyncLog log) {
+    this.windowAssetStore = windowAssetStore;
+    this.refreshAdvisor = refreshAdvisor;
+    this.log = log;
+  }
+
+  /**
+   * Applies every command in a "commands" array as one change to the window
+   * assets. The navigator must be positioned on the array.
+   */
+  public Results applyCommands(JsonNavigator commands) {
+    Results results = new Results();
+    Map<String, Object> asset;
+
+    WindowAssetStore.Transaction tx = windowAssetStore.begin();
+    try {
+      int size = commands.getSize();
+      for (int i = 0; i < size; i++) {
+        commands.down(i);
+        String command = commands.getString("command");
+        String window_slug = commands.getString("window_slug");
+        if (log.isDebugEnabled()) {
+          log.event("command", "command", command, "window", window_slug);
+        }
+        if (commands.containsProperty("asset")) {
+            commands.down("asset");
+            asset = Asset.of(commands.getString("slug"), commands.getString("title"),
+                commands.getString("storage"));
+            commands.up();
+        }
+        else {
+            asset = null;
+        }
+
+        ArrayListMultimap<String, String> result;
+        if (command == null || window_slug == null) {
+            result = ArrayListMultimap.create();
+            result.put("log", "Didn't find all required keys ('command' and 'window_slug') in command");
+            result.put("warning", "t");
+        }
+        else {
+            result = applyCommand(tx, command, window_slug,
+                (commands.containsProperty("asset_slug") ? commands.getString("asset_slug") : null),
+                asset);
+        }
+
+        Map<String, Object> entry = Maps.newHashMap();
+        entry.put("command", command);
+        entry.put("window_slug", window_slug);
+        entry.put("log", Lists.newArrayList(result.get("log")));
+        entry.put("warning", result.containsKey("warning"));
+        results.results.add(entry);
+
+        commands.up();
+      }
+      results.changed = tx.commit();
+    }
+    finally {
+      tx.release();
+    }
+    return results;
+  }
+
+  /**
+   * Applies a single command as its own change to the window assets
+   */
+  public ArrayListMultimap<String, String>
+  handleCommand(String command, String window_slug, String asset_slug, Map<String, Object> asset) {
+    WindowAssetStore.Transaction tx = windowAssetStore.begin();
+    try {
+        ArrayListMultimap<String, String> result = applyCommand(tx, command, window_slug, asset_slug, asset);
+        tx.commit();
+        return result;
+    }
+    finally {
+        tx.release();
+    }
+  }
+
+  /**
+   * Applies one command to an open window asset transaction
+   */
+  private ArrayListMultimap<String, String> applyCommand(WindowAssetStore.Transaction tx,
+        String command, String window_slug, String asset_slug, Map<String, Object> asset) {
+    ArrayListMultimap<String, String> result = ArrayListMultimap.create();
+
+    if (command.equals("add")) {
+        if (asset == null) {
+            result.put("log", "No asset supplied to add command");
+            result.put("warning", "t");
+            return result;
+        }
+        result.put("log", "Adding asset " + asset);
+        tx.add(window_slug, asset);
+    }
+    else if (command.equals("clear")) {
+        if (tx.clear(window_slug)) {
+            result.put("log", "Assets for window slug '" + window_slug + "' cleared");
+        }
+        else {
+            result.put("log", "No such window slug '" + window_slug + "' found");
+        }
+    }
+    else if (command.equals("delete")) {
+        if (asset_slug == null) {
+            result.put("log", "No asset slug supplied to delete command");
+            result.put("warning", "t");
+            return result;
+        }
+
+        if (tx.contains(window_slug)) {
+            result.put("log", "Found " + tx.getAssets(window_slug).size() + " assets for window " + window_slug);
+            if (!tx.delete(window_slug, asset_slug)) {
+                result.put("log", "Didn't find asset slug " + asset_slug + " for window " + window_slug);
+            }
+        }
+        else {
+            result.put("log", "Window slug " + window_slug + " has no assets");
+        }
+    }
+    else if (command.equals("touch")) {
+        if (refreshAdvisor != null) {
+            refreshAdvisor.touch(window_slug);
+            result.put("log", "Window slug '" + window_slug + "' touched");
+        }
+        else {
+            result.put("log", "Adaptive refresh is off; ignoring touch of '" + window_slug + "'");
+        }
+    }
+    else if (command.equals("list")) {
+        if (tx.contains(window_slug)) {
+            for (Map<String, Object> m : tx.getAssets(window_slug)) {
+                result.put("log", "Asset: " + m.toString());
+            }
+        }
+        else {
+            result.put("log", "Cannot find window_slug " + window_slug);
+        }
+    }
+    else {
+        result.put("log", "Unknown command \"" + command + "\"");
+        result.put("warning", "t");
+    }
+    return result;
+  }
+}
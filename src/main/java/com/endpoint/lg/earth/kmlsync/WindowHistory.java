@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The last few states of each Window, so a client that sends back a state
+ * token, instead of the slug of every asset it has, can be told what to
+ * change from the state the token names.
+ *
+ * A token is the state's version and its {@link WindowState#getAssetFingerprint()},
+ * e.g. "42.9f3a0c1e55d2b7a0". The fingerprint keeps a token from an earlier
+ * run of the activity, whose versions may be reused, from being mistaken for
+ * a current one.
+ */
+public class WindowHistory implements WindowAssetStore.Listener {
+  private final int depth;
+  private final ConcurrentMap<String, List<WindowState>> states = new ConcurrentHashMap<String, List<WindowState>>();
+
+  /**
+   * @param depth
+   *          how many states to keep for each Window, the current one
+   *          included
+   */
+  public WindowHistory(int depth) {
+    this.depth = Math.max(depth, 1);
+  }
+
+  /**
+   * The token for a Window state.
+   */
+  public static String token(WindowState state) {
+    return state.getVersion() + "." + Long.toHexString(state.getAssetFingerprint());
+  }
+
+  /**
+   * Returns the state of a Window with the given version and fingerprint, or
+   * null if it isn't one of those kept.
+   */
+  public WindowState find(String windowSlug, long version, long fingerprint) {
+    if (version == 0) {
+      // Every Window starts out empty at version 0
+      WindowState empty = WindowState.empty(windowSlug);
+      return empty.getAssetFingerprint() == fingerprint ? empty : null;
+    }
+    List<WindowState> kept = states.get(windowSlug);
+    if (kept != null) {
+      for (WindowState state : kept) {
+        if (state.getVersion() == version) {
+          return state.getAssetFingerprint() == fingerprint ? state : null;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    // Listeners are called one commit at a time, so each list is only ever
+    // replaced by one thread at once.
+    for (WindowState state : changed.values()) {
+      List<WindowState> kept = states.get(state.getWindowSlug());
+      ImmutableList.Builder<WindowState> next = ImmutableList.builder();
+      next.add(state);
+      if (kept != null) {
+        for (int i = 0; i < kept.size() && i < depth - 1; i++) {
+          if (kept.get(i).getVersion() != state.getVersion()) {
+            next.add(kept.get(i));
+          }
+        }
+      }
+      states.put(state.getWindowSlug(), next.build());
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import com.endpoint.lg.support.message.MessageWrapper;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.logging.Log;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the window assets of several kmlsync activities the same, by
+ * publishing each change to a {@link WindowAssetStore} to its peers and
+ * applying theirs.
+ *
+ * A change is published as the new state of each Window it touched, with the
+ * Window's version and the node that wrote it. Applying a state is
+ * idempotent: a node takes it only if it's newer than what it has, ordering
+ * by version and then by node, and loading it raises the node's own versions
+ * past it. So the last write to each Window wins everywhere, whatever order
+ * messages arrive in, and repeats are ignored.
+ *
+ * A node that starts up asks its peers for a snapshot of everything, and
+ * offers its own.
+ */
+public class WindowReplicator implements WindowAssetStore.Listener {
+  /**
+   * Sends replication messages to every peer.
+   */
+  public interface Transport {
+    void send(Map<String, Object> message);
+  }
+
+  public static final String MESSAGE_TYPE_DELTA = "kmlsync.replication.delta";
+  public static final String MESSAGE_TYPE_SNAPSHOT = "kmlsync.replication.snapshot";
+  public static final String MESSAGE_TYPE_SNAPSHOT_REQUEST = "kmlsync.replication.snapshot_request";
+
+  public static final String MESSAGE_FIELD_NODE = "node";
+  public static final String MESSAGE_FIELD_WINDOWS = "windows";
+  public static final String MESSAGE_FIELD_WINDOW_SLUG = "window_slug";
+  public static final String MESSAGE_FIELD_VERSION = "version";
+  public static final String MESSAGE_FIELD_ASSETS = "assets";
+
+  private final WindowAssetStore store;
+  private final Transport transport;
+  private final String nodeId;
+  private final Log log;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("kmlsync-replicator").setDaemon(true).build());
+
+  /**
+   * The node that wrote each Window's current state, where known.
+   */
+  private final ConcurrentMap<String, String> writers = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Set while this thread loads peers' states, so they aren't published again.
+   */
+  private final ThreadLocal<Boolean> applying = new ThreadLocal<Boolean>();
+
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+
+  /**
+   * @param nodeId
+   *          unique among the peers
+   */
+  public WindowReplicator(WindowAssetStore store, Transport transport, String nodeId, Log log) {
+    this.store = store;
+    this.transport = transport;
+    this.nodeId = nodeId;
+    this.log = log;
+  }
+
+  /**
+   * Starts publishing changes, offers peers this node's state, and asks for
+   * theirs.
+   */
+  public void start() {
+    store.addListener(this);
+    Collection<WindowState> states = store.getWindows().values();
+    if (!states.isEmpty()) {
+      publish(MESSAGE_TYPE_SNAPSHOT, states, null);
+    }
+    publish(MESSAGE_TYPE_SNAPSHOT_REQUEST, Collections.<WindowState>emptyList(), nodeId);
+  }
+
+  /**
+   * Stops publishing changes, waiting briefly for those already queued to be
+   * sent.
+   */
+  public void shutdown() {
+    store.removeListener(this);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Window states taken from peers so far.
+   */
+  public long getApplied() {
+    return applied.get();
+  }
+
+  /**
+   * Window states from peers ignored because this node already had them, or
+   * something newer.
+   */
+  public long getStale() {
+    return stale.get();
+  }
+
+  /**
+   * Handles a replication message from a peer. This node's own messages are
+   * ignored.
+   */
+  @SuppressWarnings("unchecked")
+  public void receive(Map<String, Object> message) {
+    String type = (String) message.get(MessageWrapper.MESSAGE_FIELD_TYPE);
+    Map<String, Object> data = (Map<String, Object>) message.get(MessageWrapper.MESSAGE_FIELD_DATA);
+    if (data == null) {
+      log.warn("Replication message without data: " + message);
+      return;
+    }
+    String node = (String) data.get(MESSAGE_FIELD_NODE);
+    if (node == null || node.equals(nodeId)) {
+      return;
+    }
+
+    if (MESSAGE_TYPE_SNAPSHOT_REQUEST.equals(type)) {
+      log.info("Sending window assets snapshot to replication peer " + node);
+      publish(MESSAGE_TYPE_SNAPSHOT, store.getWindows().values(), null);
+    } else if (MESSAGE_TYPE_DELTA.equals(type) || MESSAGE_TYPE_SNAPSHOT.equals(type)) {
+      apply(node, (List<Map<String, Object>>) data.get(MESSAGE_FIELD_WINDOWS));
+    } else {
+      log.warn("Unknown replication message type " + type);
+    }
+  }
+
+  @Override
+  public void onWindowsChanged(Map<String, WindowState> changed) {
+    if (applying.get() != null) {
+      return;
+    }
+    for (String windowSlug : changed.keySet()) {
+      writers.put(windowSlug, nodeId);
+    }
+    publish(MESSAGE_TYPE_DELTA, changed.values(), nodeId);
+  }
+
+  /**
+   * Loads each Window state that's newer than the store's, as one change.
+   */
+  private void apply(String node, List<Map<String, Object>> windows) {
+    if (windows == null) {
+      return;
+    }
+
+    WindowAssetStore.Transaction tx = store.begin();
+    try {
+      List<WindowState> newer = Lists.newArrayList();
+      for (Map<String, Object> window : windows) {
+        String windowSlug = (String) window.get(MESSAGE_FIELD_WINDOW_SLUG);
+        Number version = (Number) window.get(MESSAGE_FIELD_VERSION);
+        String writer = window.containsKey(MESSAGE_FIELD_NODE) ? (String) window.get(MESSAGE_FIELD_NODE) : node;
+        if (windowSlug == null || version == null) {
+          log.warn("Replication peer " + node + " sent a window without a slug or version");
+        } else if (isNewer(windowSlug, version.longValue(), writer)) {
+          newer.add(new WindowState(windowSlug, version.longValue(), assets(window.get(MESSAGE_FIELD_ASSETS))));
+          writers.put(windowSlug, writer);
+        } else {
+          stale.incrementAndGet();
+        }
+      }
+
+      if (!newer.isEmpty()) {
+        applying.set(Boolean.TRUE);
+        try {
+          store.restore(newer);
+        } finally {
+          applying.remove();
+        }
+        applied.addAndGet(newer.size());
+      }
+    } finally {
+      tx.release();
+    }
+  }
+
+  /**
+   * Whether a state from a peer is newer than the store's: it has a higher
+   * version, or the same version from a node that sorts later. A state with
+   * no recorded writer, as one restored from the journal, counts as this
+   * node's, as it does when it's sent to peers.
+   */
+  private boolean isNewer(String windowSlug, long version, String writer) {
+    long current = store.getVersion(windowSlug);
+    if (version != current) {
+      return version > current;
+    }
+    String currentWriter = writers.get(windowSlug);
+    return writer.compareTo(currentWriter != null ? currentWriter : nodeId) > 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> assets(Object value) {
+    List<Map<String, Object>> assets = Lists.newArrayList();
+    if (value instanceof List) {
+      for (Object asset : (List<Object>) value) {
+        assets.add(Asset.of((Map<String, Object>) asset));
+      }
+    }
+    return assets;
+  }
+
+  /**
+   * Sends a message carrying the given states from the replicator's thread,
+   * so the store's lock isn't held while it goes out.
+   *
+   * @param writer
+   *          the node that wrote all the states, or null to look up each
+   *          one's writer
+   */
+  private void publish(final String type, final Collection<WindowState> states, final String writer) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            transport.send(message(type, states, writer));
+          } catch (RuntimeException e) {
+            log.error("Couldn't send replication message", e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      log.warn("Replicator is shut down; " + type + " not sent");
+    }
+  }
+
+  private Map<String, Object> message(String type, Collection<WindowState> states, String writer) {
+    List<Map<String, Object>> windows = Lists.newArrayListWithCapacity(states.size());
+    for (WindowState state : states) {
+      Map<String, Object> window = Maps.newHashMap();
+      window.put(MESSAGE_FIELD_WINDOW_SLUG, state.getWindowSlug());
+      window.put(MESSAGE_FIELD_VERSION, state.getVersion());
+      String stateWriter = writer != null ? writer : writers.get(state.getWindowSlug());
+      window.put(MESSAGE_FIELD_NODE, stateWriter != null ? stateWriter : nodeId);
+      window.put(MESSAGE_FIELD_ASSETS, state.getAssets());
+      windows.add(window);
+    }
+
+    Map<String, Object> data = Maps.newHashMap();
+    data.put(MESSAGE_FIELD_NODE, nodeId);
+    data.put(MESSAGE_FIELD_WINDOWS, windows);
+
+    Map<String, Object> message = Maps.newHashMap();
+    message.put(MessageWrapper.MESSAGE_FIELD_TYPE, type);
+    message.put(MessageWrapper.MESSAGE_FIELD_DATA, data);
+    return message;
+  }
+}
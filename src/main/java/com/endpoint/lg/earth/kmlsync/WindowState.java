@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the assets one Google Earth Window should have
+ * loaded. Snapshots are published by a {@link WindowAssetStore} and may be
+ * read from any thread without locking.
+ */
+public final class WindowState {
+  private final String windowSlug;
+  private final long version;
+  private final List<Map<String, Object>> assets;
+  private final List<String> assetSlugs;
+  private final List<String> assetHashes;
+  private final Set<String> assetSlugSet;
+  private final long assetSlugFingerprint;
+  private final long assetFingerprint;
+
+  /**
+   * The distinct slugs again, open addressed by hash code, so a slug can be
+   * looked up by its characters without first being made into a String.
+   * assetSlugIndexes holds the index in assetSlugs of each slug's first asset.
+   */
+  private final String[] assetSlugTable;
+  private final int[] assetSlugIndexes;
+
+  WindowState(String windowSlug, long version, List<Map<String, Object>> assets) {
+    this.windowSlug = windowSlug;
+    this.version = version;
+
+    List<Map<String, Object>> shared = new ArrayList<Map<String, Object>>(assets.size());
+    List<String> slugs = new ArrayList<String>(assets.size());
+    List<String> hashes = new ArrayList<String>(assets.size());
+    for (Map<String, Object> asset : assets) {
+      Asset a = Asset.of(asset);
+      shared.add(a);
+      slugs.add(a.getSlug());
+      hashes.add(a.getContentHash());
+    }
+    this.assets = Collections.unmodifiableList(shared);
+    this.assetSlugs = Collections.unmodifiableList(slugs);
+    this.assetHashes = Collections.unmodifiableList(hashes);
+    this.assetSlugSet = Collections.unmodifiableSet(new HashSet<String>(slugs));
+    this.assetSlugFingerprint = fingerprint(slugs);
+    this.assetFingerprint = fingerprint(slugs, hashes);
+
+    int tableSize = 2;
+    while (tableSize < 2 * assetSlugSet.size()) {
+      tableSize <<= 1;
+    }
+    this.assetSlugTable = new String[tableSize];
+    this.assetSlugIndexes = new int[tableSize];
+    for (int index = 0; index < slugs.size(); index++) {
+      String slug = slugs.get(index);
+      if (slug != null) {
+        int i = slug.hashCode() & (tableSize - 1);
+        while (assetSlugTable[i] != null && !assetSlugTable[i].equals(slug)) {
+          i = (i + 1) & (tableSize - 1);
+        }
+        if (assetSlugTable[i] == null) {
+          assetSlugTable[i] = slug;
+          assetSlugIndexes[i] = index;
+        }
+      }
+    }
+  }
+
+  private WindowState(WindowState other, long version) {
+    this.windowSlug = other.windowSlug;
+    this.version = version;
+    this.assets = other.assets;
+    this.assetSlugs = other.assetSlugs;
+    this.assetHashes = other.assetHashes;
+    this.assetSlugSet = other.assetSlugSet;
+    this.assetSlugFingerprint = other.assetSlugFingerprint;
+    this.assetFingerprint = other.assetFingerprint;
+    this.assetSlugTable = other.assetSlugTable;
+    this.assetSlugIndexes = other.assetSlugIndexes;
+  }
+
+  /**
+   * The same assets at another version, sharing everything already worked
+   * out about them.
+   */
+  WindowState withVersion(long version) {
+    return new WindowState(this, version);
+  }
+
+  /**
+   * Hashes what a client shows for an asset, its title and storage URL, to
+   * eight hex digits (FNV-1a). A client reports the hash of each asset it
+   * loaded, so an asset that keeps its slug but changes can be updated in
+   * place.
+   */
+  public static String contentHash(Map<String, Object> asset) {
+    int hash = 0x811c9dc5;
+    hash = contentHash(hash, asset.get("title"));
+    hash = (hash ^ 0xffff) * 0x01000193;
+    hash = contentHash(hash, asset.get("storage"));
+    String hex = Integer.toHexString(hash);
+    return "00000000".substring(hex.length()) + hex;
+  }
+
+  private static int contentHash(int hash, Object value) {
+    if (value != null) {
+      String s = value.toString();
+      for (int i = 0; i < s.length(); i++) {
+        hash = (hash ^ s.charAt(i)) * 0x01000193;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Hashes a list of asset slugs, in order, to 64 bits (FNV-1a).
+   */
+  public static long fingerprint(List<String> slugs) {
+    long hash = 0xcbf29ce484222325L;
+    for (String slug : slugs) {
+      if (slug != null) {
+        for (int i = 0; i < slug.length(); i++) {
+          hash = (hash ^ slug.charAt(i)) * 0x100000001b3L;
+        }
+      }
+      // Separate the slugs, so ["ab"] and ["a", "b"] differ
+      hash = (hash ^ 0xffff) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Hashes a list of asset slugs and their content hashes, in order, to 64
+   * bits. Without content hashes, it's the same as {@link #fingerprint(List)}.
+   */
+  public static long fingerprint(List<String> slugs, List<String> contentHashes) {
+    long hash = fingerprint(slugs);
+    for (String contentHash : contentHashes) {
+      for (int i = 0; i < contentHash.length(); i++) {
+        hash = (hash ^ contentHash.charAt(i)) * 0x100000001b3L;
+      }
+      hash = (hash ^ 0xffff) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Returns an empty state, for Windows the store has never seen.
+   */
+  static WindowState empty(String windowSlug) {
+    return new WindowState(windowSlug, 0, Collections.<Map<String, Object>>emptyList());
+  }
+
+  public String getWindowSlug() {
+    return windowSlug;
+  }
+
+  /**
+   * The version of this Window's state. Versions only ever increase, and a
+   * Window that has never been written to has version 0.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * The assets, in the order they were added. Each asset is an {@link Asset},
+   * an unmodifiable Map with "slug", "title", and "storage" keys.
+   */
+  public List<Map<String, Object>> getAssets() {
+    return assets;
+  }
+
+  /**
+   * The slugs of {@link #getAssets()}, in the same order.
+   */
+  public List<String> getAssetSlugs() {
+    return assetSlugs;
+  }
+
+  /**
+   * The {@link #contentHash(Map)} of each of {@link #getAssets()}, in the
+   * same order.
+   */
+  public List<String> getAssetHashes() {
+    return assetHashes;
+  }
+
+  /**
+   * Whether any asset has this slug.
+   */
+  public boolean containsAssetSlug(String slug) {
+    return assetSlugSet.contains(slug);
+  }
+
+  /**
+   * Returns the index of the first asset whose slug is held in the given
+   * range of characters, or -1 if there's none. Lets request parsing reuse the
+   * server's slugs rather than allocate its own.
+   */
+  int indexOfAssetSlug(CharSequence chars, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + chars.charAt(i);
+    }
+    int mask = assetSlugTable.length - 1;
+    for (int i = hash & mask; assetSlugTable[i] != null; i = (i + 1) & mask) {
+      String slug = assetSlugTable[i];
+      if (slug.hashCode() == hash && regionEquals(slug, chars, start, end)) {
+        return assetSlugIndexes[i];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * {@link #fingerprint(List, List)} of {@link #getAssetSlugs()} and
+   * {@link #getAssetHashes()}.
+   */
+  public long getAssetFingerprint() {
+    return assetFingerprint;
+  }
+
+  /**
+   * {@link #fingerprint(List)} of {@link #getAssetSlugs()}.
+   */
+  public long getAssetSlugFingerprint() {
+    return assetSlugFingerprint;
+  }
+
+  /**
+   * Whether a client reporting these slugs already has exactly these assets
+   * loaded, and so needs nothing created, deleted, or changed. A client that
+   * reports no content hashes is taken to have the current version of every
+   * asset whose slug it reports.
+   *
+   * @param clientFingerprint
+   *          {@link #fingerprint(List, List)} of clientAssetSlugs and
+   *          clientAssetHashes
+   */
+  public boolean isLoadedBy(long clientFingerprint, List<String> clientAssetSlugs, List<String> clientAssetHashes) {
+    if (clientAssetHashes.isEmpty()) {
+      return clientFingerprint == assetSlugFingerprint && assetSlugs.equals(clientAssetSlugs);
+    }
+    return clientFingerprint == assetFingerprint && assetSlugs.equals(clientAssetSlugs)
+        && assetHashes.equals(clientAssetHashes);
+  }
+
+  /**
+   * Whether the content hash held in the given range of characters is the
+   * one for the asset at the given index.
+   */
+  boolean isAssetHash(int index, CharSequence chars, int start, int end) {
+    return regionEquals(assetHashes.get(index), chars, start, end);
+  }
+
+  public boolean isEmpty() {
+    return assets.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return windowSlug + "@" + version + assets;
+  }
+
+  private static boolean regionEquals(String s, CharSequence chars, int start, int end) {
+    if (s.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) != chars.charAt(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
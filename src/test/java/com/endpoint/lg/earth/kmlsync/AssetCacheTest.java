@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link AssetCache}, fetching from a local stand-in origin.
+ */
+public class AssetCacheTest {
+  private static final String PROXY_BASE = "http://kmlsync:8765/asset_cache";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer origin;
+  private String originUrl;
+  private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+  private final List<AssetCache> caches = Lists.newArrayList();
+  private WindowAssetStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    origin.setExecutor(Executors.newCachedThreadPool());
+    origin.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.putIfAbsent(path, new AtomicInteger());
+        requests.get(path).incrementAndGet();
+        if (path.startsWith("/slow")) {
+          try {
+            Thread.sleep(300);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (path.startsWith("/missing")) {
+          exchange.sendResponseHeaders(404, -1);
+          exchange.close();
+          return;
+        }
+        byte[] body = body(path);
+        exchange.getResponseHeaders().set("Content-Type", "application/vnd.google-earth.kml+xml");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    origin.start();
+    originUrl = "http://127.0.0.1:" + origin.getAddress().getPort();
+    store = new WindowAssetStore();
+  }
+
+  @After
+  public void tearDown() {
+    for (AssetCache cache : caches) {
+      cache.shutdown();
+    }
+    origin.stop(0);
+  }
+
+  @Test
+  public void oneFetchIsSharedByEveryWindow() throws Exception {
+    final AssetCache cache = cache(1 << 20, 0);
+    final String url = originUrl + "/slow/a.kml";
+    for (int w = 0; w < 5; w++) {
+      store.add("window-" + w, asset(url));
+    }
+
+    ExecutorService windows = Executors.newFixedThreadPool(5);
+    try {
+      List<Future<AssetCache.Entry>> gets = Lists.newArrayList();
+      for (int w = 0; w < 5; w++) {
+        gets.add(windows.submit(new Callable<AssetCache.Entry>() {
+          @Override
+          public AssetCache.Entry call() {
+            return cache.get(url);
+          }
+        }));
+      }
+      AssetCache.Entry first = gets.get(0).get();
+      assertNotNull(first);
+      for (Future<AssetCache.Entry> get : gets) {
+        assertSame(first, get.get());
+      }
+    } finally {
+      windows.shutdown();
+    }
+
+    assertEquals(1, requests.get("/slow/a.kml").get());
+    assertEquals(1, cache.getFetches());
+    assertArrayEquals(body("/slow/a.kml"), Files.toByteArray(cache.get(url).getFile()));
+    assertEquals("application/vnd.google-earth.kml+xml", cache.get(url).getContentType());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedByBytes() {
+    AssetCache cache = cache(250, 0);
+    AssetCache.Entry a = fetch(cache, "/a.kml");
+    AssetCache.Entry b = fetch(cache, "/b.kml");
+    assertEquals(200, cache.getBytes());
+
+    // Using a makes b the least recently used
+    assertSame(a, cache.get(originUrl + "/a.kml"));
+    fetch(cache, "/c.kml");
+
+    assertEquals(2, cache.size());
+    assertEquals(200, cache.getBytes());
+    assertFalse(b.getFile().exists());
+    assertSame(a, cache.get(originUrl + "/a.kml"));
+    fetch(cache, "/b.kml");
+    assertEquals(2, requests.get("/b.kml").get());
+  }
+
+  @Test
+  public void refetchesExpiredFiles() throws InterruptedException {
+    AssetCache cache = cache(1 << 20, 100);
+    AssetCache.Entry first = fetch(cache, "/a.kml");
+    assertSame(first, cache.get(originUrl + "/a.kml"));
+
+    Thread.sleep(150);
+    AssetCache.Entry second = cache.get(originUrl + "/a.kml");
+
+    assertNotNull(second);
+    assertEquals(2, requests.get("/a.kml").get());
+    assertFalse(first.getFile().exists());
+    assertEquals(100, cache.getBytes());
+  }
+
+  @Test
+  public void onlyProxiesOriginsOfAssets() {
+    AssetCache cache = cache(1 << 20, 0);
+    fetch(cache, "/a.kml");
+
+    assertNull(cache.get("http://localhost:" + origin.getAddress().getPort() + "/b.kml"));
+    assertNull(cache.get("file:///etc/passwd"));
+    assertNull(requests.get("/b.kml"));
+  }
+
+  @Test
+  public void failedFetchReturnsNull() {
+    AssetCache cache = cache(1 << 20, 0);
+    store.add("window", asset(originUrl + "/missing.kml"));
+
+    assertNull(cache.get(originUrl + "/missing.kml"));
+    assertEquals(0, cache.size());
+
+    store.add("window", asset(originUrl + "/big.kml"));
+    assertNull(cache(50, 0).get(originUrl + "/big.kml"));
+  }
+
+  @Test
+  public void rewrittenUrlsLeadBackToTheirOrigin() {
+    AssetCache cache = cache(1 << 20, 0);
+    for (String url : Arrays.asList("http://example.com/layers/a.kml", "https://Example.com:8443/a%20b.kml",
+        "http://example.com/q.kml?x=1&y=%2F", "http://user@example.com/a.kmz")) {
+      String proxied = cache.rewrite(url);
+      String rest = proxied.substring(PROXY_BASE.length());
+      int query = rest.indexOf('?');
+      assertEquals(url, AssetCache.originUrl(query == -1 ? rest : rest.substring(0, query),
+          query == -1 ? null : rest.substring(query + 1)));
+    }
+
+    assertEquals(PROXY_BASE + "/http/example.com/", cache.rewrite("http://example.com"));
+    assertEquals("http://example.com/", AssetCache.originUrl("/http/example.com/", null));
+
+    // The scheme is case-insensitive, but the proxy path only takes it in
+    // lower case
+    assertEquals(PROXY_BASE + "/http/Example.com/a.kml", cache.rewrite("HTTP://Example.com/a.kml"));
+    assertEquals("http://Example.com/a.kml", AssetCache.originUrl("/http/Example.com/a.kml", null));
+  }
+
+  @Test
+  public void leavesUrlsItCantProxyAlone() {
+    AssetCache cache = cache(1 << 20, 0);
+    for (String url : Arrays.asList("file:///media/a.kml", "relative/a.kml", "http:/no-authority", "%%")) {
+      assertEquals(url, cache.rewrite(url));
+    }
+    assertNull(AssetCache.originUrl(null, null));
+    assertNull(AssetCache.originUrl("http/example.com/a", null));
+    assertNull(AssetCache.originUrl("/ftp/example.com/a", null));
+    assertNull(AssetCache.originUrl("/http", null));
+  }
+
+  private AssetCache cache(long maxBytes, long maxAgeMillis) {
+    AssetCache cache = new AssetCache(folder.getRoot(), maxBytes, maxAgeMillis, PROXY_BASE, new NoOpLog());
+    caches.add(cache);
+    store.addListener(cache);
+    return cache;
+  }
+
+  /**
+   * Gives a Window of its own an asset at the origin, and waits for the cache
+   * to have it.
+   */
+  private AssetCache.Entry fetch(AssetCache cache, String path) {
+    store.add("window" + path, asset(originUrl + path));
+    AssetCache.Entry entry = cache.get(originUrl + path);
+    assertNotNull(entry);
+    return entry;
+  }
+
+  private static Map<String, Object> asset(String url) {
+    return Asset.of(url, url, url);
+  }
+
+  /**
+   * 100 bytes made from the path, so each file has its own content.
+   */
+  private static byte[] body(String path) {
+    byte[] body = new byte[100];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) path.charAt(i % path.length());
+    }
+    return body;
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link AssetDiff}.
+ */
+public class AssetDiffTest {
+  @Test
+  public void clientDiffCreatesInServerOrderAndDeletesInClientOrder() {
+    WindowState state = state(asset("d"), asset("b"), asset("e"), asset("a"));
+
+    AssetDiff diff = AssetDiff.between(ImmutableList.of("c", "a", "f", "b"), state);
+
+    assertEquals(ImmutableList.of("d", "e"), slugs(diff.getCreates()));
+    assertEquals(ImmutableList.of("c", "f"), diff.getDeletes());
+    assertTrue(diff.getChanges().isEmpty());
+  }
+
+  @Test
+  public void clientDiffCreatesDuplicateServerSlugOnce() {
+    WindowState state = state(asset("a", "first"), asset("b"), asset("a", "second"));
+
+    AssetDiff diff = AssetDiff.between(Collections.<String>emptyList(), state);
+
+    assertEquals(ImmutableList.of("a", "b"), slugs(diff.getCreates()));
+    assertEquals("first", Asset.of(diff.getCreates().get(0)).getTitle());
+  }
+
+  @Test
+  public void clientDiffDeletesDuplicateClientSlugOnce() {
+    WindowState state = state(asset("a"));
+
+    AssetDiff diff = AssetDiff.between(ImmutableList.of("x", "a", "x", "a"), state);
+
+    assertEquals(ImmutableList.of("x"), diff.getDeletes());
+    assertTrue(diff.getCreates().isEmpty());
+  }
+
+  @Test
+  public void clientDiffOfLoadedWindowIsEmpty() {
+    WindowState state = state(asset("a"), asset("b"));
+
+    assertTrue(AssetDiff.between(ImmutableList.of("b", "a"), state).isEmpty());
+    assertTrue(AssetDiff.between(state.getAssetSlugs(), state.getAssetHashes(), state).isEmpty());
+  }
+
+  @Test
+  public void clientDiffFindsChangesByContentHash() {
+    Asset oldB = asset("b", "old title");
+    WindowState state = state(asset("a"), asset("b", "new title"), asset("c"));
+
+    AssetDiff diff = AssetDiff.between(ImmutableList.of("c", "b", "a"),
+        ImmutableList.of(hash(asset("c")), WindowState.contentHash(oldB), hash(asset("a"))), state);
+
+    assertEquals(ImmutableList.of("b"), slugs(diff.getChanges()));
+    assertEquals("new title", Asset.of(diff.getChanges().get(0)).getTitle());
+    assertTrue(diff.getCreates().isEmpty());
+    assertTrue(diff.getDeletes().isEmpty());
+  }
+
+  @Test
+  public void clientDiffUsesFirstHashOfDuplicateClientSlug() {
+    WindowState state = state(asset("a"));
+
+    AssetDiff unchanged = AssetDiff.between(ImmutableList.of("a", "a"),
+        ImmutableList.of(hash(asset("a")), "00000000"), state);
+    AssetDiff changed = AssetDiff.between(ImmutableList.of("a", "a"),
+        ImmutableList.of("00000000", hash(asset("a"))), state);
+
+    assertTrue(unchanged.isEmpty());
+    assertEquals(ImmutableList.of("a"), slugs(changed.getChanges()));
+  }
+
+  @Test
+  public void clientDiffIgnoresHashesThatDontMatchSlugs() {
+    WindowState state = state(asset("a"), asset("b"));
+
+    AssetDiff diff = AssetDiff.between(ImmutableList.of("a", "b"), ImmutableList.of("00000000"), state);
+
+    assertTrue(diff.isEmpty());
+  }
+
+  @Test
+  public void listDiffCreatesAndChangesInTargetOrderAndDeletesInSourceOrder() {
+    List<Map<String, Object>> from = assets(asset("z"), asset("b"), asset("y"), asset("a"));
+    List<Map<String, Object>> to = assets(asset("c"), asset("a", "renamed"), asset("b"), asset("d"));
+
+    AssetDiff diff = AssetDiff.between(from, to);
+
+    assertEquals(ImmutableList.of("c", "d"), slugs(diff.getCreates()));
+    assertEquals(ImmutableList.of("z", "y"), diff.getDeletes());
+    assertEquals(ImmutableList.of("a"), slugs(diff.getChanges()));
+  }
+
+  @Test
+  public void listDiffFindsStorageChanges() {
+    List<Map<String, Object>> from = assets(Asset.of("a", "a", "http://old/a.kml"));
+    List<Map<String, Object>> to = assets(Asset.of("a", "a", "http://new/a.kml"));
+
+    AssetDiff diff = AssetDiff.between(from, to);
+
+    assertEquals(ImmutableList.of("a"), slugs(diff.getChanges()));
+    assertEquals("http://new/a.kml", Asset.of(diff.getChanges().get(0)).getStorage());
+  }
+
+  @Test
+  public void listDiffComparesFirstCopyOfDuplicateSlugs() {
+    List<Map<String, Object>> from = assets(asset("a"), asset("a", "other"), asset("x"), asset("x"));
+    List<Map<String, Object>> to = assets(asset("a"), asset("b"), asset("a", "other"), asset("b"));
+
+    AssetDiff diff = AssetDiff.between(from, to);
+
+    assertEquals(ImmutableList.of("b"), slugs(diff.getCreates()));
+    assertEquals(ImmutableList.of("x"), diff.getDeletes());
+    assertTrue(diff.getChanges().isEmpty());
+  }
+
+  @Test
+  public void listDiffOfEqualListsIsEmpty() {
+    List<Map<String, Object>> assets = assets(asset("a"), asset("b"));
+
+    assertTrue(AssetDiff.between(assets, assets(asset("a"), asset("b"))).isEmpty());
+  }
+
+  private static Asset asset(String slug) {
+    return asset(slug, slug);
+  }
+
+  private static Asset asset(String slug, String title) {
+    return Asset.of(slug, title, "http://lg-head/" + slug + ".kml");
+  }
+
+  private static List<Map<String, Object>> assets(Asset... assets) {
+    return ImmutableList.<Map<String, Object>>copyOf(assets);
+  }
+
+  private static WindowState state(Asset... assets) {
+    return new WindowState("window", 1, assets(assets));
+  }
+
+  private static String hash(Map<String, Object> asset) {
+    return WindowState.contentHash(asset);
+  }
+
+  private static List<String> slugs(List<Map<String, Object>> assets) {
+    ImmutableList.Builder<String> slugs = ImmutableList.builder();
+    for (Map<String, Object> asset : assets) {
+      slugs.add(Asset.of(asset).getSlug());
+    }
+    return slugs.build();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import interactivespaces.service.web.server.HttpRequest;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+
+public class ContentCodingTest {
+  @Test
+  public void namedCodingTakesPrecedenceOverTheWildcard() {
+    assertTrue(ContentCoding.accepts(request("*;q=0, gzip"), "gzip"));
+    assertFalse(ContentCoding.accepts(request("*;q=0, gzip"), "deflate"));
+    assertFalse(ContentCoding.accepts(request("gzip;q=0, *"), "gzip"));
+    assertTrue(ContentCoding.accepts(request("gzip;q=0, *"), "deflate"));
+    assertEquals(ContentCoding.DEFLATE, ContentCoding.negotiate(request("gzip;q=0, *")));
+  }
+
+  @Test
+  public void wildcardAcceptsAnyCoding() {
+    assertTrue(ContentCoding.accepts(request("*"), "gzip"));
+    assertEquals(ContentCoding.GZIP, ContentCoding.negotiate(request("*")));
+    assertFalse(ContentCoding.accepts(request("*;q=0.0"), "gzip"));
+  }
+
+  @Test
+  public void noHeaderAcceptsNothing() {
+    assertFalse(ContentCoding.accepts(request(null), "gzip"));
+    assertNull(ContentCoding.negotiate(request(null)));
+  }
+
+  private static HttpRequest request(String acceptEncoding) {
+    final Set<String> header = acceptEncoding == null ? null : ImmutableSet.of(acceptEncoding);
+    return (HttpRequest) Proxy.newProxyInstance(HttpRequest.class.getClassLoader(),
+        new Class<?>[] { HttpRequest.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return method.getName().equals("getHeader") && "Accept-Encoding".equals(args[0]) ? header : null;
+          }
+        });
+  }
+}
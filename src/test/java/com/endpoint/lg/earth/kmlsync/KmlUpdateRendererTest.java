@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks {@link KmlUpdateRenderer} output byte for byte against the golden
+ * files in the golden resource directory, which were written by the renderer
+ * as it was before assets became {@link Asset} values. Markup, control
+ * characters, characters outside the BMP, and null fields are all covered.
+ */
+public class KmlUpdateRendererTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String TARGET_HREF = "http://lg-head:8765/kml/master.kml";
+
+  @Test
+  public void rendersUpdates() throws IOException {
+    assertGolden("render.kml", new KmlUpdateRenderer(TARGET_HREF).render(state(), clientSlugs(), clientHashes(), 5));
+    assertGolden("render-token.kml", new KmlUpdateRenderer(TARGET_HREF, null, true)
+        .render(state(), clientSlugs(), clientHashes(), 5));
+  }
+
+  @Test
+  public void rendersUnchangedResponses() throws IOException {
+    assertGolden("unchanged.kml", new KmlUpdateRenderer(TARGET_HREF).renderUnchanged(state(), 1));
+    assertGolden("unchanged-token.kml", new KmlUpdateRenderer(TARGET_HREF, null, true).renderUnchanged(state(), 1));
+  }
+
+  @Test
+  public void rendersResyncs() throws IOException {
+    assertGolden("resync.kml", new KmlUpdateRenderer(TARGET_HREF).renderResync(state(), 30));
+    assertGolden("resync-token.kml", new KmlUpdateRenderer(TARGET_HREF, null, true).renderResync(state(), 30));
+  }
+
+  @Test
+  public void rendersAnEmptyUpdate() throws IOException {
+    List<String> none = ImmutableList.of();
+    assertGolden("empty.kml", new KmlUpdateRenderer("http://h/m.kml").render(WindowState.empty("e"), none, none, 1));
+  }
+
+  @Test
+  public void rendersTheMasterDocument() throws IOException {
+    assertGolden("master.kml", KmlUpdateRenderer.renderMaster());
+  }
+
+  @Test
+  public void streamsWhatItBuffers() throws IOException {
+    KmlUpdateRenderer renderer = new KmlUpdateRenderer(TARGET_HREF);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    renderer.renderUnchanged(state(), 1, out);
+    assertGolden("unchanged.kml", out.toByteArray());
+
+    out.reset();
+    renderer.render(state(), AssetDiff.between(clientSlugs(), clientHashes(), state()), 5, out);
+    assertGolden("render.kml", out.toByteArray());
+  }
+
+  /**
+   * The Window the golden files were rendered from.
+   */
+  private static WindowState state() {
+    List<Map<String, Object>> assets = Lists.newArrayList();
+    assets.add(asset("kept", "Kept", "http://example.com/kept.kml"));
+    assets.add(asset("markup & \"quotes\" <x>", "Title <b>&amp;</b> 'q' \u0001\u001f end",
+        "http://example.com/q.kml?x=1&y=<2>"));
+    assets.add(asset("changed", "Changed 🌍 é€", "http://example.com/café.kml"));
+    assets.add(asset("nulls", null, null));
+    return new WindowState("w 1", 7, assets);
+  }
+
+  /**
+   * The client has "kept" as it is, an old "changed", and "gone <&>", which
+   * the Window no longer has.
+   */
+  private static List<String> clientSlugs() {
+    return ImmutableList.of("kept", "changed", "gone <&>");
+  }
+
+  private static List<String> clientHashes() {
+    return ImmutableList.of(state().getAssetHashes().get(0), "0", "1");
+  }
+
+  private static Asset asset(String slug, String title, String storage) {
+    return Asset.of(slug, title, storage);
+  }
+
+  private static void assertGolden(String name, RenderedUpdate update) throws IOException {
+    assertGolden(name, update.getBody());
+  }
+
+  private static void assertGolden(String name, byte[] actual) throws IOException {
+    InputStream in = KmlUpdateRendererTest.class.getResourceAsStream("golden/" + name);
+    try {
+      byte[] expected = ByteStreams.toByteArray(in);
+      // As Strings first, for a readable failure
+      assertEquals(name, new String(expected, UTF_8), new String(actual, UTF_8));
+      assertArrayEquals(name, expected, actual);
+    } finally {
+      in.close();
+    }
+  }
+}
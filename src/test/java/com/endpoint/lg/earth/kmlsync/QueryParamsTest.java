@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+
+/**
+ * Tests for {@link QueryParams}.
+ */
+public class QueryParamsTest {
+  /**
+   * Values with every kind of character that needs escaping: reserved
+   * characters, spaces, two and three byte UTF-8, and a surrogate pair.
+   */
+  static final ImmutableList<String> AWKWARD_VALUES = ImmutableList.of(
+      "plain", "", "a b+c", "x=y&z", "100%", "%zz", "café", "世界", "🌍 earth",
+      "http://lg-head/kml/a.kml?x=1&y=2#frag", "]]>", "\t\n");
+
+  @Test
+  public void decodesWhatUrlEncoderEncodes() throws Exception {
+    for (String value : AWKWARD_VALUES) {
+      ArrayListMultimap<String, String> params = QueryParams.parse("v=" + URLEncoder.encode(value, "UTF-8"));
+      assertEquals(ImmutableList.of(value), params.get("v"));
+    }
+  }
+
+  @Test
+  public void keepsRepeatedParametersInOrder() {
+    ArrayListMultimap<String, String> params = QueryParams.parse("a=1&b=2&a=3&&a=");
+
+    assertEquals(ImmutableList.of("1", "3", ""), params.get("a"));
+    assertEquals(ImmutableList.of("2"), params.get("b"));
+  }
+
+  @Test
+  public void parametersWithoutValuesAreEmpty() {
+    ArrayListMultimap<String, String> params = QueryParams.parse("flag& spaced =x");
+
+    assertEquals(ImmutableList.of(""), params.get("flag"));
+    assertEquals(ImmutableList.of("x"), params.get("spaced"));
+  }
+
+  @Test
+  public void nullQueryHasNoParameters() {
+    assertTrue(QueryParams.parse(null).isEmpty());
+  }
+
+  @Test
+  public void malformedEscapesAreKept() {
+    assertEquals(ImmutableList.of("%4"), QueryParams.parse("v=%4").get("v"));
+    assertEquals(ImmutableList.of("%g1x"), QueryParams.parse("v=%g1x").get("v"));
+  }
+
+  @Test
+  public void malformedUtf8BecomesReplacementCharacter() {
+    assertEquals(ImmutableList.of("�a"), QueryParams.parse("v=%C3a").get("v"));
+    assertEquals(ImmutableList.of("�"), QueryParams.parse("v=%FF").get("v"));
+    assertEquals(ImmutableList.of("�"), QueryParams.parse("v=%E4%B8").get("v"));
+  }
+}
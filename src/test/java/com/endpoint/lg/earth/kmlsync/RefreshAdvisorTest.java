@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RefreshAdvisor}.
+ */
+public class RefreshAdvisorTest {
+  @Test
+  public void zeroBackoffCountsAsAMillisecond() throws InterruptedException {
+    RefreshAdvisor advisor = new RefreshAdvisor(30, 0);
+    Thread.sleep(40);
+
+    assertEquals(30, advisor.getMinRefreshPeriod("window"));
+  }
+
+  @Test
+  public void changedWindowsPollEverySecond() {
+    RefreshAdvisor advisor = new RefreshAdvisor(30, 60000);
+    advisor.onWindowsChanged(ImmutableMap.of("window", WindowState.empty("window")));
+    advisor.touch("other");
+
+    assertEquals(RefreshAdvisor.MIN_REFRESH_PERIOD, advisor.getMinRefreshPeriod("window"));
+    assertEquals(RefreshAdvisor.MIN_REFRESH_PERIOD, advisor.getMinRefreshPeriod("other"));
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SceneIngester}.
+ */
+public class SceneIngesterTest {
+  /**
+   * Runs queued tasks only when told to, on the test's thread.
+   */
+  private static final class ManualExecutor extends AbstractExecutorService {
+    private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+    @Override
+    public void execute(Runnable task) {
+      queue.add(task);
+    }
+
+    /**
+     * Runs the next queued task, waiting for one to be queued.
+     */
+    void runNext() throws InterruptedException {
+      queue.take().run();
+    }
+
+    int queued() {
+      return queue.size();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return Lists.newArrayList(queue);
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+
+  private WindowAssetStore store;
+  private CountDownLatch release;
+  private CountDownLatch parsing;
+  private SceneIngester.SceneParser parser;
+  private SceneIngester ingester;
+
+  @Before
+  public void setUp() {
+    store = new WindowAssetStore();
+    release = new CountDownLatch(1);
+    parsing = new CountDownLatch(1);
+    parser = new SceneIngester.SceneParser() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public Map<String, List<Map<String, Object>>> parse(Map<String, Object> message) {
+        if (message.containsKey("block")) {
+          parsing.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        Map<String, List<Map<String, Object>>> scene = Maps.newHashMap();
+        List<Map<String, Object>> assets = Lists.newArrayList();
+        for (String slug : (List<String>) message.get("assets")) {
+          assets.add(Asset.of(slug, slug, slug));
+        }
+        scene.put("w", assets);
+        return scene;
+      }
+    };
+    ingester = new SceneIngester(store, parser, new NoOpLog());
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    ingester.shutdown();
+  }
+
+  @Test
+  public void commandWaitsForEarlierScene() throws Exception {
+    ingester.submit(scene(true, "a"));
+    parsing.await();
+
+    Thread command = runInBackground(add("c"));
+    awaitParked(command);
+    assertEquals(ImmutableList.of(), store.get("w").getAssetSlugs());
+
+    release.countDown();
+    command.join();
+    assertEquals(ImmutableList.of("a", "c"), store.get("w").getAssetSlugs());
+  }
+
+  @Test
+  public void laterSceneReplacesCommandEvenWhileEarlierSceneWaits() throws Exception {
+    ingester.submit(scene(true, "x"));
+    parsing.await();
+    ingester.submit(scene(false, "a"));
+
+    Thread command = runInBackground(add("c"));
+    awaitParked(command);
+    ingester.submit(scene(false, "b"));
+
+    release.countDown();
+    command.join();
+    ingester.shutdown();
+    assertEquals(ImmutableList.of("b"), store.get("w").getAssetSlugs());
+    assertEquals(3, ingester.getApplied());
+    assertEquals(0, ingester.getSkipped());
+  }
+
+  @Test
+  public void waitingScenesAreCoalesced() throws Exception {
+    ingester.submit(scene(true, "x"));
+    parsing.await();
+    ingester.submit(scene(false, "a"));
+    ingester.submit(scene(false, "b"));
+
+    release.countDown();
+    ingester.shutdown();
+    assertEquals(ImmutableList.of("b"), store.get("w").getAssetSlugs());
+    assertEquals(2, ingester.getApplied());
+    assertEquals(1, ingester.getSkipped());
+  }
+
+  @Test
+  public void afterShutdownScenesAreDroppedAndCommandsRunInline() throws Exception {
+    ingester.shutdown();
+
+    ingester.submit(scene(false, "a"));
+    ingester.submit(scene(false, "b"));
+    ingester.applyInOrder(add("c"));
+
+    assertEquals(0, ingester.getApplied());
+    assertEquals(0, ingester.getSkipped());
+    assertEquals(ImmutableList.of("c"), store.get("w").getAssetSlugs());
+  }
+
+  @Test
+  public void drainLeavesASceneThatArrivedAfterACommand() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    ingester = new SceneIngester(store, parser, new NoOpLog(), executor);
+
+    // Queued in order: the first scene's drain, the command, which takes
+    // that scene, and the second scene's drain.
+    ingester.submit(scene(false, "a"));
+    Thread command = runInBackground(add("c"));
+    awaitQueued(executor, 2);
+    ingester.submit(scene(false, "b"));
+
+    executor.runNext();
+    assertEquals(ImmutableList.of(), store.get("w").getAssetSlugs());
+    executor.runNext();
+    command.join();
+    assertEquals(ImmutableList.of("a", "c"), store.get("w").getAssetSlugs());
+    executor.runNext();
+    assertEquals(ImmutableList.of("b"), store.get("w").getAssetSlugs());
+    assertEquals(2, ingester.getApplied());
+  }
+
+  @Test
+  public void commandAfterADrainOnlyRunsTheCommand() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    ingester = new SceneIngester(store, parser, new NoOpLog(), executor);
+
+    ingester.submit(scene(false, "a"));
+    executor.runNext();
+    Thread command = runInBackground(add("c"));
+    awaitQueued(executor, 1);
+    ingester.submit(scene(false, "b"));
+
+    executor.runNext();
+    command.join();
+    assertEquals(ImmutableList.of("a", "c"), store.get("w").getAssetSlugs());
+    executor.runNext();
+    assertEquals(ImmutableList.of("b"), store.get("w").getAssetSlugs());
+    assertEquals(0, executor.queued());
+  }
+
+  @Test
+  public void commandTakesTheLatestOfSeveralWaitingScenes() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    ingester = new SceneIngester(store, parser, new NoOpLog(), executor);
+
+    ingester.submit(scene(false, "a"));
+    ingester.submit(scene(false, "b"));
+    Thread command = runInBackground(add("c"));
+    awaitQueued(executor, 3);
+
+    executor.runNext();
+    executor.runNext();
+    assertEquals(ImmutableList.of(), store.get("w").getAssetSlugs());
+    executor.runNext();
+    command.join();
+    assertEquals(ImmutableList.of("b", "c"), store.get("w").getAssetSlugs());
+    assertEquals(1, ingester.getApplied());
+    assertEquals(1, ingester.getSkipped());
+  }
+
+  private static Map<String, Object> scene(boolean block, String... slugs) {
+    Map<String, Object> message = Maps.newHashMap();
+    message.put("assets", ImmutableList.copyOf(slugs));
+    if (block) {
+      message.put("block", true);
+    }
+    return message;
+  }
+
+  private Callable<WindowState> add(final String slug) {
+    return new Callable<WindowState>() {
+      @Override
+      public WindowState call() {
+        return store.add("w", ImmutableMap.<String, Object>of("slug", slug, "title", slug, "storage", slug));
+      }
+    };
+  }
+
+  private Thread runInBackground(final Callable<WindowState> command) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ingester.applyInOrder(command);
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  private static void awaitQueued(ManualExecutor executor, int tasks) throws InterruptedException {
+    while (executor.queued() < tasks) {
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Waits for a thread to block waiting on its command.
+   */
+  private static void awaitParked(Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+  }
+}
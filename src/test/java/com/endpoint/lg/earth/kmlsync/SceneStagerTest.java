@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static com.endpoint.lg.earth.kmlsync.KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import interactivespaces.service.web.server.HttpRequest;
+import interactivespaces.service.web.server.HttpResponse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link SceneStager}, polling the scenes it activates through a
+ * {@link KmlUpdateRequestHandler}.
+ */
+public class SceneStagerTest {
+  private final WindowAssetStore store = new WindowAssetStore();
+  private final UpdateResponseCache cache = new UpdateResponseCache(64);
+  private KmlUpdateRenderer renderer;
+  private KmlUpdateRequestHandler handler;
+  private SceneStager stager;
+
+  @After
+  public void tearDown() {
+    if (stager != null) {
+      stager.shutdown();
+    }
+  }
+
+  @Test
+  public void tokenWindowsStayInSyncAfterActivation() {
+    WindowHistory history = new WindowHistory(8);
+    store.addListener(history);
+    start(true, new KmlUpdateRequestHandler.Options().windowHistory(history));
+    store.add("w", Asset.of("before", "Before", "http://example.com/before.kml"));
+    String cookie = UpdateQueryTest.cookie(poll("w", ""));
+
+    stageAndActivate(scene("w", "after"));
+
+    // The first poll after the change gets it, and every poll after that is
+    // told it's up to date, with the same token.
+    String changed = UpdateQueryTest.cookie(poll("w", cookie));
+    byte[] unchanged = poll("w", changed);
+    assertArrayEquals(renderer.renderUnchanged(store.get("w"), DEFAULT_MIN_REFRESH_PERIOD).getBody(),
+        unchanged);
+    assertEquals(changed, UpdateQueryTest.cookie(unchanged));
+    assertArrayEquals(unchanged, poll("w", changed));
+    assertEquals(0, stager.getPrerenderedHits());
+  }
+
+  @Test
+  public void slugWindowsGetThePrerenderedUpdate() {
+    start(false, new KmlUpdateRequestHandler.Options());
+    store.add("w", Asset.of("before", "Before", "http://example.com/before.kml"));
+    WindowState before = store.get("w");
+    String cookie = UpdateQueryTest.cookie(poll("w", ""));
+
+    stageAndActivate(scene("w", "after"));
+
+    assertEquals(1, stager.getPrerenderedHits());
+    WindowState state = store.get("w");
+    RenderedUpdate update = renderer.render(state, before.getAssetSlugs(), before.getAssetHashes(),
+        DEFAULT_MIN_REFRESH_PERIOD);
+    assertArrayEquals(update.getBody(), poll("w", cookie));
+    RenderedUpdate unchanged = renderer.renderUnchanged(state, DEFAULT_MIN_REFRESH_PERIOD);
+    assertArrayEquals(unchanged.getBody(), poll("w", UpdateQueryTest.cookie(unchanged)));
+  }
+
+  @Test
+  public void activationLandsAfterAnEarlierDirectorScene() throws Exception {
+    start(false, new KmlUpdateRequestHandler.Options());
+    final CountDownLatch parsing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final SceneIngester ingester = new SceneIngester(store, new SceneIngester.SceneParser() {
+      @Override
+      public Map<String, List<Map<String, Object>>> parse(Map<String, Object> message) throws IOException {
+        parsing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return windows(message);
+      }
+    }, new NoOpLog());
+    try {
+      ingester.submit(scene("w", "director"));
+      parsing.await();
+      stager.stage("scene", scene("w", "staged"));
+      Thread activation = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          stager.activate("scene", ingester);
+        }
+      });
+      activation.start();
+      while (activation.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+      assertEquals(ImmutableList.of(), store.get("w").getAssetSlugs());
+
+      release.countDown();
+      activation.join();
+      assertEquals(ImmutableList.of("staged"), store.get("w").getAssetSlugs());
+      assertEquals(1, stager.getActivated());
+    } finally {
+      release.countDown();
+      ingester.shutdown();
+    }
+  }
+
+  private void start(boolean tokenCookies, KmlUpdateRequestHandler.Options options) {
+    renderer = new KmlUpdateRenderer("http://localhost/master.kml", null, tokenCookies);
+    store.addListener(cache);
+    handler = new KmlUpdateRequestHandler(store, renderer, cache, new KmlSyncMetrics(),
+        new SyncLog(new NoOpLog()), options);
+    stager = new SceneStager(store, renderer, cache, new SceneIngester.SceneParser() {
+      @Override
+      public Map<String, List<Map<String, Object>>> parse(Map<String, Object> message) {
+        return windows(message);
+      }
+    }, 4, new NoOpLog());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, List<Map<String, Object>>> windows(Map<String, Object> scene) {
+    return (Map<String, List<Map<String, Object>>>) scene.get("windows");
+  }
+
+  /**
+   * Stages and activates a scene, and waits for the stager to finish.
+   */
+  private void stageAndActivate(Map<String, Object> scene) {
+    stager.stage("scene", scene);
+    stager.activate("scene");
+    stager.shutdown();
+  }
+
+  private static Map<String, Object> scene(String windowSlug, String assetSlug) {
+    List<Map<String, Object>> assets = ImmutableList.<Map<String, Object>>of(
+        Asset.of(assetSlug, assetSlug, "http://example.com/" + assetSlug + ".kml"));
+    return ImmutableMap.<String, Object>of("windows", ImmutableMap.of(windowSlug, assets));
+  }
+
+  /**
+   * Polls as a Window sending back the given cookie, and returns the body.
+   */
+  private byte[] poll(String windowSlug, String cookie) {
+    final URI uri = URI.create("http://localhost/kml/update.kml?window_slug=" + windowSlug
+        + (cookie.isEmpty() ? "" : "&" + cookie));
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpRequest request = proxy(HttpRequest.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("getUri") ? uri : null;
+      }
+    });
+    HttpResponse response = proxy(HttpResponse.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("getOutputStream") ? body : null;
+      }
+    });
+    handler.handle(request, response);
+    return body.toByteArray();
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+  }
+}
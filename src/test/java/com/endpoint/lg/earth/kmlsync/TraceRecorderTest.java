@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link TraceRecorder}, reading what it writes back with
+ * {@link TraceReader}.
+ */
+public class TraceRecorderTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsBackEveryKindOfEvent() throws IOException {
+    Map<String, Object> scene = Maps.newHashMap();
+    scene.put("null", null);
+    scene.put("yes", true);
+    scene.put("no", false);
+    scene.put("int", 42);
+    scene.put("negative", -7L);
+    scene.put("max", Long.MAX_VALUE);
+    scene.put("min", Long.MIN_VALUE);
+    scene.put("double", 2.5);
+    scene.put("string", "café 🌍 & <x>");
+    scene.put("list", Arrays.asList(1, "two", null));
+    Map<String, Object> nested = Maps.newHashMap();
+    nested.put("empty", ImmutableList.of());
+    scene.put("map", nested);
+    Map<String, Object> command = Maps.newHashMap();
+    command.put("type", "kmlsync.scene.activate");
+
+    long before = System.currentTimeMillis();
+    TraceRecorder recorder = start(16);
+    recorder.recordScene(scene);
+    recorder.recordCommand(command);
+    recorder.recordPoll("window_slug=w&asset_slug=a%20b");
+    recorder.recordPoll(null);
+    recorder.shutdown();
+
+    TraceReader reader = new TraceReader(recorder.getFile());
+    try {
+      assertTrue(reader.getStartMillis() >= before && reader.getStartMillis() <= System.currentTimeMillis());
+
+      TraceReader.Event event = reader.next();
+      assertEquals(TraceReader.Type.SCENE, event.getType());
+      Map<String, Object> expected = Maps.newHashMap(scene);
+      // Integers come back as Longs
+      expected.put("int", 42L);
+      expected.put("list", Arrays.asList(1L, "two", null));
+      assertEquals(expected, event.getMessage());
+      assertNull(event.getQuery());
+      long micros = event.getMicros();
+
+      event = reader.next();
+      assertEquals(TraceReader.Type.COMMAND, event.getType());
+      assertEquals(command, event.getMessage());
+      assertTrue(event.getMicros() >= micros);
+
+      event = reader.next();
+      assertEquals(TraceReader.Type.POLL, event.getType());
+      assertEquals("window_slug=w&asset_slug=a%20b", event.getQuery());
+      assertNull(event.getMessage());
+      assertEquals("", reader.next().getQuery());
+      assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void queryTableStartsOverWhenFull() throws IOException {
+    List<String> queries = Lists.newArrayList();
+    for (int i = 0; i < TraceRecorder.QUERY_TABLE_SIZE + 10; i++) {
+      queries.add("window_slug=w&n=" + i);
+    }
+    // Repeats from after the table started over, and from before it
+    queries.add("window_slug=w&n=" + (TraceRecorder.QUERY_TABLE_SIZE + 5));
+    queries.add("window_slug=w&n=" + TraceRecorder.QUERY_TABLE_SIZE);
+    queries.add("window_slug=w&n=0");
+    queries.add("window_slug=w&n=" + (TraceRecorder.QUERY_TABLE_SIZE - 1));
+    queries.add("window_slug=w&n=0");
+
+    TraceRecorder recorder = start(queries.size());
+    for (String query : queries) {
+      recorder.recordPoll(query);
+    }
+    recorder.shutdown();
+    assertEquals(0, recorder.getDropped());
+
+    assertEquals(queries, readQueries(recorder.getFile()));
+  }
+
+  @Test
+  public void repeatedQueriesAreWrittenOnce() throws IOException {
+    String query = "window_slug=w&state_token=" + Long.MAX_VALUE + "." + Long.MAX_VALUE;
+    TraceRecorder recorder = start(1000);
+    for (int i = 0; i < 1000; i++) {
+      recorder.recordPoll(query);
+    }
+    recorder.shutdown();
+
+    // A header, the query once, and a few bytes per poll after that
+    assertTrue(recorder.getFile().length() < 12 + query.length() + 1000 * 8);
+    assertEquals(1000, readQueries(recorder.getFile()).size());
+  }
+
+  @Test
+  public void readsUpToTheLastWholeEvent() throws IOException {
+    Map<String, Object> command = Maps.newHashMap();
+    command.put("type", "kmlsync.scene.clear_staged");
+    TraceRecorder recorder = start(16);
+    recorder.recordPoll("window_slug=w");
+    recorder.recordCommand(command);
+    recorder.shutdown();
+
+    RandomAccessFile file = new RandomAccessFile(recorder.getFile(), "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+
+    assertEquals(ImmutableList.of("window_slug=w"), readQueries(recorder.getFile()));
+  }
+
+  private TraceRecorder start(int queueSize) throws IOException {
+    TraceRecorder recorder = new TraceRecorder(new File(folder.getRoot(), "traces/test.trace"), queueSize,
+        new NoOpLog());
+    recorder.start();
+    return recorder;
+  }
+
+  /**
+   * Every poll's query in a trace, in order; other events are skipped.
+   */
+  private static List<String> readQueries(File file) throws IOException {
+    List<String> queries = Lists.newArrayList();
+    TraceReader reader = new TraceReader(file);
+    try {
+      TraceReader.Event event;
+      while ((event = reader.next()) != null) {
+        if (event.getType() == TraceReader.Type.POLL) {
+          queries.add(event.getQuery());
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return queries;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static com.endpoint.lg.earth.kmlsync.KmlUpdateRenderer.DEFAULT_MIN_REFRESH_PERIOD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link UpdateQuery}.
+ */
+public class UpdateQueryTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Test
+  public void readsBackTheCookieTheRendererWrites() {
+    WindowState state = state("w", QueryParamsTest.AWKWARD_VALUES);
+    String cookie = cookie(new KmlUpdateRenderer("http://localhost/master.kml")
+        .renderUnchanged(state, DEFAULT_MIN_REFRESH_PERIOD));
+
+    UpdateQuery query = UpdateQuery.parse("window_slug=w&" + cookie);
+    try {
+      assertEquals("w", query.getWindowSlug());
+      assertEquals(state.getAssetSlugs(), query.resolveAssetSlugs(state));
+      assertEquals(state.getAssetHashes(), query.getAssetHashes());
+      assertTrue(state.isLoadedBy(WindowState.fingerprint(query.resolveAssetSlugs(state), query.getAssetHashes()),
+          query.resolveAssetSlugs(state), query.getAssetHashes()));
+    } finally {
+      query.release();
+    }
+  }
+
+  @Test
+  public void decodesWhatUrlEncoderEncodes() throws Exception {
+    WindowState empty = WindowState.empty("w");
+    StringBuilder raw = new StringBuilder("window_slug=").append(URLEncoder.encode("café w", "UTF-8"));
+    for (String value : QueryParamsTest.AWKWARD_VALUES) {
+      raw.append("&asset_slug=").append(URLEncoder.encode(value, "UTF-8"));
+    }
+
+    UpdateQuery query = UpdateQuery.parse(raw.toString());
+    try {
+      assertEquals("café w", query.getWindowSlug());
+      assertEquals(QueryParamsTest.AWKWARD_VALUES, query.resolveAssetSlugs(empty));
+    } finally {
+      query.release();
+    }
+  }
+
+  @Test
+  public void agreesWithQueryParams() throws Exception {
+    String raw = "asset_slug=a%20b&window_slug=one&asset_slug=%E2%82%AC&window_slug=two&asset_slug=%zz"
+        + "&asset_slug=%C3&other=1";
+
+    UpdateQuery query = UpdateQuery.parse(raw);
+    try {
+      assertEquals(QueryParams.parse(raw).get("window_slug").get(0), query.getWindowSlug());
+      assertEquals(QueryParams.parse(raw).get("asset_slug"), query.resolveAssetSlugs(WindowState.empty("one")));
+    } finally {
+      query.release();
+    }
+  }
+
+  @Test
+  public void resolvesKnownSlugsAndHashesToTheStatesStrings() {
+    WindowState state = state("w", ImmutableList.of("a", "b c"));
+    String raw = "window_slug=w&asset_slug=b+c&asset_hash=" + state.getAssetHashes().get(1)
+        + "&asset_slug=gone&asset_hash=00000000";
+
+    UpdateQuery query = UpdateQuery.parse(raw);
+    try {
+      List<String> slugs = query.resolveAssetSlugs(state);
+      assertEquals(ImmutableList.of("b c", "gone"), slugs);
+      assertSame(state.getAssetSlugs().get(1), slugs.get(0));
+      assertSame(state.getAssetHashes().get(1), query.getAssetHashes().get(0));
+      assertEquals("00000000", query.getAssetHashes().get(1));
+    } finally {
+      query.release();
+    }
+  }
+
+  @Test
+  public void ignoresHashesUnlessThereIsOneForEverySlug() {
+    UpdateQuery query = UpdateQuery.parse("window_slug=w&asset_slug=a&asset_slug=b&asset_hash=00000000");
+    try {
+      assertEquals(ImmutableList.of("a", "b"), query.resolveAssetSlugs(WindowState.empty("w")));
+      assertTrue(query.getAssetHashes().isEmpty());
+    } finally {
+      query.release();
+    }
+  }
+
+  @Test
+  public void readsStateTokens() {
+    UpdateQuery query = UpdateQuery.parse("window_slug=w&state_token=42.00ff&state_token=1.1");
+    try {
+      assertTrue(query.hasStateToken());
+      assertEquals(42, query.getStateTokenVersion());
+      assertEquals(0xff, query.getStateTokenFingerprint());
+    } finally {
+      query.release();
+    }
+
+    for (String bad : new String[] { "", "42", "42.", ".ff", "x.ff", "42.fg", "1.00000000000000000" }) {
+      query = UpdateQuery.parse("window_slug=w&state_token=" + bad);
+      try {
+        assertTrue(query.hasStateToken());
+        assertEquals(bad, -1, query.getStateTokenVersion());
+      } finally {
+        query.release();
+      }
+    }
+  }
+
+  @Test
+  public void missingWindowSlugIsNull() {
+    UpdateQuery query = UpdateQuery.parse("asset_slug=a");
+    try {
+      assertNull(query.getWindowSlug());
+      assertFalse(query.hasStateToken());
+    } finally {
+      query.release();
+    }
+  }
+
+  @Test
+  public void pooledQueryForgetsThePreviousRequest() {
+    UpdateQuery first = UpdateQuery.parse("window_slug=w&asset_slug=a&state_token=1.1");
+    first.release();
+
+    UpdateQuery second = UpdateQuery.parse("window_slug=v");
+    try {
+      assertSame(first, second);
+      assertEquals("v", second.getWindowSlug());
+      assertFalse(second.hasStateToken());
+      assertEquals(Collections.<String>emptyList(), second.resolveAssetSlugs(WindowState.empty("v")));
+    } finally {
+      second.release();
+    }
+  }
+
+  @Test
+  public void nestedParseGetsItsOwnQuery() {
+    UpdateQuery outer = UpdateQuery.parse("window_slug=outer");
+    try {
+      UpdateQuery inner = UpdateQuery.parse("window_slug=inner");
+      inner.release();
+      assertEquals("outer", outer.getWindowSlug());
+    } finally {
+      outer.release();
+    }
+  }
+
+  static WindowState state(String windowSlug, List<String> slugs) {
+    List<Map<String, Object>> assets = Lists.newArrayList();
+    for (String slug : slugs) {
+      assets.add(Asset.of(slug, "title of " + slug, "http://lg-head/" + slug));
+    }
+    return new WindowState(windowSlug, 1, assets);
+  }
+
+  /**
+   * The query string in a rendered document's cookie.
+   */
+  static String cookie(RenderedUpdate update) {
+    return cookie(update.getBody());
+  }
+
+  static String cookie(byte[] kml) {
+    String body = new String(kml, UTF_8);
+    int start = body.indexOf("<![CDATA[") + "<![CDATA[".length();
+    return body.substring(start, body.indexOf("]]>", start));
+  }
+}
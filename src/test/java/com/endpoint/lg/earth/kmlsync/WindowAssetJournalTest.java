@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link WindowAssetJournal}: each test saves a store's changes,
+ * then restores them into a new store as a restarted activity would.
+ */
+public class WindowAssetJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void restoresEveryKindOfChange() throws IOException {
+    File directory = folder.getRoot();
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    assertEquals(0, journal.restore(store));
+
+    store.add("left", asset("a"));
+    store.add("left", asset("b"));
+    store.add("left", asset("c"));
+    store.delete("left", "b");
+    store.replaceScene(ImmutableMap.<String, List<Map<String, Object>>>of(
+        "center", ImmutableList.<Map<String, Object>>of(asset("x"), asset("y"))));
+    store.add("center", asset("z"));
+    store.add("right", Asset.of("n", null, "http://lg-head/n.kml"));
+    journal.shutdown();
+
+    WindowAssetStore restored = restore(directory, 1000);
+    assertEquals(store.getWindows().keySet(), restored.getWindows().keySet());
+    for (WindowState state : store.getWindows().values()) {
+      WindowState copy = restored.get(state.getWindowSlug());
+      assertEquals(state.getVersion(), copy.getVersion());
+      assertEquals(state.getAssets(), copy.getAssets());
+    }
+    assertEquals(ImmutableList.of(), restored.get("left").getAssetSlugs());
+    assertEquals(ImmutableList.of("x", "y", "z"), restored.get("center").getAssetSlugs());
+    assertNull(Asset.of(restored.get("right").getAssets().get(0)).getTitle());
+  }
+
+  @Test
+  public void versionsContinuePastRestoredOnes() throws IOException {
+    File directory = folder.getRoot();
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    journal.restore(store);
+    store.add("w", asset("a"));
+    store.add("w", asset("b"));
+    long version = store.getVersion("w");
+    journal.shutdown();
+
+    WindowAssetStore restored = restore(directory, 1000);
+    restored.add("v", asset("c"));
+    assertTrue(restored.getVersion("v") > version);
+  }
+
+  @Test
+  public void tornLastRecordIsDroppedAndJournalCarriesOn() throws IOException {
+    File directory = folder.getRoot();
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    journal.restore(store);
+    store.add("w", asset("a"));
+    store.add("w", asset("b"));
+    store.add("w", asset("c"));
+    journal.shutdown();
+
+    // A crash partway through writing the last record
+    File journalFile = new File(directory, WindowAssetJournal.JOURNAL_FILE);
+    truncate(journalFile, journalFile.length() - 5);
+
+    WindowAssetStore restored = new WindowAssetStore();
+    journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    journal.restore(restored);
+    assertEquals(ImmutableList.of("a", "b"), restored.get("w").getAssetSlugs());
+
+    // The torn bytes are cut off, so records written now are read back
+    restored.add("w", asset("d"));
+    journal.shutdown();
+    assertEquals(ImmutableList.of("a", "b", "d"), restore(directory, 1000).get("w").getAssetSlugs());
+  }
+
+  @Test
+  public void corruptRecordDropsItAndEverythingAfter() throws IOException {
+    File directory = folder.getRoot();
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    journal.restore(store);
+    store.add("w", asset("a"));
+    long afterFirst = waitForRecord(new File(directory, WindowAssetJournal.JOURNAL_FILE));
+    store.add("w", asset("b"));
+    store.add("v", asset("c"));
+    journal.shutdown();
+
+    // Flip a byte in the second record's body, so its CRC no longer matches
+    flip(new File(directory, WindowAssetJournal.JOURNAL_FILE), afterFirst + 12);
+
+    WindowAssetStore restored = restore(directory, 1000);
+    assertEquals(ImmutableList.of("a"), restored.get("w").getAssetSlugs());
+    assertTrue(restored.get("v").isEmpty());
+  }
+
+  @Test
+  public void compactsIntoSnapshot() throws IOException {
+    File directory = folder.getRoot();
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 3, new NoOpLog());
+    journal.restore(store);
+    for (int i = 0; i < 20; i++) {
+      store.add("w" + (i % 4), asset("a" + i));
+      if (i % 5 == 4) {
+        store.delete("w0", "a0");
+      }
+    }
+    journal.shutdown();
+
+    File journalFile = new File(directory, WindowAssetJournal.JOURNAL_FILE);
+    assertTrue(new File(directory, WindowAssetJournal.SNAPSHOT_FILE).exists());
+    assertTrue(countRecords(journalFile) < 3);
+
+    WindowAssetStore restored = restore(directory, 3);
+    for (WindowState state : store.getWindows().values()) {
+      assertEquals(state.getAssets(), restored.get(state.getWindowSlug()).getAssets());
+      assertEquals(state.getVersion(), restored.get(state.getWindowSlug()).getVersion());
+    }
+  }
+
+  @Test
+  public void staleJournalAfterSnapshotIsSkipped() throws IOException {
+    File directory = folder.getRoot();
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    journal.restore(store);
+    store.add("w", asset("a"));
+    store.add("w", asset("b"));
+    store.add("v", asset("c"));
+    journal.shutdown();
+    File journalFile = new File(directory, WindowAssetJournal.JOURNAL_FILE);
+    byte[] staleJournal = Files.toByteArray(journalFile);
+
+    // Compact on the next change, then put the old journal back, as a crash
+    // between writing the snapshot and emptying the journal would leave it
+    WindowAssetStore next = new WindowAssetStore();
+    journal = new WindowAssetJournal(directory, 1, new NoOpLog());
+    journal.restore(next);
+    next.delete("w", "a");
+    next.clear("v");
+    journal.shutdown();
+    Files.write(staleJournal, journalFile);
+
+    WindowAssetStore restored = restore(directory, 1000);
+    assertEquals(ImmutableList.of("b"), restored.get("w").getAssetSlugs());
+    assertEquals(next.getVersion("w"), restored.getVersion("w"));
+    assertTrue(restored.get("v").isEmpty());
+  }
+
+  @Test
+  public void ignoresFilesThatArentSavedState() throws IOException {
+    File directory = folder.getRoot();
+    Files.write("not a journal".getBytes("UTF-8"), new File(directory, WindowAssetJournal.JOURNAL_FILE));
+    Files.write(new byte[0], new File(directory, WindowAssetJournal.SNAPSHOT_FILE));
+
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, 1000, new NoOpLog());
+    assertEquals(0, journal.restore(store));
+    store.add("w", asset("a"));
+    journal.shutdown();
+
+    assertEquals(ImmutableList.of("a"), restore(directory, 1000).get("w").getAssetSlugs());
+  }
+
+  private static WindowAssetStore restore(File directory, int compactRecords) {
+    WindowAssetStore store = new WindowAssetStore();
+    WindowAssetJournal journal = new WindowAssetJournal(directory, compactRecords, new NoOpLog());
+    journal.restore(store);
+    journal.shutdown();
+    return store;
+  }
+
+  private static Asset asset(String slug) {
+    return Asset.of(slug, "title of " + slug, "http://lg-head/" + slug + ".kml");
+  }
+
+  /**
+   * Waits for the journal thread to write the change just made, and returns
+   * the journal's length.
+   */
+  private static long waitForRecord(File file) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (file.length() <= 4 && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+    return file.length();
+  }
+
+  /**
+   * Counts the framed records after the magic number.
+   */
+  private static int countRecords(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      int records = 0;
+      long position = 4;
+      while (position + 8 <= in.length()) {
+        in.seek(position);
+        position += 8 + in.readInt();
+        records++;
+      }
+      return records;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(length);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void flip(File file, long position) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.seek(position);
+      int b = out.read();
+      out.seek(position);
+      out.write(b ^ 0xff);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 End Point Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.endpoint.lg.earth.kmlsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.endpoint.lg.support.message.MessageWrapper;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link WindowReplicator}, with several nodes in one JVM joined by
+ * an in-memory transport that holds each message until it's delivered.
+ */
+public class WindowReplicatorTest {
+  private final List<Node> nodes = Lists.newArrayList();
+
+  @After
+  public void tearDown() {
+    for (Node node : nodes) {
+      node.replicator.shutdown();
+    }
+  }
+
+  @Test
+  public void nodesConverge() throws InterruptedException {
+    Node a = start("node-a");
+    Node b = start("node-b");
+    deliverAll();
+
+    a.store.add("left", asset("x"));
+    b.store.add("right", asset("y"));
+    deliverAll();
+    assertSameWindows(a, b);
+
+    b.store.add("left", asset("z"));
+    a.store.delete("right", "y");
+    deliverAll();
+
+    assertSameWindows(a, b);
+    assertEquals(ImmutableList.of("x", "z"), a.store.get("left").getAssetSlugs());
+    assertTrue(a.store.get("right").isEmpty());
+  }
+
+  @Test
+  public void equalVersionsGoToTheLaterNode() throws InterruptedException {
+    Node a = start("node-a");
+    Node b = start("node-b");
+    deliverAll();
+
+    a.store.add("w", asset("from-a"));
+    b.store.add("w", asset("from-b"));
+    assertEquals(a.store.getVersion("w"), b.store.getVersion("w"));
+    deliverAll();
+
+    assertSameWindows(a, b);
+    assertEquals(ImmutableList.of("from-b"), a.store.get("w").getAssetSlugs());
+  }
+
+  @Test
+  public void duplicateAndStaleDeltasAreIgnored() throws InterruptedException {
+    Node a = start("node-a");
+    Node b = start("node-b");
+    deliverAll();
+
+    a.store.add("w", asset("first"));
+    Map<String, Object> first = a.take();
+    a.store.add("w", asset("second"));
+    Map<String, Object> second = a.take();
+
+    b.replicator.receive(second);
+    b.replicator.receive(second);
+    b.replicator.receive(first);
+
+    assertEquals(1, b.replicator.getApplied());
+    assertEquals(2, b.replicator.getStale());
+    assertEquals(ImmutableList.of("first", "second"), b.store.get("w").getAssetSlugs());
+    assertEquals(a.store.getVersion("w"), b.store.getVersion("w"));
+
+    // Loading a peer's state isn't published again
+    assertEquals(null, b.sent.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void ownMessagesAreIgnored() throws InterruptedException {
+    Node a = start("node-a");
+    deliverAll();
+    a.store.add("w", asset("x"));
+    Map<String, Object> delta = a.take();
+
+    a.replicator.receive(delta);
+
+    assertEquals(0, a.replicator.getApplied());
+    assertEquals(0, a.replicator.getStale());
+  }
+
+  @Test
+  public void lateJoinerGetsSnapshot() throws InterruptedException {
+    Node a = start("node-a");
+    Node b = start("node-b");
+    deliverAll();
+    a.store.add("left", asset("x"));
+    b.store.add("right", asset("y"));
+    deliverAll();
+
+    Node late = start("node-c");
+    Map<String, Object> request = late.take();
+    assertEquals(WindowReplicator.MESSAGE_TYPE_SNAPSHOT_REQUEST, request.get(MessageWrapper.MESSAGE_FIELD_TYPE));
+    a.replicator.receive(request);
+    Map<String, Object> snapshot = a.take();
+    assertEquals(WindowReplicator.MESSAGE_TYPE_SNAPSHOT, snapshot.get(MessageWrapper.MESSAGE_FIELD_TYPE));
+    late.replicator.receive(snapshot);
+
+    assertSameWindows(a, late);
+    assertEquals(2, late.replicator.getApplied());
+
+    // The writer of each Window travels with the snapshot, so a later tie
+    // still goes the same way on every node
+    deliverAll();
+    late.store.add("left", asset("from-c"));
+    b.store.add("left", asset("from-b"));
+    deliverAll();
+    assertSameWindows(a, b);
+    assertSameWindows(a, late);
+    assertEquals(ImmutableList.of("x", "from-c"), a.store.get("left").getAssetSlugs());
+  }
+
+  @Test
+  public void startingNodeOffersItsState() throws InterruptedException {
+    Node a = start("node-a");
+    deliverAll();
+    a.store.add("w", asset("x"));
+    deliverAll();
+
+    WindowAssetStore store = new WindowAssetStore();
+    store.add("v", asset("y"));
+    Node b = start("node-b", store);
+    deliverAll();
+
+    assertSameWindows(a, b);
+    assertEquals(ImmutableList.of("y"), a.store.get("v").getAssetSlugs());
+  }
+
+  @Test
+  public void restartedNodesWithDivergentStatesConverge() throws InterruptedException {
+    // Both restored the same version of a Window from their journals, with
+    // different assets and no record of who wrote them
+    WindowAssetStore storeA = new WindowAssetStore();
+    storeA.restore(ImmutableList.of(new WindowState("w", 5, ImmutableList.<Map<String, Object>>of(asset("x")))));
+    WindowAssetStore storeB = new WindowAssetStore();
+    storeB.restore(ImmutableList.of(new WindowState("w", 5, ImmutableList.<Map<String, Object>>of(asset("y")))));
+
+    Node a = start("node-a", storeA);
+    Node b = start("node-b", storeB);
+    deliverAll();
+
+    assertSameWindows(a, b);
+    assertEquals(ImmutableList.of("y"), a.store.get("w").getAssetSlugs());
+    assertEquals(5, a.store.getVersion("w"));
+  }
+
+  private Node start(String nodeId) {
+    return start(nodeId, new WindowAssetStore());
+  }
+
+  private Node start(String nodeId, WindowAssetStore store) {
+    Node node = new Node(nodeId, store);
+    nodes.add(node);
+    node.replicator.start();
+    return node;
+  }
+
+  /**
+   * Delivers every message sent to every other node, and whatever they send
+   * in turn, until none are left.
+   */
+  private void deliverAll() throws InterruptedException {
+    boolean delivered = true;
+    while (delivered) {
+      delivered = false;
+      for (Node sender : nodes) {
+        Map<String, Object> message = sender.sent.poll(50, TimeUnit.MILLISECONDS);
+        if (message != null) {
+          delivered = true;
+          for (Node node : nodes) {
+            if (node != sender) {
+              node.replicator.receive(message);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static void assertSameWindows(Node expected, Node actual) {
+    for (WindowState state : expected.store.getWindows().values()) {
+      WindowState other = actual.store.get(state.getWindowSlug());
+      assertEquals(state.getWindowSlug(), state.getAssets(), other.getAssets());
+      assertEquals(state.getWindowSlug(), state.getVersion(), other.getVersion());
+    }
+    assertEquals(expected.store.getWindows().keySet(), actual.store.getWindows().keySet());
+  }
+
+  private static Map<String, Object> asset(String slug) {
+    return Asset.of(slug, slug, "http://lg-head/" + slug + ".kml");
+  }
+
+  private static final class Node {
+    private final WindowAssetStore store;
+    private final BlockingQueue<Map<String, Object>> sent = new LinkedBlockingQueue<Map<String, Object>>();
+    private final WindowReplicator replicator;
+
+    private Node(String nodeId, WindowAssetStore store) {
+      this.store = store;
+      this.replicator = new WindowReplicator(store, new WindowReplicator.Transport() {
+        @Override
+        public void send(Map<String, Object> message) {
+          sent.add(message);
+        }
+      }, nodeId, new NoOpLog());
+    }
+
+    /**
+     * The next message this node sends.
+     */
+    private Map<String, Object> take() throws InterruptedException {
+      Map<String, Object> message = sent.poll(5, TimeUnit.SECONDS);
+      assertNotNull(message);
+      return message;
+    }
+  }
+}